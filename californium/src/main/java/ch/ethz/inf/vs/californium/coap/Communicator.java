@@ -34,12 +34,15 @@ import java.io.IOException;
 import java.net.SocketException;
 
 import ch.ethz.inf.vs.californium.layers.AdverseLayer;
+import ch.ethz.inf.vs.californium.layers.ExchangeStore;
 import ch.ethz.inf.vs.californium.layers.TokenLayer;
 import ch.ethz.inf.vs.californium.layers.TransactionLayer;
 import ch.ethz.inf.vs.californium.layers.MatchingLayer;
+import ch.ethz.inf.vs.californium.layers.NStartLayer;
 import ch.ethz.inf.vs.californium.layers.TransferLayer;
 import ch.ethz.inf.vs.californium.layers.UDPLayer;
 import ch.ethz.inf.vs.californium.layers.UpperLayer;
+import ch.ethz.inf.vs.californium.util.Properties;
 
 /**
  * The class Communicator provides the message passing system and builds the
@@ -73,6 +76,7 @@ public class Communicator extends UpperLayer {
 	protected TokenLayer tokenLayer;
 	protected TransferLayer transferLayer;
 	protected MatchingLayer matchingLayer;
+	protected NStartLayer nstartLayer;
 	protected TransactionLayer transactionLayer;
 	protected AdverseLayer adverseLayer;
 	protected UDPLayer udpLayer;
@@ -90,11 +94,13 @@ public class Communicator extends UpperLayer {
 	private Communicator() throws SocketException {
 		
 		// initialize layers
-		tokenLayer = new TokenLayer();
+		ExchangeStore exchanges = new ExchangeStore();
+		tokenLayer = new TokenLayer(exchanges);
 		transferLayer = new TransferLayer(transferBlockSize);
-		matchingLayer = new MatchingLayer();
+		matchingLayer = new MatchingLayer(exchanges);
+		nstartLayer = new NStartLayer();
 		transactionLayer = new TransactionLayer();
-		adverseLayer = new AdverseLayer();
+		adverseLayer = new AdverseLayer(Properties.std.getDbl("ADVERSE_TX_LOSS"), Properties.std.getDbl("ADVERSE_RX_LOSS"));
 		udpLayer = new UDPLayer(udpPort, runAsDaemon);
 
 		// connect layers
@@ -176,11 +182,16 @@ public class Communicator extends UpperLayer {
 		this.setLowerLayer(tokenLayer);
 		tokenLayer.setLowerLayer(transferLayer);
 		transferLayer.setLowerLayer(matchingLayer);
-		matchingLayer.setLowerLayer(transactionLayer);
-		transactionLayer.setLowerLayer(udpLayer);
+		matchingLayer.setLowerLayer(nstartLayer);
+		nstartLayer.setLowerLayer(transactionLayer);
+		transactionLayer.setCompletionListener(nstartLayer);
 		
-		//transactionLayer.setLowerLayer(adverseLayer);
-		//adverseLayer.setLowerLayer(udpLayer);
+		if (Properties.std.getDbl("ADVERSE_TX_LOSS") > 0d || Properties.std.getDbl("ADVERSE_RX_LOSS") > 0d) {
+			transactionLayer.setLowerLayer(adverseLayer);
+			adverseLayer.setLowerLayer(udpLayer);
+		} else {
+			transactionLayer.setLowerLayer(udpLayer);
+		}
 
 	}
 
@@ -40,6 +40,10 @@ import ch.ethz.inf.vs.californium.util.Properties;
 
 /**
  * The class EndpointAddress stores IP address and port. It is mainly used to handle {@link Message}s.
+ * <p>
+ * Hash and string form are computed once, as addresses serve as map keys
+ * and in log output. Received messages carry the canonical instance of the
+ * {@link PeerRegistry}.
  * 
  * @author Matthias Kovatsch
  */
@@ -56,6 +60,12 @@ public class EndpointAddress {
 	
 	/** The port. */
 	private int port = Properties.std.getInt("DEFAULT_PORT");
+	
+	/** The cached hash code, 0 if not computed yet. */
+	private int hash = 0;
+	
+	/** The cached string form. */
+	private String string = null;
 
 // Constructors ////////////////////////////////////////////////////////////////
 	
@@ -100,11 +110,38 @@ public class EndpointAddress {
 	 * @see java.lang.Object#toString()
 	 */
 	public String toString() {
-		if (address instanceof Inet6Address) {
-			return String.format("[%s]:%d", address.getHostAddress().split("%")[0], port);
-		} else {
-			return String.format("%s:%d", address.getHostAddress(), port);
+		if (string == null) {
+			if (address instanceof Inet6Address) {
+				String host = address.getHostAddress();
+				int scope = host.indexOf('%');
+				string = "[" + (scope >= 0 ? host.substring(0, scope) : host) + "]:" + port;
+			} else {
+				string = (address != null ? address.getHostAddress() : "null") + ":" + port;
+			}
+		}
+		return string;
+	}
+	
+	@Override
+	public int hashCode() {
+		int h = hash;
+		if (h == 0) {
+			h = 31 * (address != null ? address.hashCode() : 0) + port;
+			hash = h;
+		}
+		return h;
+	}
+	
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof EndpointAddress)) {
+			return false;
 		}
+		EndpointAddress other = (EndpointAddress) obj;
+		return port == other.port && hashCode() == other.hashCode() && (address != null ? address.equals(other.address) : other.address == null);
 	}
 	
 	/**
@@ -0,0 +1,104 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.coap;
+
+import java.util.Arrays;
+
+/**
+ * The class KeyId identifies the state kept for a message exchange with a
+ * peer, e.g., the open request a response is matched against. It combines
+ * the interned {@link Peer} with the token and precomputes the hash, so map
+ * lookups neither format strings nor hex-encode tokens. It replaces the
+ * String returned by {@link Message#sequenceKey()} as map key.
+ * 
+ * @author Matthias Kovatsch
+ */
+public final class KeyId {
+
+// Members /////////////////////////////////////////////////////////////////////
+	
+	private final Peer peer;
+	
+	private final byte[] token;
+	
+	private final int hash;
+
+// Constructors ////////////////////////////////////////////////////////////////
+	
+	/**
+	 * Instantiates a new key.
+	 * 
+	 * @param peer the interned peer, see {@link PeerRegistry}
+	 * @param token the token, which must not be modified afterwards
+	 */
+	public KeyId(Peer peer, byte[] token) {
+		if (peer == null || token == null) {
+			throw new NullPointerException();
+		}
+		this.peer = peer;
+		this.token = token;
+		this.hash = 31 * peer.getId() + Arrays.hashCode(token);
+	}
+
+// Methods /////////////////////////////////////////////////////////////////////
+	
+	public Peer getPeer() {
+		return peer;
+	}
+	
+	public byte[] getToken() {
+		return token;
+	}
+	
+	@Override
+	public int hashCode() {
+		return hash;
+	}
+	
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (!(obj instanceof KeyId))
+			return false;
+		KeyId other = (KeyId) obj;
+		// peers are interned and retained while state is keyed by them, so identity suffices
+		return hash == other.hash && peer == other.peer && Arrays.equals(token, other.token);
+	}
+	
+	/*
+	 * Same format as Message#sequenceKey(), for logging only
+	 */
+	@Override
+	public String toString() {
+		return String.format("%s#%s", peer.getAddress() != null ? peer.getAddress().toString() : "local", Option.hex(token));
+	}
+}
@@ -35,16 +35,13 @@ import java.io.PrintStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
-import java.util.Map;
-import java.util.TreeMap;
 import java.util.logging.Logger;
 
 import ch.ethz.inf.vs.californium.layers.UpperLayer;
-import ch.ethz.inf.vs.californium.util.DatagramReader;
-import ch.ethz.inf.vs.californium.util.DatagramWriter;
 
 /**
  * The Class Message provides the object representation of a CoAP message.
@@ -123,6 +120,9 @@ public class Message {
 	
 	private byte[] payload = null;
 	
+	/* Random-access payload that is read block by block, if set instead of payload */
+	private BlockSource payloadSource = null;
+	
 	/* The CoAP version used */
 	private int version = SUPPORTED_VERSION;
 	
@@ -141,13 +141,22 @@ public class Message {
 	/* The message ID. Set according to request or handled by {@link ch.ethz.inf.vs.californium.layers.TransactionLayer} when -1. */
 	private int messageID = -1;
 	
-	/* The list of header options set for the message. */
-	private Map<Integer, List<Option>> optionMap = new TreeMap<Integer, List<Option>>();
+	/* The header options set for the message, sorted by number. */
+	private OptionSet options = new OptionSet();
 	
-	private long timestamp = -1;
+	// written by the sending thread, read by the thread handling the reply
+	private volatile long timestamp = -1;
 	
 	private int retransmissioned = 0;
 	
+	/* Notified when the message was sent or could not be sent. */
+	private SendHandler sendHandler = null;
+	
+	private ReliabilityHandler reliabilityHandler = null;
+	
+	/* The retransmission limit if confirmable, -1 for MAX_RETRANSMIT. */
+	private int maxRetransmit = -1;
+	
 	// indicates if the message requires a token
 	// this is required to handle implicit empty tokens (default value)
 	protected boolean requiresToken = true;
@@ -205,115 +214,26 @@ public class Message {
 	 * 
 	 */
 	public byte[] toByteArray() {
-		
-		// create datagram writer to encode options
-		DatagramWriter optWriter = new DatagramWriter(); 
-		
-		int optionCount = 0;
-		int lastOptionNumber = 0;
-		for (Option opt : getOptions()) {
-			
-			// do not encode options with default values
-			if (opt.isDefaultValue()) continue;
-			
-			// calculate option delta
-			int optionDelta = opt.getOptionNumber() - lastOptionNumber;
-			
-			// ensure that option delta value can be encoded correctly
-			while (optionDelta > MAX_OPTIONDELTA) {
-				
-				// option delta is too large to be encoded:
-				// add fencepost options in order to reduce the option delta
-				
-				// get fencepost option that is next to the last option
-				int fencepostNumber = 
-					OptionNumberRegistry.nextFencepost(lastOptionNumber);
-				
-				// calculate fencepost delta
-				int fencepostDelta = fencepostNumber - lastOptionNumber;
-				
-				// correctness assertions
-				//assert fencepostDelta > 0: "Fencepost liveness";
-				//assert fencepostDelta <= MAX_OPTIONDELTA: "Fencepost safety";
-				if (fencepostDelta <= 0) {
-					LOG.warning(String.format("Fencepost liveness violated: delta = %d", fencepostDelta));
-				}
-				if (fencepostDelta > MAX_OPTIONDELTA) {
-					LOG.warning(String.format("Fencepost safety violated: delta = %d", fencepostDelta));
-				}
-
-				// write fencepost option delta
-				optWriter.write(fencepostDelta, OPTIONDELTA_BITS);
-				
-				// fencepost have an empty value
-				optWriter.write(0, OPTIONLENGTH_BASE_BITS);
-				//System.out.printf("DEBUG: %d\n", fencepostDelta);
-				
-				// increment option count
-				++optionCount;
-				
-				// update last option number
-				lastOptionNumber = fencepostNumber;
-				
-				// update option delta
-				optionDelta -= fencepostDelta;
-			}
-			
-			// write option delta
-			optWriter.write(optionDelta, OPTIONDELTA_BITS);
-			
-			// write option length
-			int length = opt.getLength();
-			if (length <= MAX_OPTIONLENGTH_BASE) {
-				
-				// use option length base field only to encode
-				// option lengths less or equal than MAX_OPTIONLENGTH_BASE
-				
-				optWriter.write(length, OPTIONLENGTH_BASE_BITS);
-				
-			} else {
-				
-				// use both option length base and extended field
-				// to encode option lengths greater than MAX_OPTIONLENGTH_BASE
-				
-				int baseLength = MAX_OPTIONLENGTH_BASE + 1;
-				optWriter.write(baseLength, OPTIONLENGTH_BASE_BITS);
-				
-				int extLength = length - baseLength;
-				optWriter.write(extLength, OPTIONLENGTH_EXTENDED_BITS);
-				
-			}
-
-			// write option value
-			optWriter.writeBytes(opt.getRawValue());
-			
-			// increment option count
-			++optionCount;
-			
-			// update last option number
-			lastOptionNumber = opt.getOptionNumber();
-		}
-
-		
-		// create datagram writer to encode message data
-		DatagramWriter writer = new DatagramWriter();
-		
-		// write fixed-size CoAP header
-		writer.write(version, VERSION_BITS);
-		writer.write(type.ordinal(), TYPE_BITS);
-		writer.write(optionCount, OPTIONCOUNT_BITS);
-		writer.write(code, CODE_BITS);
-		writer.write(messageID, ID_BITS);
-		
+		return MessageCodec.toByteArray(this);
+	}
 	
-		// write options
-		writer.writeBytes(optWriter.toByteArray());
-		
-		//write payload
-		writer.writeBytes(payload);
-
-		// return encoded message
-		return writer.toByteArray();
+	/**
+	 * Returns the number of bytes {@link #encode(ByteBuffer)} will write.
+	 * 
+	 * @return the size of the CoAP encoding in bytes
+	 */
+	public int encodedSize() {
+		return MessageCodec.encodedSize(this);
+	}
+	
+	/**
+	 * Encodes the message at the position of a buffer, e.g., a pooled send
+	 * buffer, without intermediate copies.
+	 * 
+	 * @param buffer A buffer with at least {@link #encodedSize()} bytes remaining
+	 */
+	public void encode(ByteBuffer buffer) {
+		MessageCodec.encode(this, buffer);
 	}
 
 	/**
@@ -325,72 +245,20 @@ public class Message {
 	 * @return a parsed CoAP message as correspondingly extended Message object, e.g., GETRequest
 	 */
 	public static Message fromByteArray(byte[] byteArray) {
+		return fromByteBuffer(ByteBuffer.wrap(byteArray));
+	}
 
-		//Initialize DatagramReader
-		DatagramReader datagram = new DatagramReader(byteArray);
-		
-		//Read current version
-		int version = datagram.read(VERSION_BITS);
-		if (version!=SUPPORTED_VERSION) {
-			return null;
-		}
-		
-		//Read current type
-		messageType type = getTypeByValue(datagram.read(TYPE_BITS));
-		
-		//Read number of options
-		int optionCount = datagram.read(OPTIONCOUNT_BITS);
-		
-		// create new message with subtype according to code number
-		Message msg = CodeRegistry.getMessageSubClass( datagram.read(CODE_BITS) );
-		
-		msg.type = type;
-		
-		//Read message ID
-		msg.messageID = datagram.read(ID_BITS);
-		
-		//Current option nr initialization
-		int currentOption = 0;
-
-		//Loop over all options
-		for (int i=0; i < optionCount; i++) {
-			
-			//Read option delta bits
-			int optionDelta = datagram.read(OPTIONDELTA_BITS);
-			
-			currentOption += optionDelta;
-			//System.out.printf("DEBUG MSG: %d\n", optionDelta);
-			if (OptionNumberRegistry.isFencepost(currentOption))
-			{
-				//Read number of options
-				datagram.read(OPTIONLENGTH_BASE_BITS);
-				
-			} else {
-				
-				//Read option length
-				int length = datagram.read(OPTIONLENGTH_BASE_BITS);
-				if (length > MAX_OPTIONLENGTH_BASE)
-				{
-					length += datagram.read(OPTIONLENGTH_EXTENDED_BITS);
-				}
-				
-				//Read option
-				Option opt = Option.fromNumber(currentOption);
-				opt.setValue(datagram.readBytes(length));
-				
-				//Add option to message
-				msg.addOption(opt);
-			}
-			
-		}
-
-		// Get payload
-		msg.payload = datagram.readBytesLeft();
-		
-		// incoming message already have a token, including implicit empty token
-		msg.requiresToken = false;
-		
-		return msg;
+	/**
+	 * Decodes the message directly from the remaining bytes of a buffer, e.g.,
+	 * a pooled receive buffer. Option values and payload are copied out, so
+	 * the buffer can be reused as soon as this method returns.
+	 * 
+	 * @param buffer A buffer positioned at the CoAP encoding of the message
+	 * 
+	 * @return a parsed CoAP message as correspondingly extended Message object, e.g., GETRequest
+	 */
+	public static Message fromByteBuffer(ByteBuffer buffer) {
+		return MessageCodec.decode(buffer);
 	}
 
 // I/O implementation //////////////////////////////////////////////////////////
@@ -682,6 +550,17 @@ public class Message {
 	 * @return the payload
 	 */
 	public byte[] getPayload() {
+		if (payload == null && payloadSource != null) {
+			// materialize on demand, e.g., when the source fits into a single message
+			byte[] data = new byte[payloadSource.size()];
+			try {
+				payloadSource.read(0, data, 0, data.length);
+			} catch (IOException e) {
+				LOG.severe(String.format("Failed to read payload source of %s: %s", key(), e.getMessage()));
+				return null;
+			}
+			return data;
+		}
 		return this.payload;
 	}
 
@@ -694,7 +573,8 @@ public class Message {
 	 */
 	public String getPayloadString() {
 		try {
-			return payload != null ? new String(payload, "UTF-8") : null;
+			byte[] data = getPayload();
+			return data != null ? new String(data, "UTF-8") : null;
 		} catch (UnsupportedEncodingException e) {
 			e.printStackTrace();
 			return null;
@@ -710,6 +590,46 @@ public class Message {
 	 */
 	public void setPayload(byte[] payload) {
 		this.payload = payload;
+		this.payloadSource = null;
+	}
+
+	/**
+	 * Returns the block source set as payload, if any.
+	 * 
+	 * @return the payload source or null
+	 */
+	public BlockSource getPayloadSource() {
+		return payloadSource;
+	}
+	
+	/**
+	 * Sets a block source as payload replacing any existing one. The source
+	 * is not read into memory; the TransferLayer only reads the slice of the
+	 * requested block. {@link #getPayload()} copies the whole source.
+	 * 
+	 * @param source the payload source
+	 */
+	public void setPayloadSource(BlockSource source) {
+		this.payloadSource = source;
+		this.payload = null;
+	}
+	
+	/**
+	 * Copies a range of the payload into the given array, reading only that
+	 * range if the payload is a {@link BlockSource}.
+	 * 
+	 * @param offset the offset within the payload
+	 * @param dst the destination array
+	 * @param dstOffset the offset within the destination array
+	 * @param length the number of bytes to copy
+	 * @throws IOException if the payload source cannot be read
+	 */
+	public void readPayload(int offset, byte[] dst, int dstOffset, int length) throws IOException {
+		if (payloadSource != null) {
+			payloadSource.read(offset, dst, dstOffset, length);
+		} else {
+			System.arraycopy(payload, offset, dst, dstOffset, length);
+		}
 	}
 
 	// Other getters/setters ///////////////////////////////////////////////////
@@ -722,6 +642,10 @@ public class Message {
 	public synchronized void appendPayload(byte[] block) {
 	
 		if (block != null) {
+			if (payloadSource != null) {
+				payload = getPayload();
+				payloadSource = null;
+			}
 			if (payload != null) {
 		
 				byte[] oldPayload = payload;
@@ -768,6 +692,9 @@ public class Message {
 	}
 
 	public int payloadSize() {
+		if (payloadSource != null) {
+			return payloadSource.size();
+		}
 		return payload != null ? payload.length : 0;
 	}
 
@@ -790,6 +717,17 @@ public class Message {
 	public String transactionKey() {
 		return String.format("%s|%d", peerAddress!=null ? peerAddress.toString() : "local", messageID);
 	}
+	
+	/**
+	 * Returns the compact equivalent of {@link #transactionKey()}, holding the
+	 * ID of the peer from the {@link PeerRegistry} in the upper and the
+	 * message ID in the lower 16 bits.
+	 * 
+	 * @return the transaction ID
+	 */
+	public long transactionId() {
+		return ((long) PeerRegistry.getInstance().getPeerId(peerAddress) << 16) | (messageID & 0xFFFF);
+	}
 
 	/**
 	 * Returns a string that is assumed to uniquely identify a transfer. A
@@ -803,6 +741,16 @@ public class Message {
 	public String sequenceKey() {
 		return String.format("%s#%s", peerAddress!=null ? peerAddress.toString() : "local", getTokenString());
 	}
+	
+	/**
+	 * Returns the compact equivalent of {@link #sequenceKey()} to be used as
+	 * key for the state of a transfer.
+	 * 
+	 * @return the key identifying the transfer
+	 */
+	public KeyId sequenceId() {
+		return new KeyId(PeerRegistry.getInstance().getPeer(peerAddress), getToken());
+	}
 
 
 	// Other getters/setters ///////////////////////////////////////////////////
@@ -848,14 +796,8 @@ public class Message {
 			throw new NullPointerException();
 		
 		int optionNumber  = option.getOptionNumber();
-		List<Option> list = optionMap.get(optionNumber);
 		
-		if (list == null) {
-			list = new ArrayList<Option>();
-			optionMap.put(optionNumber, list);
-		}
-		
-		list.add(option);
+		options.add(option);
 		
 		if (optionNumber==OptionNumberRegistry.TOKEN) {
 			requiresToken = false;
@@ -869,7 +811,7 @@ public class Message {
 	 *            
 	 */	
 	public void removeOptions(int optionNumber) {
-		optionMap.remove(optionNumber);
+		options.remove(optionNumber);
 	}
 	
 	/**
@@ -880,8 +822,9 @@ public class Message {
 	 * @return A list containing the options with the given number
 	 */
 	public List<Option> getOptions(int optionNumber) {
-		List<Option> ret = optionMap.get(optionNumber);
-		if (ret!=null) {
+		if (options.contains(optionNumber)) {
+			List<Option> ret = new ArrayList<Option>(1);
+			options.collect(optionNumber, ret);
 			return ret;
 		} else {
 			return Collections.emptyList();
@@ -925,6 +868,19 @@ public class Message {
 		}
 	}
 
+	/**
+	 * Adds all options of another message, iterating its entries by index
+	 * instead of building a list.
+	 * 
+	 * @param source the message to copy the options from
+	 */
+	public void copyOptions(Message source) {
+		OptionSet from = source.options;
+		for (int i = 0; i < from.size(); ++i) {
+			addOption(from.get(i));
+		}
+	}
+
 	/**
 	 * A convenience method that returns the first option with the specified
 	 * option number. Also used for options that MUST occur only once.
@@ -933,9 +889,7 @@ public class Message {
 	 * @return The first option with the specified number, or null
 	 */
 	public Option getFirstOption(int optionNumber) {
-		
-		List<Option> list = getOptions(optionNumber);
-		return list != null && !list.isEmpty() ? list.get(0) : null;
+		return options.first(optionNumber);
 	}
 
 
@@ -945,23 +899,44 @@ public class Message {
 	 * @return A sorted list of all options (copy)
 	 */
 	public List<Option> getOptions() {
-	
-		List<Option> list = new ArrayList<Option>();
 		
-		for (List<Option> option : optionMap.values()) {
-			list.addAll(option);
+		List<Option> list = new ArrayList<Option>(options.size());
+		
+		for (int i = 0; i < options.size(); ++i) {
+			list.add(options.get(i));
 		}
 		
 		return list;
 	}
 
+	/**
+	 * Hands over the options of a received message without decoding them.
+	 * Option objects are only created when options of the respective number
+	 * are accessed, so messages that are never inspected, e.g., duplicates,
+	 * are cheap to receive.
+	 * 
+	 * @param encoded the options region of the datagram
+	 * @param index option number, value offset, and value length per option
+	 * @param count the number of options in the index
+	 */
+	void setEncodedOptions(byte[] encoded, int[] index, int count) {
+		this.options = new OptionSet(encoded, index, count);
+	}
+	
+	/*
+	 * The option container for index-based access by the codec.
+	 */
+	OptionSet getOptionSet() {
+		return options;
+	}
+
 	/**
 	 * This function returns the number of options of this CoAP message.
 	 * 
 	 * @return The current number of options
 	 */
 	public int getOptionCount() {
-		return getOptions().size();
+		return options.size();
 	}
 	
 	/**
@@ -989,6 +964,48 @@ public class Message {
 	public void setRetransmissioned(int retransmissioned) {
 		this.retransmissioned = retransmissioned;
 	}
+	
+	public SendHandler getSendHandler() {
+		return sendHandler;
+	}
+
+	/**
+	 * Sets a handler that is notified when this message was sent over the
+	 * network or could not be sent, including its retransmissions.
+	 * 
+	 * @param handler the handler, or null
+	 */
+	public void setSendHandler(SendHandler handler) {
+		this.sendHandler = handler;
+	}
+
+	public ReliabilityHandler getReliabilityHandler() {
+		return reliabilityHandler;
+	}
+	
+	/**
+	 * Sets a handler that is notified when this message, if confirmable, was
+	 * acknowledged, rejected, or timed out.
+	 * 
+	 * @param handler the handler, or null
+	 */
+	public void setReliabilityHandler(ReliabilityHandler handler) {
+		this.reliabilityHandler = handler;
+	}
+	
+	public int getMaxRetransmit() {
+		return maxRetransmit;
+	}
+	
+	/**
+	 * Limits the retransmissions of this message if confirmable, e.g., to
+	 * give up early on a peer that is known to be unreliable.
+	 * 
+	 * @param maxRetransmit the limit, or -1 for MAX_RETRANSMIT
+	 */
+	public void setMaxRetransmit(int maxRetransmit) {
+		this.maxRetransmit = maxRetransmit;
+	}
 
 	/**
 	 * Notification method that is called when the transmission of this
@@ -1065,7 +1082,7 @@ public class Message {
 			case RST           : typeStr = "RST"; break;
 			default              : typeStr = "???"; break;
 		}
-		String payloadStr = payload != null ? new String(payload) : null;
+		String payloadStr = payload != null ? new String(payload) : (payloadSource != null ? "<source>" : null);
 		return String.format("%s: [%s] %s '%s'(%d)",
 			key(), typeStr, CodeRegistry.toString(code), 
 			payloadStr, payloadSize());
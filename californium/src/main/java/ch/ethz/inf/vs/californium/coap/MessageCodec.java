@@ -0,0 +1,291 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.coap;
+
+import java.nio.ByteBuffer;
+import java.util.logging.Logger;
+
+/**
+ * The class MessageCodec encodes and decodes messages as specified in
+ * draft-ietf-core-coap-05, section 3.1. Header fields are assembled with
+ * shifts and masks on whole bytes. For encoding, the exact size is computed
+ * first, so that the message can be written in a single pass into a buffer
+ * supplied by the caller, e.g., a pooled send buffer.
+ * 
+ * @author Matthias Kovatsch
+ */
+public class MessageCodec {
+
+// Logging /////////////////////////////////////////////////////////////////////
+	
+	private static final Logger LOG = Logger.getLogger(MessageCodec.class.getName());
+
+// Constants ///////////////////////////////////////////////////////////////////
+	
+	private static final int HEADER_LENGTH = 4;
+	
+	private static final int MAX_OPTIONCOUNT = (1 << Message.OPTIONCOUNT_BITS) - 1;
+	
+	private static final int MAX_OPTIONLENGTH = Message.MAX_OPTIONLENGTH_BASE + 1 + (1 << Message.OPTIONLENGTH_EXTENDED_BITS) - 1;
+
+// Constructors ////////////////////////////////////////////////////////////////
+	
+	private MessageCodec() {
+	}
+
+// Encoding ////////////////////////////////////////////////////////////////////
+	
+	/**
+	 * Returns the exact number of bytes {@link #encode(Message, ByteBuffer)}
+	 * will write for the message.
+	 * 
+	 * @param msg the message
+	 * @return the encoded size in bytes
+	 */
+	public static int encodedSize(Message msg) {
+		return encodedSize(msg, msg.getOptionSet());
+	}
+	
+	/**
+	 * Encodes the message into a new byte array of the exact size.
+	 * 
+	 * @param msg the message
+	 * @return the encoded message
+	 */
+	public static byte[] toByteArray(Message msg) {
+		
+		OptionSet options = msg.getOptionSet();
+		
+		byte[] bytes = new byte[encodedSize(msg, options)];
+		encode(msg, options, ByteBuffer.wrap(bytes));
+		
+		return bytes;
+	}
+	
+	/**
+	 * Encodes the message at the position of the buffer and advances it.
+	 * 
+	 * @param msg the message
+	 * @param buffer the buffer with at least {@link #encodedSize(Message)} bytes remaining
+	 */
+	public static void encode(Message msg, ByteBuffer buffer) {
+		encode(msg, msg.getOptionSet(), buffer);
+	}
+	
+	private static int encodedSize(Message msg, OptionSet options) {
+		
+		int size = HEADER_LENGTH;
+		int lastOptionNumber = 0;
+		
+		for (int i = 0; i < options.size(); ++i) {
+			
+			// do not encode options with default values
+			if (options.isDefaultValue(i)) continue;
+			
+			int optionNumber = options.getNumber(i);
+			
+			// one byte per fencepost
+			while (optionNumber - lastOptionNumber > Message.MAX_OPTIONDELTA) {
+				lastOptionNumber = OptionNumberRegistry.nextFencepost(lastOptionNumber);
+				++size;
+			}
+			
+			int length = options.getLength(i);
+			if (length > MAX_OPTIONLENGTH) {
+				throw new IllegalArgumentException(String.format("Option %d too long: %d bytes", optionNumber, length));
+			}
+			
+			size += length <= Message.MAX_OPTIONLENGTH_BASE ? 1 + length : 2 + length;
+			
+			lastOptionNumber = optionNumber;
+		}
+		
+		size += msg.payloadSize();
+		
+		return size;
+	}
+	
+	private static void encode(Message msg, OptionSet options, ByteBuffer buffer) {
+		
+		// reserve first header byte until the option count is known
+		int start = buffer.position();
+		buffer.position(start + 1);
+		
+		buffer.put((byte) msg.getCode());
+		buffer.putShort((short) msg.getMID());
+		
+		int optionCount = 0;
+		int lastOptionNumber = 0;
+		
+		for (int i = 0; i < options.size(); ++i) {
+			
+			// do not encode options with default values
+			if (options.isDefaultValue(i)) continue;
+			
+			int optionNumber = options.getNumber(i);
+			
+			// add fencepost options while the delta is too large to be encoded
+			while (optionNumber - lastOptionNumber > Message.MAX_OPTIONDELTA) {
+				int fencepostNumber = OptionNumberRegistry.nextFencepost(lastOptionNumber);
+				
+				// fenceposts have an empty value
+				buffer.put((byte) ((fencepostNumber - lastOptionNumber) << Message.OPTIONLENGTH_BASE_BITS));
+				
+				++optionCount;
+				lastOptionNumber = fencepostNumber;
+			}
+			
+			int delta = (optionNumber - lastOptionNumber) << Message.OPTIONLENGTH_BASE_BITS;
+			int length = options.getLength(i);
+			
+			if (length <= Message.MAX_OPTIONLENGTH_BASE) {
+				buffer.put((byte) (delta | length));
+			} else {
+				buffer.put((byte) (delta | (Message.MAX_OPTIONLENGTH_BASE + 1)));
+				buffer.put((byte) (length - Message.MAX_OPTIONLENGTH_BASE - 1));
+			}
+			
+			options.writeValue(i, buffer);
+			
+			++optionCount;
+			lastOptionNumber = optionNumber;
+		}
+		
+		if (optionCount > MAX_OPTIONCOUNT) {
+			LOG.warning(String.format("Option count exceeds header field: %d", optionCount));
+		}
+		
+		buffer.put(start, (byte) (
+			(msg.getVersion() & 0x03) << 6 |
+			(msg.getType().ordinal() & 0x03) << 4 |
+			(optionCount & MAX_OPTIONCOUNT)));
+		
+		byte[] payload = msg.getPayload();
+		if (payload != null) {
+			buffer.put(payload);
+		}
+	}
+
+// Decoding ////////////////////////////////////////////////////////////////////
+	
+	/**
+	 * Decodes the message from the remaining bytes of a buffer. Option values
+	 * and payload are copied out, so the buffer can be reused afterwards.
+	 * Options are checked, but only turned into {@link Option} objects when
+	 * accessed.
+	 * 
+	 * @param buffer the buffer positioned at the encoded message
+	 * @return the message as correspondingly extended Message object, e.g.,
+	 * GETRequest, or null if the version is not supported or the message is
+	 * truncated
+	 */
+	public static Message decode(ByteBuffer buffer) {
+		
+		if (buffer.remaining() < HEADER_LENGTH) {
+			return null;
+		}
+		
+		int first = buffer.get() & 0xFF;
+		
+		if ((first >>> 6) != Message.SUPPORTED_VERSION) {
+			return null;
+		}
+		
+		Message.messageType type = Message.getTypeByValue((first >>> 4) & 0x03);
+		int optionCount = first & MAX_OPTIONCOUNT;
+		
+		// create new message with subtype according to code number
+		Message msg = CodeRegistry.getMessageSubClass(buffer.get() & 0xFF);
+		msg.setType(type);
+		msg.setMID(buffer.getShort() & 0xFFFF);
+		
+		// only record where the options are, see OptionSet
+		int optionsStart = buffer.position();
+		int[] index = new int[3 * optionCount];
+		int count = 0;
+		
+		int currentOption = 0;
+		
+		for (int i = 0; i < optionCount; ++i) {
+			
+			if (!buffer.hasRemaining()) {
+				return null;
+			}
+			
+			int optionHeader = buffer.get() & 0xFF;
+			
+			currentOption += optionHeader >>> Message.OPTIONLENGTH_BASE_BITS;
+			
+			if (OptionNumberRegistry.isFencepost(currentOption)) {
+				continue;
+			}
+			
+			int length = optionHeader & 0x0F;
+			if (length > Message.MAX_OPTIONLENGTH_BASE) {
+				if (!buffer.hasRemaining()) {
+					return null;
+				}
+				length += buffer.get() & 0xFF;
+			}
+			
+			if (buffer.remaining() < length) {
+				return null;
+			}
+			
+			index[3*count] = currentOption;
+			index[3*count + 1] = buffer.position() - optionsStart;
+			index[3*count + 2] = length;
+			++count;
+			
+			buffer.position(buffer.position() + length);
+		}
+		
+		if (count > 0) {
+			
+			// copy the options region in one go
+			int optionsEnd = buffer.position();
+			byte[] encoded = new byte[optionsEnd - optionsStart];
+			buffer.position(optionsStart);
+			buffer.get(encoded);
+			
+			msg.setEncodedOptions(encoded, index, count);
+		}
+		
+		byte[] payload = new byte[buffer.remaining()];
+		buffer.get(payload);
+		msg.setPayload(payload);
+		
+		// incoming message already have a token, including implicit empty token
+		msg.requiresToken = false;
+		
+		return msg;
+	}
+}
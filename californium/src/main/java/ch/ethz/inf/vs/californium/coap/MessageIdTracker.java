@@ -0,0 +1,144 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.coap;
+
+import ch.ethz.inf.vs.californium.util.HashedWheelTimer;
+
+/**
+ * The class MessageIdTracker hands out the message IDs used towards one peer.
+ * IDs are allocated consecutively from a random start and must not be reused
+ * while a duplicate of the previous message with the same ID could still
+ * arrive, i.e., within the exchange lifetime.
+ * <p>
+ * Instead of a timestamp per ID, the tracker counts allocations in time slots
+ * covering the lifetime. If 2^16 IDs were allocated within it, the next one
+ * would collide and {@link #nextMessageID()} refuses until the oldest slot
+ * expires.
+ * 
+ * @author Matthias Kovatsch
+ */
+public class MessageIdTracker {
+
+// Constants ///////////////////////////////////////////////////////////////////
+	
+	private static final int SLOTS = 64;
+	
+	private static final int MID_SPACE = 0x10000;
+
+// Members /////////////////////////////////////////////////////////////////////
+	
+	private final HashedWheelTimer.Clock clock;
+	
+	/** The width of a slot, so that SLOTS-1 slots cover the lifetime. */
+	private final long slotNanos;
+	
+	/** The allocations per slot, used as a ring. */
+	private final int[] counts = new int[SLOTS];
+	
+	/** The number of slot the last allocation fell into. */
+	private long currentSlot;
+	
+	/** The sum of all counts. */
+	private int allocated = 0;
+	
+	private int currentMID;
+
+// Constructors ////////////////////////////////////////////////////////////////
+	
+	/**
+	 * Instantiates a new tracker.
+	 * 
+	 * @param initialMID the ID preceding the first one handed out
+	 * @param lifetime the time an ID is blocked after allocation in milliseconds
+	 * @param clock the time source
+	 */
+	public MessageIdTracker(int initialMID, long lifetime, HashedWheelTimer.Clock clock) {
+		this.clock = clock;
+		this.slotNanos = Math.max((lifetime * 1000000L + SLOTS - 2) / (SLOTS - 1), 1L);
+		this.currentSlot = clock.nanoTime() / slotNanos;
+		this.currentMID = initialMID & 0xFFFF;
+	}
+
+// Methods /////////////////////////////////////////////////////////////////////
+	
+	/**
+	 * Returns the next message ID to use out of the consecutive 16-bit range.
+	 * 
+	 * @return the message ID, or -1 if all are within the exchange lifetime
+	 */
+	public synchronized int nextMessageID() {
+		
+		advance(clock.nanoTime() / slotNanos);
+		
+		if (allocated >= MID_SPACE) {
+			return -1;
+		}
+		
+		++counts[(int) (currentSlot % SLOTS)];
+		++allocated;
+		
+		currentMID = (currentMID + 1) & 0xFFFF;
+		return currentMID;
+	}
+	
+	/**
+	 * Returns the number of IDs allocated within the exchange lifetime.
+	 * 
+	 * @return the number of blocked IDs
+	 */
+	public synchronized int getAllocatedCount() {
+		advance(clock.nanoTime() / slotNanos);
+		return allocated;
+	}
+
+// Internal ////////////////////////////////////////////////////////////////////
+	
+	private void advance(long slot) {
+		
+		if (slot - currentSlot >= SLOTS) {
+			// all slots expired
+			for (int i = 0; i < SLOTS; ++i) {
+				counts[i] = 0;
+			}
+			allocated = 0;
+			currentSlot = slot;
+			return;
+		}
+		
+		// a slot is reused after SLOTS-1 others, i.e., after the lifetime
+		while (currentSlot < slot) {
+			++currentSlot;
+			int i = (int) (currentSlot % SLOTS);
+			allocated -= counts[i];
+			counts[i] = 0;
+		}
+	}
+}
@@ -0,0 +1,196 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.coap;
+
+/**
+ * The class NotificationRate paces the notifications of one observing
+ * relationship. Notifications are at least the minimum period apart and, if
+ * a maximum period is set, a notification is due after it even without a
+ * change. While a confirmable notification is in flight, changes are only
+ * marked as pending, so that a single notification with the latest state is
+ * sent once it was acknowledged: bursts of changes are coalesced instead of
+ * queued.
+ * <p>
+ * Times are taken from a monotonic clock in nanoseconds; the class only
+ * decides and does not schedule anything itself.
+ * 
+ * @author Matthias Kovatsch
+ */
+public class NotificationRate {
+
+// Constants ///////////////////////////////////////////////////////////////////
+	
+	/** Returned as delay when there is nothing to send right now. */
+	public static final long NONE = -1L;
+
+// Members /////////////////////////////////////////////////////////////////////
+	
+	private final long minPeriod;
+	private final long maxPeriod;
+	
+	private long lastSent;
+	private boolean sentOnce = false;
+	
+	private boolean pending = false;
+	private boolean inFlight = false;
+	private boolean flushScheduled = false;
+	
+	private int coalesced = 0;
+
+// Constructors ////////////////////////////////////////////////////////////////
+	
+	/**
+	 * Instantiates a new rate control.
+	 * 
+	 * @param minPeriod the minimum time between notifications in milliseconds, 0 for none
+	 * @param maxPeriod the maximum time between notifications in milliseconds, 0 for none
+	 */
+	public NotificationRate(int minPeriod, int maxPeriod) {
+		this.minPeriod = Math.max(minPeriod, 0) * 1000000L;
+		this.maxPeriod = Math.max(maxPeriod, 0) * 1000000L;
+	}
+
+// Methods /////////////////////////////////////////////////////////////////////
+	
+	/**
+	 * Records a change of the resource.
+	 * 
+	 * @param now the current clock time
+	 * @return the delay in nanoseconds until the notification may be sent,
+	 * 0 for right away, or {@link #NONE} while waiting for an acknowledgement
+	 */
+	public synchronized long changed(long now) {
+		if (pending) {
+			++coalesced;
+		}
+		pending = true;
+		return pendingDelay(now);
+	}
+	
+	/**
+	 * Returns when a pending change may be sent.
+	 * 
+	 * @param now the current clock time
+	 * @return the delay in nanoseconds, 0 for right away, or {@link #NONE}
+	 * if nothing is pending or a confirmable notification is in flight
+	 */
+	public synchronized long pendingDelay(long now) {
+		if (!pending || inFlight) {
+			return NONE;
+		}
+		if (!sentOnce) {
+			return 0L;
+		}
+		return Math.max(lastSent + minPeriod - now, 0L);
+	}
+	
+	/**
+	 * Records that a notification with the current state was sent.
+	 * 
+	 * @param now the current clock time
+	 * @param confirmable true if the notification awaits an acknowledgement
+	 */
+	public synchronized void sent(long now, boolean confirmable) {
+		lastSent = now;
+		sentOnce = true;
+		pending = false;
+		inFlight = confirmable;
+	}
+	
+	/**
+	 * Records that the confirmable notification in flight was acknowledged,
+	 * rejected, or timed out.
+	 */
+	public synchronized void completed() {
+		inFlight = false;
+	}
+	
+	/**
+	 * Records that the notification could not be sent, so that the state is
+	 * pending again.
+	 */
+	public synchronized void failed() {
+		inFlight = false;
+		pending = true;
+	}
+	
+	/**
+	 * Checks whether the maximum period passed since the last notification.
+	 * 
+	 * @param now the current clock time
+	 * @return true if a notification is due without a change
+	 */
+	public synchronized boolean refreshDue(long now) {
+		return maxPeriod > 0 && sentOnce && now - lastSent >= maxPeriod;
+	}
+	
+	/**
+	 * Marks a deferred flush as scheduled.
+	 * 
+	 * @return false if one is already scheduled
+	 */
+	public synchronized boolean scheduleFlush() {
+		if (flushScheduled) {
+			return false;
+		}
+		flushScheduled = true;
+		return true;
+	}
+	
+	/**
+	 * Marks the scheduled flush as run.
+	 */
+	public synchronized void flushed() {
+		flushScheduled = false;
+	}
+	
+	public synchronized boolean isPending() {
+		return pending;
+	}
+	
+	public synchronized boolean isInFlight() {
+		return inFlight;
+	}
+	
+	/**
+	 * Returns the number of changes that were replaced by a newer one before
+	 * they could be sent.
+	 * 
+	 * @return the number of coalesced changes
+	 */
+	public synchronized int getCoalescedCount() {
+		return coalesced;
+	}
+	
+	public long getMaxPeriod() {
+		return maxPeriod / 1000000L;
+	}
+}
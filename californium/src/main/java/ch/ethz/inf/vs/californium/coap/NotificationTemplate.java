@@ -0,0 +1,104 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.coap;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The class NotificationTemplate holds a representation rendered once for
+ * all observers of a change that asked for the same content format. New
+ * notifications share its options and payload, so only the fields that
+ * differ per observer are set per response: MID, token, Observe, and type.
+ * 
+ * @author Matthias Kovatsch
+ */
+public class NotificationTemplate {
+
+// Members /////////////////////////////////////////////////////////////////////
+	
+	private final int code;
+	
+	/** The rendered options without the per-observer ones. */
+	private final List<Option> options;
+	
+	private final byte[] payload;
+	private final BlockSource payloadSource;
+
+// Constructors ////////////////////////////////////////////////////////////////
+	
+	/**
+	 * Captures the representation of a rendered response.
+	 * 
+	 * @param rendered the response of the resource handler
+	 */
+	public NotificationTemplate(Response rendered) {
+		
+		this.code = rendered.getCode();
+		this.options = new ArrayList<Option>(rendered.getOptionCount());
+		
+		for (Option opt : rendered.getOptions()) {
+			int nr = opt.getOptionNumber();
+			if (nr!=OptionNumberRegistry.TOKEN && nr!=OptionNumberRegistry.OBSERVE) {
+				options.add(opt);
+			}
+		}
+		
+		this.payloadSource = rendered.getPayloadSource();
+		this.payload = payloadSource==null ? rendered.getPayload() : null;
+	}
+
+// Methods /////////////////////////////////////////////////////////////////////
+	
+	/**
+	 * Creates a notification sharing the options and payload of the template.
+	 * Type, MID, token, and Observe option are left to
+	 * {@link Request#respond(Response)} and the {@link ObservingManager}.
+	 * 
+	 * @return the new response
+	 */
+	public Response newResponse() {
+		
+		Response response = new Response(code);
+		
+		for (Option opt : options) {
+			response.addOption(opt);
+		}
+		
+		if (payloadSource!=null) {
+			response.setPayloadSource(payloadSource);
+		} else {
+			response.setPayload(payload);
+		}
+		
+		return response;
+	}
+}
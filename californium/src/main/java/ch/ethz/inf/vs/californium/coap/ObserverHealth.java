@@ -0,0 +1,116 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.coap;
+
+/**
+ * The class ObserverHealth decides whether the next notification to an
+ * observer is confirmable. Healthy observers receive non-confirmable
+ * notifications with a confirmable check after a number of them; the
+ * interval between checks doubles with every check acknowledged right away
+ * up to a maximum. An observer that only acknowledged after retransmissions
+ * is degraded: it is checked with the base interval again, without
+ * doubling, until a check is acknowledged right away.
+ * 
+ * @author Matthias Kovatsch
+ */
+public class ObserverHealth {
+
+// Members /////////////////////////////////////////////////////////////////////
+	
+	private final int baseInterval;
+	private final int maxInterval;
+	
+	private int interval;
+	private int countdown;
+	
+	private boolean degraded = false;
+
+// Constructors ////////////////////////////////////////////////////////////////
+	
+	/**
+	 * Instantiates a new health record.
+	 * 
+	 * @param baseInterval the number of notifications until the first check
+	 * @param maxInterval the maximum number of notifications between checks
+	 */
+	public ObserverHealth(int baseInterval, int maxInterval) {
+		this.baseInterval = Math.max(baseInterval, 1);
+		this.maxInterval = Math.max(maxInterval, this.baseInterval);
+		this.interval = this.baseInterval;
+		this.countdown = this.baseInterval;
+	}
+
+// Methods /////////////////////////////////////////////////////////////////////
+	
+	/**
+	 * Counts a notification and decides its type.
+	 * 
+	 * @return true if the notification must be confirmable
+	 */
+	public synchronized boolean nextConfirmable() {
+		if (--countdown <= 0) {
+			countdown = interval;
+			return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Records the acknowledgement of a confirmable notification.
+	 * 
+	 * @param retransmissions the number of retransmissions it took
+	 */
+	public synchronized void acknowledged(int retransmissions) {
+		if (retransmissions > 0) {
+			degraded = true;
+			interval = baseInterval;
+		} else {
+			if (!degraded) {
+				interval = Math.min(interval * 2, maxInterval);
+			}
+			degraded = false;
+		}
+		countdown = interval;
+	}
+	
+	public synchronized boolean isDegraded() {
+		return degraded;
+	}
+	
+	/**
+	 * Returns the current number of notifications between two checks.
+	 * 
+	 * @return the check interval
+	 */
+	public synchronized int getInterval() {
+		return interval;
+	}
+}
@@ -30,18 +30,39 @@
  ******************************************************************************/
 package ch.ethz.inf.vs.californium.coap;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
 import ch.ethz.inf.vs.californium.coap.Message.messageType;
 import ch.ethz.inf.vs.californium.endpoint.LocalResource;
 import ch.ethz.inf.vs.californium.layers.TransactionLayer;
+import ch.ethz.inf.vs.californium.util.ConcurrentLongMap;
+import ch.ethz.inf.vs.californium.util.HashedWheelTimer;
 import ch.ethz.inf.vs.californium.util.Properties;
 
 /**
- * The TokenManager stores all tokens currently used in transfers. New transfers
- * can acquire unique tokens from the manager.
+ * The class ObservingManager keeps the observing relationships of the local
+ * resources and sends the notifications when a resource changed.
+ * <p>
+ * Relationships are indexed by resource, by interned {@link Peer}, by the
+ * MID of the last notification for matching RSTs, and by token. All indexes
+ * are concurrent maps, so adding, removing, and lookups are O(1) and do not
+ * lock the manager. Notifications are serialized per resource only, so a
+ * resource with many observers does not delay notifications of another one.
  * 
  * @author Matthias Kovatsch
  */
@@ -54,37 +75,241 @@ public class ObservingManager {
 
 // Inner class /////////////////////////////////////////////////////////////////
 	
-	private class ObservingRelationship {
-		public String clientID;
-		public String resourcePath;
-		public GETRequest request;
+	private static class ObservingRelationship {
+		public final Peer peer;
+		public final LocalResource resource;
+		public final GETRequest request;
+		public final KeyId key;
+		
+		// the MID of the last notification, guarded by this
 		public int lastMID;
 		
-		public ObservingRelationship(GETRequest request) {
+		// whether the peer was released by unindexing, guarded by this
+		public boolean released;
+		
+		// observers with equal keys receive the same representation
+		public final String renderKey;
+		
+		public final NotificationRate rate;
+		public final ObserverHealth health;
+		
+		// the notification due after the maximum period, guarded by the resource
+		public volatile HashedWheelTimer.Timeout refreshTask;
+		
+		public volatile boolean removed = false;
+		
+		public ObservingRelationship(GETRequest request, LocalResource resource, ObserverHealth health) {
 			
 			request.setMID(-1);
 			
-			this.clientID = request.getPeerAddress().toString();
-			this.resourcePath = request.getUriPath();
+			this.peer = PeerRegistry.getInstance().getPeer(request.getPeerAddress());
+			this.resource = resource;
 			this.request = request;
+			this.key = new KeyId(peer, request.getToken());
 			this.lastMID = -1;
+			this.health = health;
+			
+			int minPeriod = resource.getMinNotificationPeriod();
+			int maxPeriod = resource.getMaxNotificationPeriod();
+			
+			// rate parameters do not change the representation
+			StringBuilder render = new StringBuilder();
+			for (Option query : request.getOptions(OptionNumberRegistry.URI_QUERY)) {
+				String param = query.getStringValue();
+				if (param.startsWith("pmin=")) {
+					minPeriod = parsePeriod(param.substring(5), minPeriod);
+				} else if (param.startsWith("pmax=")) {
+					maxPeriod = parsePeriod(param.substring(5), maxPeriod);
+				} else {
+					render.append(param);
+					render.append('&');
+				}
+			}
+			for (Option accept : request.getOptions(OptionNumberRegistry.ACCEPT)) {
+				render.append('|');
+				render.append(accept.getIntValue());
+			}
+			this.renderKey = render.toString();
+			this.rate = new NotificationRate(minPeriod, maxPeriod);
+		}
+		
+		private static int parsePeriod(String seconds, int fallback) {
+			try {
+				return Integer.parseInt(seconds) * 1000;
+			} catch (NumberFormatException e) {
+				return fallback;
+			}
 		}
 	}
 	
+	/*
+	 * Sends a notification deferred by the minimum period.
+	 */
+	private class FlushTask implements Runnable {
+		
+		private ObservingRelationship observer;
+		
+		public FlushTask(ObservingRelationship observer) {
+			this.observer = observer;
+		}
+		
+		@Override
+		public void run() {
+			observer.rate.flushed();
+			flush(observer);
+		}
+	}
+	
+	/*
+	 * Sends a notification without change after the maximum period.
+	 */
+	private class RefreshTask implements Runnable {
+		
+		private ObservingRelationship observer;
+		
+		public RefreshTask(ObservingRelationship observer) {
+			this.observer = observer;
+		}
+		
+		@Override
+		public void run() {
+			long now = timer().getClock().nanoTime();
+			if (!observer.removed && observer.rate.refreshDue(now)) {
+				observer.rate.changed(now);
+				flush(observer);
+			}
+		}
+	}
+	
+	/*
+	 * Sends the latest pending state once a CON notification completed.
+	 */
+	private class NotificationHandler implements ReliabilityHandler {
+		
+		private ObservingRelationship observer;
+		
+		public NotificationHandler(ObservingRelationship observer) {
+			this.observer = observer;
+		}
+		
+		@Override
+		public void handleAcknowledgement(Message msg) {
+			observer.health.acknowledged(msg.getRetransmissioned());
+			observer.rate.completed();
+			flush(observer);
+		}
+		
+		@Override
+		public void handleReset(Message msg) {
+			// relationship is removed by the TransactionLayer
+			observer.rate.completed();
+		}
+		
+		@Override
+		public void handleTimeout(Message msg) {
+			// relationship is removed by the TransactionLayer
+			observer.rate.completed();
+			numObserversEvicted.incrementAndGet();
+			LOG.info(String.format("Evicted unresponsive observer: %s @ %s", observer.peer, observer.resource.getPath()));
+		}
+	}
+	
+	/*
+	 * Fans out a change of a resource on the notification executor.
+	 */
+	private class ChangeTask implements Runnable {
+		
+		private LocalResource resource;
+		private long enqueued;
+		
+		public ChangeTask(LocalResource resource, long enqueued) {
+			this.resource = resource;
+			this.enqueued = enqueued;
+		}
+		
+		@Override
+		public void run() {
+			
+			// later changes enqueue a new task, which renders again
+			pendingChanges.remove(resource, this);
+			
+			long lag = System.nanoTime() - enqueued;
+			lastLag = lag;
+			long max = maxLag.get();
+			while (lag > max && !maxLag.compareAndSet(max, lag)) {
+				max = maxLag.get();
+			}
+			
+			try {
+				notifyObservers(resource);
+			} catch (RuntimeException e) {
+				LOG.severe(String.format("Notifying observers failed: %s (%s)", resource.getPath(), e.getMessage()));
+			}
+		}
+	}
+	
+	static class NotificationThreadFactory implements ThreadFactory {
+		
+		private AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "NotificationThread-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+	
+	/*
+	 * The observers of one resource and the state of its notifications.
+	 */
+	private static class ObservedResource {
+		public final ConcurrentMap<Peer, ObservingRelationship> observers = new ConcurrentHashMap<Peer, ObservingRelationship>();
+		
+		// the representations of the latest state by render key, guarded by this
+		public final Map<String, NotificationTemplate> templates = new HashMap<String, NotificationTemplate>();
+	}
+	
 // Static Attributes ///////////////////////////////////////////////////////////
 	
 	private static ObservingManager singleton = new ObservingManager();
 
 // Members /////////////////////////////////////////////////////////////////////
 
-	/** Maps a resource path string to the resource's observers stored by client address string. */
-	private Map<String, Map<String, ObservingRelationship>> observersByResource = new HashMap<String, Map<String, ObservingRelationship>>();
+	/** Maps a resource to its observers stored by peer. */
+	private ConcurrentMap<LocalResource, ObservedResource> observersByResource = new ConcurrentHashMap<LocalResource, ObservedResource>();
+	
+	/** Maps a peer to its relationships stored by resource. */
+	private ConcurrentMap<Peer, ConcurrentMap<LocalResource, ObservingRelationship>> observersByPeer = new ConcurrentHashMap<Peer, ConcurrentMap<LocalResource, ObservingRelationship>>();
+	
+	/** Maps the packed peer ID and MID of the last notification to its relationship. */
+	private ConcurrentLongMap<ObservingRelationship> observersByMID = new ConcurrentLongMap<ObservingRelationship>();
+	
+	/** Maps peer and token of the observe request to its relationship. */
+	private ConcurrentMap<KeyId, ObservingRelationship> observersByToken = new ConcurrentHashMap<KeyId, ObservingRelationship>();
 	
-	/** Maps a peer address string to the clients relationships stored by resource path. */
-	private Map<String, Map<String, ObservingRelationship>> observersByClient = new HashMap<String, Map<String, ObservingRelationship>>();
+	private volatile int checkInterval = Properties.std.getInt("OBSERVING_REFRESH_INTERVAL");
+	private volatile int maxCheckInterval = Properties.std.getInt("OBSERVING_REFRESH_INTERVAL_MAX");
 	
-	private int checkInterval = Properties.std.getInt("OBSERVING_REFRESH_INTERVAL");
-	private Map<String, Integer> intervalByResource = new HashMap<String, Integer>();
+	/** The retransmission limit for CON notifications to degraded observers. */
+	private volatile int degradedRetransmit = Properties.std.getInt("OBSERVING_MAX_RETRANSMIT");
+	
+	/** The delay before retrying a notification that could not be sent, in nanoseconds. */
+	private volatile long retryDelay = Properties.std.getInt("EXCHANGE_LIFETIME") * 1000000L / 64;
+	
+	/** The timer for deferred notifications, the shared one if not set. */
+	private volatile HashedWheelTimer timer;
+	
+	/** Runs the fan-out of changes, null to notify on the calling thread. */
+	private volatile Executor notifier;
+	
+	/** Changes waiting for the notifier, at most one per resource. */
+	private ConcurrentMap<LocalResource, ChangeTask> pendingChanges = new ConcurrentHashMap<LocalResource, ChangeTask>();
+	
+	private AtomicLong numChangesCoalesced = new AtomicLong();
+	private AtomicLong numObserversEvicted = new AtomicLong();
+	private volatile long lastLag = 0L;
+	private AtomicLong maxLag = new AtomicLong();
 	
 // Constructors ////////////////////////////////////////////////////////////////
 	
@@ -92,6 +317,13 @@ public class ObservingManager {
 	 * Default singleton constructor.
 	 */
 	private ObservingManager() {
+		int poolSize = Properties.std.getInt("NOTIFICATION_POOL_SIZE");
+		if (poolSize > 0) {
+			// threads are only started with the first change
+			this.notifier = new ThreadPoolExecutor(poolSize, poolSize, 0L, TimeUnit.MILLISECONDS,
+					new LinkedBlockingQueue<Runnable>(),
+					new NotificationThreadFactory());
+		}
 	}
 	
 	public static ObservingManager getInstance() {
@@ -104,64 +336,301 @@ public class ObservingManager {
 		this.checkInterval = interval;
 	}
 	
-	public synchronized void notifyObservers(LocalResource resource) {
-
-		Map<String, ObservingRelationship> resourceObservers = observersByResource.get(resource.getPath());
+	/**
+	 * Sets the maximum number of NON notifications between two CON checks,
+	 * which healthy observers reach by acknowledging checks right away.
+	 * Applies to new observing relationships.
+	 * 
+	 * @param interval the maximum interval
+	 */
+	public void setMaxRefreshInterval(int interval) {
+		this.maxCheckInterval = interval;
+	}
+	
+	/**
+	 * Sets the retransmissions of CON notifications to observers that needed
+	 * retransmissions before, after which they are evicted.
+	 * 
+	 * @param maxRetransmit the retransmission limit
+	 */
+	public void setDegradedRetransmit(int maxRetransmit) {
+		this.degradedRetransmit = maxRetransmit;
+	}
+	
+	/**
+	 * Sets the timer for notifications deferred by the notification periods.
+	 * 
+	 * @param timer the timer
+	 */
+	public void setTimer(HashedWheelTimer timer) {
+		this.timer = timer;
+	}
+	
+	/**
+	 * Sets the executor that notifies the observers of changed resources.
+	 * 
+	 * @param notifier the executor, or null to notify on the thread that
+	 * reports the change
+	 */
+	public void setNotificationExecutor(Executor notifier) {
+		this.notifier = notifier;
+	}
+	
+	public Executor getNotificationExecutor() {
+		return notifier;
+	}
+	
+	/**
+	 * Reports a change of the resource and returns without waiting for the
+	 * notifications. Changes of a resource that is already waiting for the
+	 * notifier are merged, as its observers always receive the latest state.
+	 * 
+	 * @param resource the changed resource
+	 */
+	public void enqueueChange(LocalResource resource) {
+		
+		Executor current = notifier;
+		if (current==null) {
+			notifyObservers(resource);
+			return;
+		}
+		
+		if (!observersByResource.containsKey(resource)) {
+			return;
+		}
+		
+		ChangeTask task = new ChangeTask(resource, System.nanoTime());
+		if (pendingChanges.putIfAbsent(resource, task)!=null) {
+			numChangesCoalesced.incrementAndGet();
+			return;
+		}
+		
+		try {
+			current.execute(task);
+		} catch (RejectedExecutionException e) {
+			LOG.warning(String.format("Notification executor rejected change, notifying on caller: %s", resource.getPath()));
+			task.run();
+		}
+	}
+	
+	public void notifyObservers(LocalResource resource) {
 
-		synchronized(this) {
+		ObservedResource observed = observersByResource.get(resource);
 		
-			if (resourceObservers!=null && resourceObservers.size()>0) {
+		if (observed==null || observed.observers.isEmpty()) {
+			return;
+		}
+		
+		List<ObservingRelationship> notified = new ArrayList<ObservingRelationship>(observed.observers.size());
+		long now = timer().getClock().nanoTime();
+
+		// serialize notifications of this resource only
+		synchronized (observed) {
+			
+			LOG.info(String.format("Notifying observers: %d @ %s", observed.observers.size(), resource.getPath()));
+			
+			// render once per content format, patch per observer; later
+			// flushes of this state reuse the templates until the next change
+			Map<String, NotificationTemplate> templates = observed.templates;
+			templates.clear();
+			
+			for (ObservingRelationship observer : observed.observers.values()) {
 				
-				LOG.info(String.format("Notifying observers: %d @ %s", resourceObservers.size(), resource.getPath()));
+				// defer or coalesce if the observer is not ready for the next notification
+				long delay = observer.rate.changed(now);
+				if (delay > 0) {
+					scheduleFlush(observer, delay);
+					continue;
+				} else if (delay==NotificationRate.NONE) {
+					LOG.finer(String.format("Coalesced notification while in flight: %s @ %s", observer.peer, resource.getPath()));
+					continue;
+				}
 				
-				int check = -1;
+				selectType(observer);
 				
-				// get/initialize
-				if (!intervalByResource.containsKey(resource.getPath())) {
-					check = checkInterval;
-				} else {
-					check = intervalByResource.get(resource.getPath()) - 1;
+				if (!render(observer, templates)) {
+					continue;
 				}
-				// update
-				if (check <= 0) {
-					intervalByResource.put(resource.getPath(), checkInterval);
-					LOG.info(String.format("Refreshing observing relationship: %s", resource.getPath()));
-				} else {
-					intervalByResource.put(resource.getPath(), check);
+				if (!prepareResponse(observer)) {
+					// the change stays pending until an ID is free again
+					scheduleFlush(observer, retryDelay);
+					continue;
 				}
+				sent(observer, now);
 				
-				for (ObservingRelationship observer : resourceObservers.values()) {
-					
-					GETRequest request = observer.request;
-							
-					// check
-					if (check<=0) {
-						request.setType(messageType.CON);
-					} else {
-						request.setType(messageType.NON);
-					}
-					
-					// execute
-					resource.performGET(request);
-					prepareResponse(request);
-					
-					if (request.getPeerAddress() != null) {
-						request.getResponse().send();
-					} else {
-						// handle locally
-						request.handleResponse(request.getResponse());
-					}
-				}
+				notified.add(observer);
 			}
+			
+			LOG.fine(String.format("Rendered %d representations for %d observers @ %s", templates.size(), notified.size(), resource.getPath()));
+		}
+		
+		// send as a burst, which the writer thread drains in batches
+		for (ObservingRelationship observer : notified) {
+			send(observer);
 		}
 	}
 	
+	/*
+	 * Renders the latest state for an observer, reusing the representation of
+	 * observers with the same render key; must hold the lock of the resource.
+	 * Returns false if the handler did not respond right away.
+	 */
+	private boolean render(ObservingRelationship observer, Map<String, NotificationTemplate> templates) {
+		
+		GETRequest request = observer.request;
+		
+		NotificationTemplate template = templates.get(observer.renderKey);
+		if (template!=null) {
+			request.respond(template.newResponse());
+			return true;
+		}
+		
+		// execute
+		Response previous = request.getResponse();
+		observer.resource.performGET(request);
+		Response response = request.getResponse();
+		
+		if (response==null || response==previous) {
+			// deferred by the handler, so others with this key render on their own
+			LOG.warning(String.format("Resource did not respond to notification: %s @ %s", observer.peer, observer.resource.getPath()));
+			return false;
+		}
+		
+		templates.put(observer.renderKey, new NotificationTemplate(response));
+		return true;
+	}
+	
+	private void send(ObservingRelationship observer) {
+		GETRequest request = observer.request;
+		if (request.getPeerAddress() != null) {
+			try {
+				Communicator.getInstance().sendMessage(request.getResponse());
+			} catch (IOException e) {
+				LOG.warning(String.format("Could not send notification: %s @ %s: %s", observer.peer, observer.resource.getPath(), e.getMessage()));
+				// no acknowledgement will complete it, so send the state again later
+				observer.rate.failed();
+				scheduleFlush(observer, retryDelay);
+			}
+		} else {
+			// handle locally
+			request.handleResponse(request.getResponse());
+		}
+	}
 	
-	private void prepareResponse(Request request) {
+	/*
+	 * Sends the pending change of a single observer if it is ready.
+	 */
+	private void flush(ObservingRelationship observer) {
+		
+		ObservedResource observed = observersByResource.get(observer.resource);
+		if (observed==null) {
+			return;
+		}
+		
+		synchronized (observed) {
+			
+			if (observer.removed) {
+				return;
+			}
+			
+			long now = timer().getClock().nanoTime();
+			long delay = observer.rate.pendingDelay(now);
+			
+			if (delay==NotificationRate.NONE) {
+				return;
+			} else if (delay > 0) {
+				scheduleFlush(observer, delay);
+				return;
+			}
+			
+			// render the latest state, shared with the other observers of the change
+			selectType(observer);
+			if (!render(observer, observed.templates)) {
+				return;
+			}
+			if (!prepareResponse(observer)) {
+				scheduleFlush(observer, retryDelay);
+				return;
+			}
+			sent(observer, now);
+		}
+		
+		send(observer);
+	}
+	
+	private void scheduleFlush(ObservingRelationship observer, long delay) {
+		if (observer.rate.scheduleFlush()) {
+			// round up to milliseconds
+			timer().schedule(new FlushTask(observer), (delay + 999999L) / 1000000L);
+		}
+	}
+	
+	/*
+	 * Updates the rate control after a notification was prepared; must hold
+	 * the lock of the resource.
+	 */
+	private void sent(ObservingRelationship observer, long now) {
+		
+		Response response = observer.request.getResponse();
+		boolean confirmable = response.isConfirmable();
+		
+		observer.rate.sent(now, confirmable);
+		
+		if (confirmable) {
+			response.setReliabilityHandler(new NotificationHandler(observer));
+			
+			// give up early on observers that already missed a check
+			if (observer.health.isDegraded()) {
+				response.setMaxRetransmit(degradedRetransmit);
+			}
+		}
+		
+		if (observer.rate.getMaxPeriod() > 0) {
+			if (observer.refreshTask!=null) {
+				observer.refreshTask.cancel();
+			}
+			observer.refreshTask = timer().schedule(new RefreshTask(observer), observer.rate.getMaxPeriod());
+		}
+	}
+	
+	/*
+	 * Decides the type of the next notification by the health of the observer.
+	 */
+	private void selectType(ObservingRelationship observer) {
+		if (observer.health.nextConfirmable()) {
+			observer.request.setType(messageType.CON);
+			LOG.fine(String.format("Checking observing relationship: %s @ %s", observer.peer, observer.resource.getPath()));
+		} else {
+			observer.request.setType(messageType.NON);
+		}
+	}
+	
+	private HashedWheelTimer timer() {
+		HashedWheelTimer current = timer;
+		if (current==null) {
+			current = HashedWheelTimer.getInstance();
+			timer = current;
+		}
+		return current;
+	}
+	
+	
+	/*
+	 * Assigns the MID and Observe option of the current response; returns
+	 * false if all MIDs towards the peer are within the exchange lifetime.
+	 */
+	private boolean prepareResponse(ObservingRelationship observer) {
+		
+		Request request = observer.request;
 
 		// consecutive response require new MID that must be stored for RST matching
 		if (request.getResponse().getMID()==-1) {
-			request.getResponse().setMID(TransactionLayer.nextMessageID());
+			int mid = TransactionLayer.nextMessageID(request.getPeerAddress());
+			if (mid < 0) {
+				LOG.warning(String.format("No message ID available for notification: %s @ %s", observer.peer, observer.resource.getPath()));
+				return false;
+			}
+			request.getResponse().setMID(mid);
 		}
 		
 		// 16-bit second counter
@@ -169,147 +638,296 @@ public class ObservingManager {
 		request.getResponse().setOption(new Option(secs, OptionNumberRegistry.OBSERVE));
 		
 		// store MID for RST matching
-		updateLastMID(request.getPeerAddress().toString(), request.getUriPath(), request.getResponse().getMID());
+		updateLastMID(observer, request.getResponse().getMID());
+		return true;
 	}
 	
 	
 	public void addObserver(GETRequest request, LocalResource resource) {
 		
-		synchronized (this) {
-			request.setObserving(true);
-			
-			ObservingRelationship toAdd = new ObservingRelationship(request);
+		request.setObserving(true);
 		
-			// get clients map for the given resource path
-			Map<String, ObservingRelationship> resourceObservers = observersByResource.get(resource.getPath());
-			if (resourceObservers==null) {
-				// lazy creation
-				resourceObservers = new HashMap<String, ObservingRelationship>();
-				observersByResource.put(resource.getPath(), resourceObservers);
+		ObservingRelationship toAdd = new ObservingRelationship(request, resource, new ObserverHealth(checkInterval, maxCheckInterval));
+		
+		// get observers of the given resource
+		ObservedResource observed = observersByResource.get(resource);
+		if (observed==null) {
+			// lazy creation
+			observed = new ObservedResource();
+			ObservedResource existing = observersByResource.putIfAbsent(resource, observed);
+			if (existing!=null) {
+				observed = existing;
 			}
-			// get resource map for given client address
-			Map<String, ObservingRelationship> clientObservees = observersByClient.get(request.getPeerAddress().toString());
-			if (clientObservees==null) {
+		}
+		
+		// save relationship for notifications triggered by resource
+		// and pin the peer until it is unindexed
+		toAdd.peer.retain();
+		ObservingRelationship previous = observed.observers.put(toAdd.peer, toAdd);
+		if (previous!=null) {
+			// re-registration replaces the previous relationship
+			unindex(previous);
+		}
+		
+		// save relationship for actions triggered by client
+		while (true) {
+			ConcurrentMap<LocalResource, ObservingRelationship> peerObservees = observersByPeer.get(toAdd.peer);
+			if (peerObservees==null) {
 				// lazy creation
-				clientObservees = new HashMap<String, ObservingRelationship>();
-				observersByClient.put(request.getPeerAddress().toString(), clientObservees);
+				peerObservees = new ConcurrentHashMap<LocalResource, ObservingRelationship>();
+				ConcurrentMap<LocalResource, ObservingRelationship> existing = observersByPeer.putIfAbsent(toAdd.peer, peerObservees);
+				if (existing!=null) {
+					peerObservees = existing;
+				}
 			}
+			peerObservees.put(resource, toAdd);
 			
-			// save relationship for notifications triggered by resource
-			resourceObservers.put(request.getPeerAddress().toString(), toAdd);
-			// save relationship for actions triggered by client
-			clientObservees.put(resource.getPath(), toAdd);
-			
-			LOG.info(String.format("Established observing relationship: %s @ %s", request.getPeerAddress().toString(), resource.getPath()));
-			
-			// update response
-			prepareResponse(request);
+			// retry if the map was dropped as empty in the meantime
+			if (observersByPeer.get(toAdd.peer)==peerObservees) {
+				break;
+			}
+			peerObservees.remove(resource, toAdd);
 		}
 		
+		observersByToken.put(toAdd.key, toAdd);
+		
+		LOG.info(String.format("Established observing relationship: %s @ %s", request.getPeerAddress().toString(), resource.getPath()));
+		
+		// update response, which counts as first notification
+		synchronized (observed) {
+			long now = timer().getClock().nanoTime();
+			if (prepareResponse(toAdd)) {
+				sent(toAdd, now);
+			} else {
+				// the response is not matched by MID, follow up once an ID is free
+				toAdd.rate.changed(now);
+				scheduleFlush(toAdd, retryDelay);
+			}
+		}
 	}
 	
-	public synchronized void removeObserver(String clientID) {
+	/**
+	 * Remove all observing relationships of a peer, e.g., when a
+	 * notification timed out.
+	 * 
+	 * @param peerAddress the peer address
+	 */
+	public void removeObserver(EndpointAddress peerAddress) {
 
-		Map<String, ObservingRelationship> clientObservees = observersByClient.get(clientID);
+		Map<LocalResource, ObservingRelationship> peerObservees = observersByPeer.get(PeerRegistry.getInstance().getPeer(peerAddress));
 		
-		if (clientObservees!=null) {
-
-			synchronized(this) {
-			for (Map<String, ObservingRelationship> entry : observersByResource.values()) {
-				entry.remove(clientID);
-			}
-			observersByClient.remove(clientID);
-			}
+		if (peerObservees!=null) {
 			
-			LOG.info(String.format("Terminated all observing relationships for client: %s", clientID));
+			for (ObservingRelationship observer : peerObservees.values()) {
+				remove(observer);
+			}
 			
+			LOG.info(String.format("Terminated all observing relationships for client: %s", peerAddress));
 		}
 	}
 
 	/**
 	 * Remove an observer by missing Observe option in GET.
 	 * 
-	 * @param clientID the peer address as string
+	 * @param peerAddress the peer address
 	 * @param resource the resource to un-observe.
 	 */
-	public synchronized void removeObserver(String clientID, LocalResource resource) {
+	public void removeObserver(EndpointAddress peerAddress, LocalResource resource) {
 		
-		Map<String, ObservingRelationship> resourceObservers = observersByResource.get(resource.getPath());
-		Map<String, ObservingRelationship> clientObservees = observersByClient.get(clientID);
+		ObservedResource observed = observersByResource.get(resource);
 		
-		if (resourceObservers!=null && clientObservees!=null) {
-			synchronized(this) {
-				if (resourceObservers.remove(clientID)!=null && clientObservees.remove(resource.getPath())!=null) {
-					LOG.info(String.format("Terminated observing relationship by GET: %s @ %s", clientID, resource.getPath()));
-					return;
-				}
+		if (observed!=null) {
+			ObservingRelationship observer = observed.observers.get(PeerRegistry.getInstance().getPeer(peerAddress));
+			if (observer!=null && remove(observer)) {
+				LOG.info(String.format("Terminated observing relationship by GET: %s @ %s", peerAddress, resource.getPath()));
+				return;
 			}
 		}
 		
 		// should not be called if not existent
-		LOG.warning(String.format("Cannot find observing relationship: %s @ %s", clientID, resource.getPath()));
+		LOG.warning(String.format("Cannot find observing relationship: %s @ %s", peerAddress, resource.getPath()));
 	}
 	
 	/**
 	 * Remove an observer by MID from RST.
 	 * 
-	 * @param clientID the peer address as string
+	 * @param peerAddress the peer address
 	 * @param mid the MID from the RST
 	 */
-	public void removeObserver(String clientID, int mid) {
+	public void removeObserver(EndpointAddress peerAddress, int mid) {
 		
-		ObservingRelationship toRemove = null;
+		ObservingRelationship observer = observersByMID.get(midKey(PeerRegistry.getInstance().getPeer(peerAddress), mid));
+		
+		if (observer!=null && remove(observer)) {
+			LOG.info(String.format("Terminated observing relationship by RST: %s @ %s", peerAddress, observer.resource.getPath()));
+			return;
+		}
+		
+		LOG.warning(String.format("Cannot find observing relationship by MID: %s|%d", peerAddress, mid));
+	}
+	
+	/**
+	 * Remove an observer by the token of its observe request.
+	 * 
+	 * @param peerAddress the peer address
+	 * @param token the token of the observe request
+	 * @return true if a relationship was removed
+	 */
+	public boolean removeObserver(EndpointAddress peerAddress, byte[] token) {
+		
+		ObservingRelationship observer = observersByToken.get(new KeyId(PeerRegistry.getInstance().getPeer(peerAddress), token));
+		
+		if (observer!=null && remove(observer)) {
+			LOG.info(String.format("Terminated observing relationship by token: %s @ %s", peerAddress, observer.resource.getPath()));
+			return true;
+		}
+		return false;
+	}
 
-		Map<String, ObservingRelationship> clientObservees = observersByClient.get(clientID);
-		
-		if (clientObservees!=null) {
-			for (ObservingRelationship entry : clientObservees.values()) {
-				if (mid==entry.lastMID && clientID.equals(entry.clientID)) {
-					// found it
-					toRemove = entry;
-					break;
-				}
+	public boolean isObserved(EndpointAddress peerAddress, LocalResource resource) {
+		ObservedResource observed = observersByResource.get(resource);
+		return observed!=null && observed.observers.containsKey(PeerRegistry.getInstance().getPeer(peerAddress));
+	}
+	
+	public int getObserverCount(LocalResource resource) {
+		ObservedResource observed = observersByResource.get(resource);
+		return observed!=null ? observed.observers.size() : 0;
+	}
+
+	/**
+	 * Returns the number of changed resources waiting for the notifier.
+	 * 
+	 * @return the queue depth
+	 */
+	public int getNotificationQueueDepth() {
+		return pendingChanges.size();
+	}
+	
+	/**
+	 * Returns the time the last change waited for the notifier.
+	 * 
+	 * @return the lag in milliseconds
+	 */
+	public long getNotificationLag() {
+		return lastLag / 1000000L;
+	}
+	
+	/**
+	 * Returns the longest time a change waited for the notifier.
+	 * 
+	 * @return the lag in milliseconds
+	 */
+	public long getMaxNotificationLag() {
+		return maxLag.get() / 1000000L;
+	}
+	
+	public String getStats() {
+		StringBuilder stats = new StringBuilder();
+		
+		stats.append("Observed resources: ");
+		stats.append(observersByResource.size());
+		stats.append('\n');
+		stats.append("Observing peers:    ");
+		stats.append(observersByPeer.size());
+		stats.append('\n');
+		stats.append("Observers evicted:  ");
+		stats.append(numObserversEvicted.get());
+		stats.append('\n');
+		stats.append("Changes queued:     ");
+		stats.append(getNotificationQueueDepth());
+		stats.append('\n');
+		stats.append("Changes coalesced:  ");
+		stats.append(numChangesCoalesced.get());
+		stats.append('\n');
+		stats.append("Notification lag:   ");
+		stats.append(getNotificationLag());
+		stats.append(" ms (max ");
+		stats.append(getMaxNotificationLag());
+		stats.append(" ms)");
+		
+		return stats.toString();
+	}
+	
+// Internal ////////////////////////////////////////////////////////////////////
+	
+	private static long midKey(Peer peer, int mid) {
+		// same layout as Message.transactionId()
+		return ((long) peer.getId() << 16) | (mid & 0xFFFF);
+	}
+	
+	private void updateLastMID(ObservingRelationship observer, int mid) {
+		
+		synchronized (observer) {
+			if (observer.lastMID!=-1) {
+				observersByMID.remove(midKey(observer.peer, observer.lastMID), observer);
 			}
+			observer.lastMID = mid;
+			observersByMID.put(midKey(observer.peer, mid), observer);
 		}
 		
-		if (toRemove!=null) {
-			synchronized(this) {
-				Map<String, ObservingRelationship> resourceObservers = observersByResource.get(toRemove.resourcePath);
-				
-				// FIXME Inconsistent state check
-				if (resourceObservers==null) {
-					LOG.severe(String.format("FIXME: ObservingManager has clientObservee, but no resourceObservers (%s @ %s)", clientID, toRemove.resourcePath));
-				}
-				
-				if (resourceObservers.remove(clientID)!=null && clientObservees.remove(toRemove.resourcePath)!=null) {
-					LOG.info(String.format("Terminated observing relationship by RST: %s @ %s", clientID, toRemove.resourcePath));
-					return;
+		// undo if removed concurrently
+		if (observer.removed) {
+			unindex(observer);
+		}
+		
+		LOG.finer(String.format("Updated last MID for observing relationship: %s @ %s", observer.peer, observer.resource.getPath()));
+	}
+	
+	/*
+	 * Removes the relationship from the resource and all indexes.
+	 */
+	private boolean remove(ObservingRelationship observer) {
+		
+		ObservedResource observed = observersByResource.get(observer.resource);
+		
+		if (observed==null || !observed.observers.remove(observer.peer, observer)) {
+			return false;
+		}
+		
+		if (observed.observers.isEmpty()) {
+			synchronized (observed) {
+				// do not hold on to representations nobody receives
+				if (observed.observers.isEmpty()) {
+					observed.templates.clear();
 				}
 			}
 		}
 		
-		LOG.warning(String.format("Cannot find observing relationship by MID: %s|%d", clientID, mid));
+		unindex(observer);
+		return true;
 	}
-
-	public boolean isObserved(String clientID, LocalResource resource) {
-		return observersByClient.containsKey(clientID) &&
-				observersByClient.get(clientID).containsKey(resource.getPath());
-	}
-
-	public void updateLastMID(String clientID, String path, int mid) {
+	
+	private void unindex(ObservingRelationship observer) {
 		
-		Map<String, ObservingRelationship> clientObservees = observersByClient.get(clientID);
+		observer.removed = true;
 		
-		if (clientObservees!=null) {
-			ObservingRelationship toUpdate = clientObservees.get(path);
-			if (toUpdate!=null) {
-				toUpdate.lastMID = mid;
-				
-				LOG.finer(String.format("Updated last MID for observing relationship: %s @ %s", clientID, toUpdate.resourcePath));
-				return;
+		HashedWheelTimer.Timeout refreshTask = observer.refreshTask;
+		if (refreshTask!=null) {
+			refreshTask.cancel();
+		}
+		
+		ConcurrentMap<LocalResource, ObservingRelationship> peerObservees = observersByPeer.get(observer.peer);
+		if (peerObservees!=null) {
+			peerObservees.remove(observer.resource, observer);
+			if (peerObservees.isEmpty()) {
+				observersByPeer.remove(observer.peer, peerObservees);
+			}
+		}
+		
+		observersByToken.remove(observer.key, observer);
+		
+		boolean release;
+		synchronized (observer) {
+			if (observer.lastMID!=-1) {
+				observersByMID.remove(midKey(observer.peer, observer.lastMID), observer);
 			}
+			// unindexed again if removed while its MID was updated
+			release = !observer.released;
+			observer.released = true;
 		}
 		
-		LOG.warning(String.format("Cannot find observing relationship to update MID: %s @ %s", clientID, path));
+		if (release) {
+			observer.peer.release();
+		}
 	}
 }
@@ -33,11 +33,14 @@ package ch.ethz.inf.vs.californium.coap;
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 
 /**
  * This class describes the functionality of the CoAP header options.
+ * <p>
+ * The value is a range of a byte array. Options of received messages are
+ * views on the options region of the datagram (see {@link OptionSet}), so
+ * reading them does not copy; setting a value replaces the range.
  * 
  * @author Dominique Im Obersteg, Daniel Pauli, and Matthias Kovatsch
  */
@@ -50,8 +53,14 @@ public class Option {
 	/** The option number defining the option type. */
 	private int optionNr;
 
-	/** The raw data of the option. */
-	private ByteBuffer value;
+	/** The raw data of the option, see {@link #offset} and {@link #length}. */
+	private byte[] value;
+	
+	/** The start of the value within {@link #value}. */
+	private int offset;
+	
+	/** The length of the value. */
+	private int length;
 
 // Constructors ////////////////////////////////////////////////////////////////
 
@@ -185,7 +194,14 @@ public class Option {
 	 * @return The byte array holding the data
 	 */
 	public byte[] getRawValue() {
-		return value.array();
+		if (value != null && (offset != 0 || length != value.length)) {
+			// copy the range of a decoded view, but do not mutate on read,
+			// as options are shared between notifications and threads
+			byte[] copy = new byte[length];
+			System.arraycopy(value, offset, copy, 0, length);
+			return copy;
+		}
+		return value;
 	}
 
 	/**
@@ -194,7 +210,17 @@ public class Option {
 	 * @param value the byte array.
 	 */
 	public void setValue(byte[] value) {
-		this.value = ByteBuffer.wrap(value);
+		setValue(value, 0, value.length);
+	}
+	
+	/*
+	 * Makes the option a view on the given range without copying it.
+	 * The range must not be modified afterwards.
+	 */
+	void setValue(byte[] bytes, int offset, int length) {
+		this.value = bytes;
+		this.offset = offset;
+		this.length = length;
 	}
 
 	/**
@@ -203,16 +229,18 @@ public class Option {
 	 * @return The integer representation of the current option's data
 	 */
 	public int getIntValue() {
-		int byteLength = value.capacity();
-		ByteBuffer temp = ByteBuffer.allocate(4);
-		for (int i = 0; i < (4 - byteLength); i++) {
-			temp.put((byte) 0);
-		}
-		for (int i = 0; i < byteLength; i++) {
-			temp.put(value.get(i));
-		}
+		return intValue(value, offset, length);
+	}
 	
-		int val = temp.getInt(0);
+	/*
+	 * Decodes an unsigned big-endian integer; longer values are truncated
+	 * to their lower 32 bits.
+	 */
+	static int intValue(byte[] bytes, int offset, int length) {
+		int val = 0;
+		for (int i = 0; i < length; ++i) {
+			val = (val << 8) | (bytes[offset + i] & 0xFF);
+		}
 		return val;
 	}
 
@@ -223,24 +251,15 @@ public class Option {
 	 */
 	public void setIntValue(int val) {
 		int neededBytes = 4;
-		if (val == 0) {
-			value = ByteBuffer.allocate(1);
-			value.put((byte) 0);
-		} else {
-			ByteBuffer aux = ByteBuffer.allocate(4);
-			aux.putInt(val);
-			for (int i = 3; i >= 0; i--) {
-				if (aux.get(3 - i) == 0x00) {
-					neededBytes--;
-				} else {
-					break;
-				}
-			}
-			value = ByteBuffer.allocate(neededBytes);
-			for (int i = neededBytes - 1; i >= 0; i--) {
-				value.put(aux.get(3 - i));
-			}
+		while (neededBytes > 1 && (val >>> (8 * (neededBytes - 1))) == 0) {
+			--neededBytes;
 		}
+		
+		byte[] bytes = new byte[neededBytes];
+		for (int i = 0; i < neededBytes; ++i) {
+			bytes[i] = (byte) (val >>> (8 * (neededBytes - 1 - i)));
+		}
+		setValue(bytes);
 	}
 
 	/**
@@ -251,7 +270,9 @@ public class Option {
 	public String getStringValue() {
 		String result = "";
 		try {
-			result = new String(value.array(), "UTF8");
+			if (value != null) {
+				result = new String(value, offset, length, "UTF8");
+			}
 		} catch (UnsupportedEncodingException e) {
 			System.err.println("String conversion error");
 		}
@@ -265,7 +286,7 @@ public class Option {
 	 * current option.
 	 */
 	public void setStringValue(String str) {
-		value = ByteBuffer.wrap(str.getBytes());
+		setValue(str.getBytes());
 	}
 
 	/**
@@ -278,13 +299,22 @@ public class Option {
 	}
 
 	/**
-	 * This method returns the length of the option's data in the ByteBuffer
+	 * This method returns the length of the option's data
 	 * 
-	 * @return The length of the data stored in the ByteBuffer as number of
-	 * bytes
+	 * @return The length of the data as number of bytes
 	 */
 	public int getLength() {
-		return value!=null ? value.capacity() : 0;
+		return value!=null ? length : 0;
+	}
+	
+	/*
+	 * Writes the value at the position of the buffer without copying it
+	 * into an intermediate array.
+	 */
+	void writeValue(ByteBuffer buffer) {
+		if (value != null) {
+			buffer.put(value, offset, length);
+		}
 	}
 
 // Methods /////////////////////////////////////////////////////////////////////
@@ -294,7 +324,15 @@ public class Option {
 		final int prime = 31;
 		int result = 1;
 		result = prime * result + optionNr;
-		result = prime * result + Arrays.hashCode(getRawValue());
+		int hash = 0;
+		if (value != null) {
+			// same as Arrays.hashCode() over the value range
+			hash = 1;
+			for (int i = 0; i < length; ++i) {
+				hash = prime * hash + value[offset + i];
+			}
+		}
+		result = prime * result + hash;
 		return result;
 	}
 
@@ -309,11 +347,15 @@ public class Option {
 		Option other = (Option) obj;
 		if (optionNr != other.optionNr)
 			return false;
-		if (getRawValue() == null) {
-			if (other.getRawValue() != null)
-				return false;
-		} else if (!Arrays.equals(this.getRawValue(), other.getRawValue()))
+		if (value == null || other.value == null) {
+			return value == other.value;
+		}
+		if (length != other.length)
 			return false;
+		for (int i = 0; i < length; ++i) {
+			if (value[offset + i] != other.value[other.offset + i])
+				return false;
+		}
 		return true;
 	}
 
@@ -378,11 +420,15 @@ public class Option {
 	}
 
 	public boolean isDefaultValue() {
-		switch (optionNr) {
+		return isDefaultValue(optionNr, value, offset, getLength());
+	}
+	
+	static boolean isDefaultValue(int nr, byte[] bytes, int offset, int length) {
+		switch (nr) {
 		case OptionNumberRegistry.MAX_AGE:
-			return getIntValue() == DEFAULT_MAX_AGE;
+			return intValue(bytes, offset, length) == DEFAULT_MAX_AGE;
 		case OptionNumberRegistry.TOKEN:
-			return getLength() == 0;
+			return length == 0;
 		default:
 			return false;
 		}
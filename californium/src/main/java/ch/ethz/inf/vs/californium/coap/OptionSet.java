@@ -0,0 +1,275 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.coap;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * The class OptionSet holds the options of a message as a small array of
+ * (number, value offset, value length) entries sorted by option number, in
+ * the order options of the same number were added. The values of received
+ * options stay in one shared byte array, the options region of the datagram,
+ * and {@link Option} objects are only created as views on it when accessed.
+ * Options added as objects are kept by reference, so later changes to them,
+ * e.g., through {@link BlockOption#setNUM(int)}, are encoded as well.
+ * <p>
+ * Encoding iterates by index over the entries and allocates nothing.
+ * 
+ * @author Matthias Kovatsch
+ */
+final class OptionSet {
+
+// Constants ///////////////////////////////////////////////////////////////////
+	
+	private static final int INITIAL_CAPACITY = 4;
+	
+	/** Offset marking an entry whose value is held by its Option object. */
+	private static final int NO_OFFSET = -1;
+
+// Members /////////////////////////////////////////////////////////////////////
+	
+	/** The shared values of received options; never modified. */
+	private byte[] data;
+	
+	/** Option number, value offset, and value length per entry. */
+	private int[] entries;
+	
+	/** The Option objects per entry, created on first access. */
+	private Option[] views;
+	
+	private int count;
+
+// Constructors ////////////////////////////////////////////////////////////////
+	
+	/**
+	 * Instantiates an empty set.
+	 */
+	OptionSet() {
+		this.entries = new int[3 * INITIAL_CAPACITY];
+	}
+	
+	/**
+	 * Instantiates a set on received options without copying them.
+	 * 
+	 * @param data the options region of the datagram
+	 * @param index option number, value offset, and value length per option,
+	 * sorted by number as on the wire
+	 * @param count the number of options in the index
+	 */
+	OptionSet(byte[] data, int[] index, int count) {
+		this.data = data;
+		this.entries = index;
+		this.count = count;
+	}
+
+// Methods /////////////////////////////////////////////////////////////////////
+	
+	/**
+	 * Returns the number of options.
+	 * 
+	 * @return the number of entries
+	 */
+	int size() {
+		return count;
+	}
+	
+	int getNumber(int i) {
+		return entries[3*i];
+	}
+	
+	int getLength(int i) {
+		Option view = view(i);
+		return view != null ? view.getLength() : entries[3*i + 2];
+	}
+	
+	boolean isDefaultValue(int i) {
+		Option view = view(i);
+		if (view != null) {
+			return view.isDefaultValue();
+		}
+		return Option.isDefaultValue(entries[3*i], data, entries[3*i + 1], entries[3*i + 2]);
+	}
+	
+	/**
+	 * Writes the value of an entry at the position of the buffer.
+	 * 
+	 * @param i the entry index
+	 * @param buffer the target buffer
+	 */
+	void writeValue(int i, ByteBuffer buffer) {
+		Option view = view(i);
+		if (view != null) {
+			view.writeValue(buffer);
+		} else {
+			buffer.put(data, entries[3*i + 1], entries[3*i + 2]);
+		}
+	}
+	
+	/**
+	 * Returns the option of an entry, creating a view on the shared bytes
+	 * if the option was received.
+	 * 
+	 * @param i the entry index
+	 * @return the option object
+	 */
+	Option get(int i) {
+		Option view = view(i);
+		if (view == null) {
+			if (views == null) {
+				views = new Option[entries.length / 3];
+			}
+			view = Option.fromNumber(entries[3*i]);
+			view.setValue(data, entries[3*i + 1], entries[3*i + 2]);
+			views[i] = view;
+		}
+		return view;
+	}
+	
+	/**
+	 * Returns the first option with the given number.
+	 * 
+	 * @param nr the option number
+	 * @return the option, or null if there is none
+	 */
+	Option first(int nr) {
+		int i = lowerBound(nr);
+		return i < count && entries[3*i] == nr ? get(i) : null;
+	}
+	
+	/**
+	 * Adds all options with the given number to the list.
+	 * 
+	 * @param nr the option number
+	 * @param list the target list
+	 */
+	void collect(int nr, List<Option> list) {
+		for (int i = lowerBound(nr); i < count && entries[3*i] == nr; ++i) {
+			list.add(get(i));
+		}
+	}
+	
+	boolean contains(int nr) {
+		int i = lowerBound(nr);
+		return i < count && entries[3*i] == nr;
+	}
+	
+	/**
+	 * Adds an option after all options with the same or a lower number.
+	 * 
+	 * @param option the option to add
+	 */
+	void add(Option option) {
+		
+		int nr = option.getOptionNumber();
+		int i = lowerBound(nr + 1);
+		
+		if (count == entries.length / 3) {
+			grow();
+		} else if (views == null) {
+			views = new Option[entries.length / 3];
+		}
+		
+		System.arraycopy(entries, 3*i, entries, 3*(i+1), 3*(count-i));
+		System.arraycopy(views, i, views, i+1, count-i);
+		
+		entries[3*i] = nr;
+		entries[3*i + 1] = NO_OFFSET;
+		entries[3*i + 2] = 0;
+		views[i] = option;
+		
+		++count;
+	}
+	
+	/**
+	 * Removes all options with the given number.
+	 * 
+	 * @param nr the option number
+	 */
+	void remove(int nr) {
+		
+		int from = lowerBound(nr);
+		int to = from;
+		while (to < count && entries[3*to] == nr) {
+			++to;
+		}
+		
+		if (to == from) {
+			return;
+		}
+		
+		System.arraycopy(entries, 3*to, entries, 3*from, 3*(count-to));
+		if (views != null) {
+			System.arraycopy(views, to, views, from, count-to);
+			for (int i = count - (to-from); i < count; ++i) {
+				views[i] = null;
+			}
+		}
+		
+		count -= to - from;
+	}
+	
+	private Option view(int i) {
+		return views != null ? views[i] : null;
+	}
+	
+	/*
+	 * Returns the index of the first entry with a number not lower than nr.
+	 */
+	private int lowerBound(int nr) {
+		int low = 0;
+		int high = count;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (entries[3*mid] < nr) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+	
+	private void grow() {
+		
+		int capacity = Math.max(2 * count, INITIAL_CAPACITY);
+		
+		int[] newEntries = new int[3 * capacity];
+		System.arraycopy(entries, 0, newEntries, 0, 3*count);
+		entries = newEntries;
+		
+		Option[] newViews = new Option[capacity];
+		if (views != null) {
+			System.arraycopy(views, 0, newViews, 0, count);
+		}
+		views = newViews;
+	}
+}
@@ -0,0 +1,196 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.coap;
+
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ch.ethz.inf.vs.californium.util.HashedWheelTimer;
+import ch.ethz.inf.vs.californium.util.Properties;
+
+/**
+ * The class Peer represents a remote endpoint known to the
+ * {@link PeerRegistry}. Its numeric ID is used to build compact keys for the
+ * state kept per peer, e.g., transactions. It also holds the message ID
+ * range and the retransmission timeout estimation used towards the peer,
+ * the channel it was last heard on, and the time of the last activity,
+ * after which idle peers are evicted from the registry.
+ * <p>
+ * Components that key state by the peer, e.g., observing relationships or
+ * open exchanges, {@link #retain()} it for as long as the state exists, so
+ * that it is not evicted and replaced by a new peer with another ID.
+ * 
+ * @author Matthias Kovatsch
+ */
+public class Peer {
+
+// Constants ///////////////////////////////////////////////////////////////////
+	
+	private static final long TOUCH_RESOLUTION = 100000000L; // 100 ms
+	
+	/** The last activity of a peer evicted from the registry. */
+	private static final long EVICTED = Long.MIN_VALUE;
+
+// Members /////////////////////////////////////////////////////////////////////
+	
+	private final int id;
+	
+	private final EndpointAddress address;
+	
+	/** Created on the first message sent to the peer. */
+	private MessageIdTracker midTracker;
+	
+	/** Created on the first confirmable sent to the peer. */
+	private RtoEstimator rtoEstimator;
+	
+	/** The channel the peer was last heard on, if the UDPLayer uses several. */
+	private volatile DatagramChannel channel;
+	
+	/** The time of the last message from or to the peer in nanoseconds, or EVICTED. */
+	private final AtomicLong lastActivity;
+	
+	/** The number of records keyed by this peer, guarded by this. */
+	private int references = 0;
+
+// Constructors ////////////////////////////////////////////////////////////////
+	
+	Peer(int id, EndpointAddress address, long now) {
+		this.id = id;
+		this.address = address;
+		this.lastActivity = new AtomicLong(now);
+	}
+
+// Methods /////////////////////////////////////////////////////////////////////
+	
+	public int getId() {
+		return id;
+	}
+	
+	public EndpointAddress getAddress() {
+		return address;
+	}
+	
+	/**
+	 * Returns the next message ID to use for this peer.
+	 * 
+	 * @return the message ID, or -1 if the ID space is exhausted
+	 */
+	public int nextMessageID() {
+		return getMessageIdTracker().nextMessageID();
+	}
+	
+	public synchronized MessageIdTracker getMessageIdTracker() {
+		if (midTracker == null) {
+			midTracker = new MessageIdTracker((int) (Math.random() * 0x10000), Properties.std.getInt("EXCHANGE_LIFETIME"), HashedWheelTimer.SYSTEM_CLOCK);
+		}
+		return midTracker;
+	}
+	
+	public synchronized RtoEstimator getRtoEstimator() {
+		if (rtoEstimator == null) {
+			rtoEstimator = new RtoEstimator(Properties.std.getDbl("RESPONSE_TIMEOUT"), HashedWheelTimer.SYSTEM_CLOCK);
+		}
+		return rtoEstimator;
+	}
+	
+	public DatagramChannel getChannel() {
+		return channel;
+	}
+	
+	public void setChannel(DatagramChannel channel) {
+		this.channel = channel;
+	}
+	
+	public long getLastActivity() {
+		return lastActivity.get();
+	}
+	
+	/**
+	 * Pins the peer in the registry while state is keyed by it. Must be
+	 * balanced by {@link #release()}.
+	 */
+	public synchronized void retain() {
+		++references;
+	}
+	
+	/**
+	 * Unpins the peer once the state keyed by it was removed.
+	 */
+	public synchronized void release() {
+		--references;
+	}
+	
+	public synchronized int getReferenceCount() {
+		return references;
+	}
+	
+	public boolean isEvicted() {
+		return lastActivity.get() == EVICTED;
+	}
+	
+	/**
+	 * Records activity unless the peer was evicted.
+	 * 
+	 * @param now the current clock time
+	 * @return false if the peer was evicted and must not be used
+	 */
+	boolean touch(long now) {
+		long last = lastActivity.get();
+		while (last != EVICTED) {
+			// avoid writing the shared field on every message
+			if (now - last <= TOUCH_RESOLUTION || lastActivity.compareAndSet(last, now)) {
+				return true;
+			}
+			last = lastActivity.get();
+		}
+		return false;
+	}
+	
+	/**
+	 * Marks the peer as evicted if it is idle and no state is keyed by it.
+	 * 
+	 * @param now the current clock time
+	 * @param idleNanos the idle time
+	 * @return true if the peer was evicted by this call
+	 */
+	synchronized boolean evictIfIdle(long now, long idleNanos) {
+		if (references > 0) {
+			return false;
+		}
+		long last = lastActivity.get();
+		return last != EVICTED && now - last > idleNanos && lastActivity.compareAndSet(last, EVICTED);
+	}
+	
+	@Override
+	public String toString() {
+		return String.format("Peer %d (%s)", id, address != null ? address.toString() : "local");
+	}
+}
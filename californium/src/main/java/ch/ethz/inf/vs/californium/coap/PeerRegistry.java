@@ -0,0 +1,277 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.coap;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import ch.ethz.inf.vs.californium.util.ConcurrentLongMap;
+import ch.ethz.inf.vs.californium.util.HashedWheelTimer;
+import ch.ethz.inf.vs.californium.util.Properties;
+
+/**
+ * The PeerRegistry interns the {@link EndpointAddress}es of remote endpoints
+ * into canonical {@link Peer} objects and assigns each a numeric ID. IDs are
+ * never reused, so a key built from an ID cannot be confused with the state
+ * of another peer.
+ * <p>
+ * Peers without activity for PEER_IDLE_TIMEOUT are evicted together with
+ * their state, unless they are retained by state keyed by them elsewhere,
+ * e.g., observing relationships, exchanges, transfers, or transactions. The
+ * registry sweeps for them on the timer twice per timeout while it holds
+ * peers, so lookups stay plain map accesses. An evicted peer is marked as such before it is removed from the
+ * maps, so lookups never return it and there is at most one live peer per
+ * address. As an evicted peer starts over with a new message ID range, the
+ * timeout must exceed EXCHANGE_LIFETIME.
+ * 
+ * @author Matthias Kovatsch
+ */
+public class PeerRegistry {
+
+// Logging /////////////////////////////////////////////////////////////////////
+	
+	private static final Logger LOG = Logger.getLogger(PeerRegistry.class.getName());
+
+// Static Attributes ///////////////////////////////////////////////////////////
+	
+	/** The ID used for messages without peer address, i.e., local ones. */
+	public static final int LOCAL_ID = 0;
+	
+	private static volatile PeerRegistry singleton = new PeerRegistry(Properties.std.getInt("PEER_IDLE_TIMEOUT"), HashedWheelTimer.getInstance());
+
+// Inner Classes ///////////////////////////////////////////////////////////////
+	
+	private class SweepTask implements Runnable {
+		
+		@Override
+		public void run() {
+			sweepScheduled.set(false);
+			evictIdlePeers();
+			if (!peers.isEmpty()) {
+				scheduleSweep();
+			}
+		}
+	}
+
+// Members /////////////////////////////////////////////////////////////////////
+	
+	private final ConcurrentMap<EndpointAddress, Peer> peers = new ConcurrentHashMap<EndpointAddress, Peer>();
+	
+	/** IPv4 peers by address and port, to look up datagram sources without allocation. */
+	private final ConcurrentLongMap<Peer> peersV4 = new ConcurrentLongMap<Peer>();
+	
+	private final AtomicInteger nextId = new AtomicInteger(LOCAL_ID + 1);
+	
+	private final HashedWheelTimer timer;
+	private final HashedWheelTimer.Clock clock;
+	
+	/** The idle time after which peers are evicted, 0 to keep them. */
+	private final long idleNanos;
+	
+	private final AtomicBoolean sweepScheduled = new AtomicBoolean();
+	
+	private final AtomicInteger numEvicted = new AtomicInteger();
+	
+	/** The peer for messages without peer address. */
+	private final Peer localPeer;
+
+// Constructors ////////////////////////////////////////////////////////////////
+	
+	/**
+	 * Instantiates a new registry. Use {@link #getInstance()} for the one
+	 * shared by the layers.
+	 * 
+	 * @param idleTimeout the time after which idle peers are evicted in milliseconds, 0 to keep them
+	 * @param timer the timer for the sweeps, whose clock is the time source
+	 */
+	public PeerRegistry(long idleTimeout, HashedWheelTimer timer) {
+		this.timer = timer;
+		this.clock = timer.getClock();
+		this.idleNanos = Math.max(idleTimeout, 0L) * 1000000L;
+		this.localPeer = new Peer(LOCAL_ID, null, clock.nanoTime());
+	}
+	
+	public static PeerRegistry getInstance() {
+		return singleton;
+	}
+	
+	/**
+	 * Replaces the shared registry, e.g., to run the layers on another clock.
+	 * Peers of the previous registry are not carried over, so this must be
+	 * done before any message is exchanged.
+	 * 
+	 * @param registry the new shared registry
+	 */
+	public static void setInstance(PeerRegistry registry) {
+		singleton = registry;
+	}
+
+// Methods /////////////////////////////////////////////////////////////////////
+	
+	/**
+	 * Returns the peer for an address, registering it on first contact.
+	 * 
+	 * @param address the address of the remote endpoint, or null for local
+	 * @return the peer
+	 */
+	public Peer getPeer(EndpointAddress address) {
+		
+		if (address == null) {
+			return localPeer;
+		}
+		
+		long now = clock.nanoTime();
+		
+		while (true) {
+			
+			Peer peer = peers.get(address);
+			
+			if (peer == null) {
+				Peer created = new Peer(nextId.getAndIncrement(), address, now);
+				peer = peers.putIfAbsent(address, created);
+				if (peer == null) {
+					peer = created;
+					scheduleSweep();
+				}
+			}
+			
+			if (peer.touch(now)) {
+				return peer;
+			}
+			
+			// evicted in the meantime, start over with a new peer
+			peers.remove(address, peer);
+		}
+	}
+	
+	/**
+	 * Returns the peer for the source of a datagram. Use
+	 * {@link Peer#getAddress()} as canonical peer address of messages.
+	 * 
+	 * @param address the IP address
+	 * @param port the port
+	 * @return the peer
+	 */
+	public Peer getPeer(InetAddress address, int port) {
+		
+		if (address instanceof Inet4Address) {
+			
+			long key = v4Key(address, port);
+			
+			Peer peer = peersV4.get(key);
+			
+			if (peer != null) {
+				if (peer.touch(clock.nanoTime())) {
+					return peer;
+				}
+			}
+			
+			Peer live = getPeer(new EndpointAddress(address, port));
+			
+			// replace an evicted peer the sweep did not remove yet
+			Peer mapped = peersV4.putIfAbsent(key, live);
+			if (mapped != null && mapped != live) {
+				peersV4.replace(key, mapped, live);
+			}
+			return live;
+		}
+		
+		return getPeer(new EndpointAddress(address, port));
+	}
+	
+	/**
+	 * Returns the ID of the peer with the given address.
+	 * 
+	 * @param address the address, or null for local messages
+	 * @return the peer ID
+	 */
+	public int getPeerId(EndpointAddress address) {
+		return address != null ? getPeer(address).getId() : LOCAL_ID;
+	}
+	
+	/**
+	 * Evicts all peers without activity for the idle timeout.
+	 * 
+	 * @return the number of evicted peers
+	 */
+	public int evictIdlePeers() {
+		
+		if (idleNanos == 0) {
+			return 0;
+		}
+		
+		long now = clock.nanoTime();
+		int evicted = 0;
+		
+		for (Peer peer : peers.values()) {
+			// marked first, so lookups through either map skip it from now on
+			if (peer.evictIfIdle(now, idleNanos)) {
+				EndpointAddress address = peer.getAddress();
+				peers.remove(address, peer);
+				if (address.getAddress() instanceof Inet4Address) {
+					peersV4.remove(v4Key(address.getAddress(), address.getPort()), peer);
+				}
+				++evicted;
+			}
+		}
+		
+		if (evicted > 0) {
+			numEvicted.addAndGet(evicted);
+			LOG.fine(String.format("Evicted %d idle peers", evicted));
+		}
+		
+		return evicted;
+	}
+	
+	private static long v4Key(InetAddress address, int port) {
+		// the hash code of an Inet4Address is the address itself
+		return ((address.hashCode() & 0xFFFFFFFFL) << 16) | (port & 0xFFFF);
+	}
+	
+	private void scheduleSweep() {
+		if (idleNanos > 0 && sweepScheduled.compareAndSet(false, true)) {
+			timer.schedule(new SweepTask(), idleNanos / 2000000L);
+		}
+	}
+	
+	public int getPeerCount() {
+		return peers.size();
+	}
+	
+	public int getEvictedCount() {
+		return numEvicted.get();
+	}
+}
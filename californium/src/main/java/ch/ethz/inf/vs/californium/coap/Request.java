@@ -82,6 +82,9 @@ public class Request extends Message {
 	private int responseCount;
 	
 	private boolean isObserving = false;
+	
+	/** The priority for outgoing requests waiting for NSTART. */
+	private int priority = 0;
 
 // Constructors ////////////////////////////////////////////////////////////////
 
@@ -248,10 +251,10 @@ public class Request extends Message {
 						// establish new observation relationship
 						ObservingManager.getInstance().addObserver((GETRequest) this, this.resource);
 	
-					} else if (ObservingManager.getInstance().isObserved(this.getPeerAddress().toString(), this.resource)) {
+					} else if (ObservingManager.getInstance().isObserved(this.getPeerAddress(), this.resource)) {
 	
 						// terminate observation relationship on that resource
-						ObservingManager.getInstance().removeObserver(this.getPeerAddress().toString(), this.resource);
+						ObservingManager.getInstance().removeObserver(this.getPeerAddress(), this.resource);
 					}
 					
 				}
@@ -461,4 +464,19 @@ public class Request extends Message {
 	public void setObserving(boolean isObserving) {
 		this.isObserving = isObserving;
 	}
+	
+	public int getPriority() {
+		return priority;
+	}
+	
+	/**
+	 * Sets the priority of this request when it has to wait for an
+	 * outstanding request to the same endpoint. Higher values are sent first
+	 * if NSTART_PRIORITY_QUEUE is enabled.
+	 * 
+	 * @param priority the priority, 0 by default
+	 */
+	public void setPriority(int priority) {
+		this.priority = priority;
+	}
 }
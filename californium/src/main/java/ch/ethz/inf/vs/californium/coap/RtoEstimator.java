@@ -0,0 +1,175 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.coap;
+
+import ch.ethz.inf.vs.californium.util.HashedWheelTimer;
+
+/**
+ * The class RtoEstimator adapts the retransmission timeout towards one peer
+ * to the measured round trip times, following CoCoA (draft-bormann-core-cocoa).
+ * <p>
+ * Strong samples are taken from exchanges that completed without
+ * retransmission, weak samples from those that needed one or two, measured
+ * from the first transmission. Each feeds its own RFC 6298 estimator, and the
+ * resulting timeouts are blended into the overall RTO, weak ones with less
+ * weight. The backoff factor depends on the RTO, so that short timeouts back
+ * off faster, and an RTO that has not been updated for a while ages back
+ * towards the range of the default.
+ * 
+ * @author Matthias Kovatsch
+ */
+public class RtoEstimator {
+
+// Constants ///////////////////////////////////////////////////////////////////
+	
+	/** The maximum number of retransmissions for a weak sample. */
+	public static final int MAX_WEAK_RETRANSMISSIONS = 2;
+
+// Members /////////////////////////////////////////////////////////////////////
+	
+	private final HashedWheelTimer.Clock clock;
+	
+	/** The overall RTO in milliseconds. */
+	private double rto;
+	
+	// strong estimator
+	private double strongSrtt = -1d;
+	private double strongRttvar;
+	
+	// weak estimator
+	private double weakSrtt = -1d;
+	private double weakRttvar;
+	
+	/** The time of the last update or aging step in nanoseconds. */
+	private long lastUpdate;
+
+// Constructors ////////////////////////////////////////////////////////////////
+	
+	/**
+	 * Instantiates a new estimator.
+	 * 
+	 * @param initialRto the RTO before any sample, in milliseconds
+	 * @param clock the time source
+	 */
+	public RtoEstimator(double initialRto, HashedWheelTimer.Clock clock) {
+		this.clock = clock;
+		this.rto = initialRto;
+		this.lastUpdate = clock.nanoTime();
+	}
+
+// Methods /////////////////////////////////////////////////////////////////////
+	
+	/**
+	 * Updates the estimation with a completed exchange.
+	 * 
+	 * @param rtt the time from the first transmission to the reply in milliseconds
+	 * @param retransmissions the number of retransmissions before the reply
+	 */
+	public synchronized void update(double rtt, int retransmissions) {
+		
+		if (rtt < 0d || retransmissions > MAX_WEAK_RETRANSMISSIONS) {
+			// ambiguous sample
+			return;
+		}
+		
+		if (retransmissions == 0) {
+			
+			if (strongSrtt < 0d) {
+				strongSrtt = rtt;
+				strongRttvar = rtt / 2d;
+			} else {
+				strongRttvar = 0.75d * strongRttvar + 0.25d * Math.abs(strongSrtt - rtt);
+				strongSrtt = 0.875d * strongSrtt + 0.125d * rtt;
+			}
+			
+			// K = 4 for strong samples
+			rto = 0.5d * (strongSrtt + 4d * strongRttvar) + 0.5d * rto;
+			
+		} else {
+			
+			if (weakSrtt < 0d) {
+				weakSrtt = rtt;
+				weakRttvar = rtt / 2d;
+			} else {
+				weakRttvar = 0.75d * weakRttvar + 0.25d * Math.abs(weakSrtt - rtt);
+				weakSrtt = 0.875d * weakSrtt + 0.125d * rtt;
+			}
+			
+			// K = 1 for weak samples, which already include a timeout
+			rto = 0.25d * (weakSrtt + weakRttvar) + 0.75d * rto;
+		}
+		
+		lastUpdate = clock.nanoTime();
+	}
+	
+	/**
+	 * Returns the current retransmission timeout after aging.
+	 * 
+	 * @return the RTO in milliseconds
+	 */
+	public synchronized double getRto() {
+		
+		long now = clock.nanoTime();
+		
+		if (rto < 1000d) {
+			// short RTO not confirmed for 16 RTOs is doubled
+			while (rto < 1000d && now - lastUpdate > (long) (16d * rto * 1000000d)) {
+				lastUpdate += (long) (16d * rto * 1000000d);
+				rto = 2d * rto;
+			}
+		} else if (rto > 3000d) {
+			// long RTO not confirmed for 4 RTOs moves towards the default
+			while (rto > 3000d && now - lastUpdate > (long) (4d * rto * 1000000d)) {
+				lastUpdate += (long) (4d * rto * 1000000d);
+				rto = (2000d + rto) / 2d;
+			}
+		}
+		
+		return rto;
+	}
+	
+	/**
+	 * Returns the factor by which a timeout is multiplied for each
+	 * retransmission. It is chosen once per exchange for its initial timeout.
+	 * 
+	 * @param initialTimeout the initial timeout of the exchange in milliseconds
+	 * @return the variable backoff factor
+	 */
+	public static double backoffFactor(double initialTimeout) {
+		if (initialTimeout < 1000d) {
+			return 3d;
+		} else if (initialTimeout > 3000d) {
+			return 1.5d;
+		} else {
+			return 2d;
+		}
+	}
+}
@@ -30,14 +30,26 @@
  ******************************************************************************/
 package ch.ethz.inf.vs.californium.coap;
 
-import java.io.ByteArrayOutputStream;
-import java.util.HashSet;
-import java.util.Set;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.logging.Logger;
 
+import ch.ethz.inf.vs.californium.util.Properties;
+
 /**
  * The TokenManager stores all tokens currently used in transfers. New transfers
  * can acquire unique tokens from the manager.
+ * <p>
+ * Tokens are handled as 64-bit values, sent as their shortest big-endian
+ * byte representation. The lower bits of a token select a slot in a table of
+ * TOKEN_CAPACITY slots, which is split into stripes chosen by the calling
+ * thread. A slot holds its token while acquired, so acquiring, releasing, and
+ * checking a token is a single compare-and-set on the slot without locks or
+ * intermediate objects, and tokens are released by value. The upper bits are
+ * a counter per slot, or random with RANDOM_TOKENS to make tokens hard to
+ * guess for off-path attackers.
  * 
  * @author Matthias Kovatsch
  */
@@ -52,28 +64,77 @@ public class TokenManager {
 	// the empty token, used as default value
 	public static final byte[] emptyToken = new byte[0];
 	
-	private static TokenManager singleton = new TokenManager();
+	private static final int STRIPES = 16;
+	
+	private static volatile TokenManager singleton;
 
 // Members /////////////////////////////////////////////////////////////////////
 	
-	private Set<byte[]> acquiredTokens = new HashSet<byte[]>();
-
-	private long currentToken;
+	/*
+	 * A positive slot value is the acquired token, a value v <= 0 marks
+	 * a free slot whose last token was -v.
+	 */
+	private final AtomicLongArray slots;
+	
+	/** The number of bits of the slot index. */
+	private final int indexBits;
+	
+	private final int slotsPerStripe;
+	
+	/** The next slot to try per stripe, spreading tokens over the stripe. */
+	private final AtomicInteger[] cursors = new AtomicInteger[STRIPES];
+	
+	/** Secure random generators per stripe, null for counting tokens. */
+	private final SecureRandom[] randoms;
+	
+	private final AtomicBoolean emptyTokenAcquired = new AtomicBoolean();
 	
 // Constructors ////////////////////////////////////////////////////////////////
 	
 	/**
-	 * Default singleton constructor.
+	 * Instantiates a new manager. Use {@link #getInstance()} for the one used
+	 * by the layers.
+	 * 
+	 * @param capacity the maximum number of tokens acquired at the same time, rounded up to a power of two
+	 * @param randomTokens whether to use random instead of counting tokens
 	 */
-	private TokenManager() {
-		this.currentToken = (long) (Math.random() * 0x100l);
+	public TokenManager(int capacity, boolean randomTokens) {
+		
+		int bits = 0;
+		while ((1 << bits) < Math.max(capacity, STRIPES)) {
+			++bits;
+		}
+		
+		this.indexBits = bits;
+		this.slots = new AtomicLongArray(1 << bits);
+		this.slotsPerStripe = (1 << bits) / STRIPES;
+		
+		// start counting from random tokens
+		SecureRandom seed = new SecureRandom();
+		for (int i = 0; i < slots.length(); ++i) {
+			slots.set(i, -(((long) seed.nextInt(0x100) << indexBits) | i));
+		}
+		
+		for (int i = 0; i < STRIPES; ++i) {
+			cursors[i] = new AtomicInteger();
+		}
+		
+		if (randomTokens) {
+			// one per stripe against contention, each seeding itself
+			randoms = new SecureRandom[STRIPES];
+			for (int i = 0; i < STRIPES; ++i) {
+				randoms[i] = new SecureRandom();
+			}
+		} else {
+			randoms = null;
+		}
 	}
 	
 	public static TokenManager getInstance() {
 		if (singleton==null) {
-			synchronized (Communicator.class) {
+			synchronized (TokenManager.class) {
 				if (singleton==null) {
-					singleton = new TokenManager();
+					singleton = new TokenManager(Properties.std.getInt("TOKEN_CAPACITY"), Properties.std.getBool("RANDOM_TOKENS"));
 				}
 			}
 		}
@@ -82,28 +143,6 @@ public class TokenManager {
 	
 // Methods /////////////////////////////////////////////////////////////////////
 	
-	/**
-	 * Returns the next message ID to use out of the consecutive 16-bit range.
-	 * 
-	 * @return the current message ID
-	 */
-	private byte[] nextToken() {
-
-		++this.currentToken;
-		
-		LOG.fine("Token value: "+currentToken);
-		
-		long temp = this.currentToken;
-		ByteArrayOutputStream byteStream = new ByteArrayOutputStream(OptionNumberRegistry.TOKEN_LEN);  
-		
-		while (temp>0 && byteStream.size()<OptionNumberRegistry.TOKEN_LEN) {
-			byteStream.write((int)(temp & 0xff));
-			temp >>>= 8;
-		}
-		
-		return byteStream.toByteArray();
-	}
-	
 	/*
 	 * Returns an unique token.
 	 * 
@@ -115,45 +154,178 @@ public class TokenManager {
 	 * for concurrent transactions.
 	 * 
 	 */
-	public synchronized byte[] acquireToken(boolean preferEmptyToken) {
+	public byte[] acquireToken(boolean preferEmptyToken) {
 		
-		byte[] token = null;
-		if (preferEmptyToken && acquiredTokens.add(emptyToken)) {
-			token = emptyToken;
-		} else {
-			do {
-				token = nextToken();
-			} while (!acquiredTokens.add(token));
+		if (preferEmptyToken && emptyTokenAcquired.compareAndSet(false, true)) {
+			return emptyToken;
 		}
 		
-		return token;
+		long token = acquireTokenValue();
+		
+		if (token == 0) {
+			// all slots in use, fall back to an untracked random token
+			LOG.warning(String.format("All %d tokens in use, using untracked token", slots.length()));
+			byte[] untracked = new byte[OptionNumberRegistry.TOKEN_LEN];
+			new SecureRandom().nextBytes(untracked);
+			return untracked;
+		}
+		
+		return toBytes(token);
 	}
 	
 	public byte[] acquireToken() {
 		return acquireToken(false);
 	}
 	
+	/**
+	 * Acquires a token as value.
+	 * 
+	 * @return the token, or 0 if all are in use
+	 */
+	public long acquireTokenValue() {
+		
+		int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+		
+		// continue in the next stripe if the own is full
+		for (int s = 0; s < STRIPES; ++s) {
+			
+			int base = ((stripe + s) & (STRIPES - 1)) * slotsPerStripe;
+			AtomicInteger cursor = cursors[(stripe + s) & (STRIPES - 1)];
+			
+			for (int n = 0; n < slotsPerStripe; ++n) {
+				
+				int index = base + (cursor.getAndIncrement() & (slotsPerStripe - 1));
+				long last = slots.get(index);
+				
+				if (last <= 0) {
+					long token = nextToken(-last, index, (stripe + s) & (STRIPES - 1));
+					if (slots.compareAndSet(index, last, token)) {
+						return token;
+					}
+				}
+			}
+		}
+		
+		return 0;
+	}
+	
 	/*
 	 * Releases an acquired token and makes it available for reuse.
 	 * 
 	 * @param token The token to release
 	 */
-	public synchronized void releaseToken(byte[] token) {
+	public void releaseToken(byte[] token) {
+		
+		boolean released;
+		if (token.length == 0) {
+			released = emptyTokenAcquired.compareAndSet(true, false);
+		} else {
+			released = releaseTokenValue(toValue(token));
+		}
 		
-		if (!acquiredTokens.remove(token)) {
-			LOG.warning(String.format("Token to release is not acquired: %s\n", Option.hex(token)));
+		if (!released) {
+			LOG.warning(String.format("Token to release is not acquired: %s", Option.hex(token)));
 		}
 	}
 	
+	/**
+	 * Releases a token acquired as value.
+	 * 
+	 * @param token the token
+	 * @return true if the token was acquired
+	 */
+	public boolean releaseTokenValue(long token) {
+		return token > 0 && slots.compareAndSet(indexOf(token), token, -token);
+	}
+	
 	/*
 	 * Checks if a token is acquired by this manager.
 	 * 
 	 * @param token The token to check
 	 * @return True iff the token is currently in use
 	 */
-	public synchronized boolean isAcquired(byte[] token) {
-		return acquiredTokens.contains(token);
+	public boolean isAcquired(byte[] token) {
+		if (token.length == 0) {
+			return emptyTokenAcquired.get();
+		}
+		long value = toValue(token);
+		return value > 0 && slots.get(indexOf(value)) == value;
+	}
+	
+	/**
+	 * Returns the number of tokens that can be acquired at the same time.
+	 * 
+	 * @return the number of slots
+	 */
+	public int getCapacity() {
+		return slots.length();
+	}
+	
+	private int indexOf(long token) {
+		return (int) token & (slots.length() - 1);
+	}
+	
+	/*
+	 * The upper bits of the next token for a slot, never 0 so that the
+	 * token is positive and differs from the empty token.
+	 */
+	private long nextToken(long last, int index, int stripe) {
+		
+		long mask = Long.MAX_VALUE >>> indexBits;
+		long upper;
+		
+		if (randoms != null) {
+			do {
+				upper = randoms[stripe].nextLong() & mask;
+			} while (upper == 0);
+		} else {
+			upper = ((last >>> indexBits) + 1) & mask;
+			if (upper == 0) {
+				upper = 1;
+			}
+		}
+		
+		return (upper << indexBits) | index;
 	}
 	
+	/**
+	 * Returns the shortest big-endian representation of a token value.
+	 * 
+	 * @param token the positive token value
+	 * @return the token bytes
+	 */
+	public static byte[] toBytes(long token) {
+		
+		int length = (64 - Long.numberOfLeadingZeros(token) + 7) / 8;
+		byte[] bytes = new byte[length];
+		
+		for (int i = length - 1; i >= 0; --i) {
+			bytes[i] = (byte) token;
+			token >>>= 8;
+		}
+		
+		return bytes;
+	}
 	
+	/**
+	 * Returns the value of a token as created by {@link #toBytes(long)}.
+	 * 
+	 * @param token the token bytes
+	 * @return the positive token value, or -1 if the token was not
+	 * created by a TokenManager
+	 */
+	public static long toValue(byte[] token) {
+		
+		// only the shortest representation of a positive value is valid
+		if (token.length == 0 || token.length > 8 || token[0] == 0 || (token.length == 8 && token[0] < 0)) {
+			return -1;
+		}
+		
+		long value = 0;
+		for (int i = 0; i < token.length; ++i) {
+			value = (value << 8) | (token[i] & 0xFF);
+		}
+		
+		return value;
+	}
 }
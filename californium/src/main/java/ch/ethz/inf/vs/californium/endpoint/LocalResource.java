@@ -37,6 +37,7 @@ import ch.ethz.inf.vs.californium.coap.ObservingManager;
 import ch.ethz.inf.vs.californium.coap.POSTRequest;
 import ch.ethz.inf.vs.californium.coap.PUTRequest;
 import ch.ethz.inf.vs.californium.coap.Request;
+import ch.ethz.inf.vs.californium.util.Properties;
 
 /**
  * The class LocalResource provides the functionality of a CoAP server resource
@@ -55,6 +56,12 @@ import ch.ethz.inf.vs.californium.coap.Request;
  */
 public class LocalResource extends Resource {
 
+	// Members /////////////////////////////////////////////////////////////////
+	
+	// notification periods in milliseconds, -1 for the defaults
+	private int minNotificationPeriod = -1;
+	private int maxNotificationPeriod = -1;
+
 	// Constructors ////////////////////////////////////////////////////////////
 
 	public LocalResource(String resourceIdentifier, boolean hidden) {
@@ -71,9 +78,33 @@ public class LocalResource extends Resource {
 	 * Calling this method will notify all registered observers. Resources that
 	 * use this method must also call {@link #isObservable(true)} so that
 	 * clients will be registered after a successful GET with Observe option.
+	 * The notifications are sent by the notification executor of the
+	 * {@link ObservingManager}, so the method returns right away.
 	 */
 	protected void changed() {
-		ObservingManager.getInstance().notifyObservers(this);
+		ObservingManager.getInstance().enqueueChange(this);
+	}
+	
+	/**
+	 * Limits the rate of notifications to each observer of this resource.
+	 * Changes within the minimum period are coalesced, and observers get a
+	 * notification after the maximum period even without a change. Observers
+	 * can override the periods with the pmin and pmax query parameters.
+	 * 
+	 * @param minPeriod the minimum time between notifications in milliseconds, 0 for none
+	 * @param maxPeriod the maximum time between notifications in milliseconds, 0 for none
+	 */
+	public void setNotificationPeriods(int minPeriod, int maxPeriod) {
+		this.minNotificationPeriod = minPeriod;
+		this.maxNotificationPeriod = maxPeriod;
+	}
+	
+	public int getMinNotificationPeriod() {
+		return minNotificationPeriod >= 0 ? minNotificationPeriod : Properties.std.getInt("OBSERVING_MIN_PERIOD");
+	}
+	
+	public int getMaxNotificationPeriod() {
+		return maxNotificationPeriod >= 0 ? maxNotificationPeriod : Properties.std.getInt("OBSERVING_MAX_PERIOD");
 	}
 
 // REST Operations /////////////////////////////////////////////////////////////
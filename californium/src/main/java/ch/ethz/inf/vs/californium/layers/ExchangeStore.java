@@ -0,0 +1,145 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.layers;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import ch.ethz.inf.vs.californium.coap.KeyId;
+import ch.ethz.inf.vs.californium.coap.Request;
+import ch.ethz.inf.vs.californium.util.HashedWheelTimer;
+
+/**
+ * The class ExchangeStore keeps one record per open request/response exchange,
+ * identified by peer and token. It is shared by the {@link TokenLayer}, which
+ * creates and removes the record with the overall timeout, and the
+ * {@link MatchingLayer}, which matches responses against the request last
+ * sent in the exchange, e.g., the current block request. A response thus
+ * costs one lookup and one removal, and removing is atomic, so a response
+ * and a timeout cannot both complete the same exchange.
+ * 
+ * @author Matthias Kovatsch
+ */
+public class ExchangeStore {
+
+// Nested Classes //////////////////////////////////////////////////////////////
+	
+	/**
+	 * The state of one exchange.
+	 */
+	public static class Exchange {
+		
+		/** The key in the store, see {@link ch.ethz.inf.vs.californium.coap.Message#sequenceId()}. */
+		public final KeyId key;
+		
+		/** The request issued by the application. */
+		public final Request request;
+		
+		/** The token of the request, released when the exchange is removed. */
+		public final byte[] token;
+		
+		/** The request last sent in the exchange, e.g., a block request, written by the MatchingLayer. */
+		public volatile Request current;
+		
+		/** The overall timeout, null if the exchange only lives until the first response. */
+		public volatile HashedWheelTimer.Timeout timeoutTask;
+		
+		/** True once a notification was matched; later blocks of notifications then do not end the exchange. */
+		public volatile boolean observing;
+		
+		public Exchange(KeyId key, Request request) {
+			this.key = key;
+			this.request = request;
+			this.token = request.getToken();
+			this.current = request;
+		}
+	}
+
+// Members /////////////////////////////////////////////////////////////////////
+	
+	private final ConcurrentMap<KeyId, Exchange> exchanges = new ConcurrentHashMap<KeyId, Exchange>();
+
+// Methods /////////////////////////////////////////////////////////////////////
+	
+	/**
+	 * Opens a new exchange for a request, replacing the exchange of an
+	 * earlier request with the same token and peer. The peer is retained
+	 * while the exchange is stored.
+	 * 
+	 * @param exchange the exchange of the request
+	 * @return the replaced exchange, or null
+	 */
+	public Exchange put(Exchange exchange) {
+		exchange.key.getPeer().retain();
+		Exchange previous = exchanges.put(exchange.key, exchange);
+		if (previous != null) {
+			previous.key.getPeer().release();
+		}
+		return previous;
+	}
+	
+	public Exchange get(KeyId key) {
+		return exchanges.get(key);
+	}
+	
+	/**
+	 * Removes the exchange with the given key.
+	 * 
+	 * @param key the key
+	 * @return the removed exchange, or null if there was none
+	 */
+	public Exchange remove(KeyId key) {
+		Exchange removed = exchanges.remove(key);
+		if (removed != null) {
+			removed.key.getPeer().release();
+		}
+		return removed;
+	}
+	
+	/**
+	 * Removes the exchange only if it is still stored, i.e., was not
+	 * completed or replaced in the meantime.
+	 * 
+	 * @param exchange the exchange
+	 * @return true if this call removed it
+	 */
+	public boolean remove(Exchange exchange) {
+		if (exchanges.remove(exchange.key, exchange)) {
+			exchange.key.getPeer().release();
+			return true;
+		}
+		return false;
+	}
+	
+	public int size() {
+		return exchanges.size();
+	}
+}
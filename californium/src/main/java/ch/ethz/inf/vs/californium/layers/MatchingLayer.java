@@ -31,9 +31,9 @@
 package ch.ethz.inf.vs.californium.layers;
 
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
 
+import ch.ethz.inf.vs.californium.coap.BlockOption;
+import ch.ethz.inf.vs.californium.coap.KeyId;
 import ch.ethz.inf.vs.californium.coap.Message;
 import ch.ethz.inf.vs.californium.coap.OptionNumberRegistry;
 import ch.ethz.inf.vs.californium.coap.Request;
@@ -42,6 +42,8 @@ import ch.ethz.inf.vs.californium.coap.Response;
  * This class matches the request/response pairs using the token option. It must
  * be below the {@link TransferLayer}, which requires set buddies for each
  * message ({@link Response#getRequest()} and {@link Request#getResponse()}).
+ * The open requests are kept in the {@link ExchangeStore} shared with the
+ * {@link TokenLayer}, which then also removes them.
  * 
  * @author Matthias Kovatsch
  */
@@ -49,22 +51,16 @@ public class MatchingLayer extends UpperLayer {
 
 // Members /////////////////////////////////////////////////////////////////////
 	
-	private Map<String, RequestResponsePair> pairs = new HashMap<String, RequestResponsePair>();
+	private ExchangeStore exchanges;
 	
-// Nested Classes //////////////////////////////////////////////////////////////
+	// Constructors ////////////////////////////////////////////////////////////
 	
-	/*
-	 * Entity class to keep state of transfers
-	 */
-	private static class RequestResponsePair {
-		public String key;
-		public Request request;
+	public MatchingLayer(ExchangeStore exchanges) {
+		this.exchanges = exchanges;
 	}
 	
-	// Constructors ////////////////////////////////////////////////////////////
-	
 	public MatchingLayer() {
-
+		this(new ExchangeStore());
 	}
 
 	// I/O implementation //////////////////////////////////////////////////////
@@ -87,10 +83,11 @@ public class MatchingLayer extends UpperLayer {
 
 			Response response = (Response) msg;
 			
-			RequestResponsePair pair = getOpenRequest(msg.sequenceKey());
+			KeyId key = msg.sequenceId();
+			ExchangeStore.Exchange exchange = exchanges.get(key);
 
 			// check for missing token
-			if (pair == null && response.getToken().length==0) {
+			if (exchange == null && response.getToken().length==0) {
 				
 				LOG.info(String.format("Remote endpoint failed to echo token: %s", msg.key()));
 				
@@ -100,22 +97,26 @@ public class MatchingLayer extends UpperLayer {
 				return;
 			}
 			
-			if (pair != null) {
+			if (exchange != null) {
 				
 				// attach request and response to each other
-				response.setRequest(pair.request);
-				pair.request.setResponse(response);
+				Request request = exchange.current;
+				response.setRequest(request);
+				request.setResponse(response);
 
-				LOG.finer(String.format("Matched open request: %s", response.sequenceKey()));
+				LOG.finer(String.format("Matched open request: %s", key));
 				
-				// TODO: ObservingManager.getInstance().isObserving(msg.exchangeKey());
-				if (msg.getFirstOption(OptionNumberRegistry.OBSERVE)==null) {
-					removeOpenRequest(response.sequenceKey());
+				// without TokenLayer, the exchange ends with the response,
+				// unless it is a notification or a later block of one
+				if (msg.getFirstOption(OptionNumberRegistry.OBSERVE)!=null) {
+					exchange.observing = true;
+				} else if (exchange.timeoutTask==null && !(exchange.observing && isLaterBlock(response))) {
+					exchanges.remove(exchange);
 				}
 				
 			} else {
 			
-				LOG.info(String.format("Dropping unexpected response: %s", response.sequenceKey()));
+				LOG.info(String.format("Dropping unexpected response: %s", key));
 				return;
 			}
 			
@@ -124,37 +125,31 @@ public class MatchingLayer extends UpperLayer {
 		deliverMessage(msg);
 	}
 	
-	private RequestResponsePair addOpenRequest(Request request) {
-		
-		// create new Transaction
-		RequestResponsePair exchange = new RequestResponsePair();
-		exchange.key = request.sequenceKey();
-		exchange.request = request;
-		
-		LOG.finer(String.format("Storing open request: %s", exchange.key));
-		
-		// associate token with Transaction
-		pairs.put(exchange.key, exchange);
-		
-		return exchange;
-	}
-	
-	private RequestResponsePair getOpenRequest(String key) {
-		return pairs.get(key);
+	private static boolean isLaterBlock(Response response) {
+		BlockOption block2 = (BlockOption) response.getFirstOption(OptionNumberRegistry.BLOCK2);
+		return block2!=null && block2.getNUM() > 0;
 	}
 	
-	private void removeOpenRequest(String key) {
+	private void addOpenRequest(Request request) {
 		
-		RequestResponsePair exchange = pairs.remove(key);
-
-		LOG.finer(String.format("Cleared open request: %s", exchange.key));
+		KeyId key = request.sequenceId();
+		ExchangeStore.Exchange exchange = exchanges.get(key);
+		
+		if (exchange!=null) {
+			// e.g., the next block of a transfer
+			exchange.current = request;
+		} else {
+			exchanges.put(new ExchangeStore.Exchange(key, request));
+		}
+		
+		LOG.finer(String.format("Storing open request: %s", key));
 	}
 	
 	public String getStats() {
 		StringBuilder stats = new StringBuilder();
 		
 		stats.append("Open requests: ");
-		stats.append(pairs.size());
+		stats.append(exchanges.size());
 		stats.append('\n');
 		stats.append("Messages sent:     ");
 		stats.append(numMessagesSent);
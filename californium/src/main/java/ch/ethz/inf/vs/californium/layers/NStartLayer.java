@@ -0,0 +1,317 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.layers;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ch.ethz.inf.vs.californium.coap.Message;
+import ch.ethz.inf.vs.californium.coap.PeerRegistry;
+import ch.ethz.inf.vs.californium.coap.Request;
+import ch.ethz.inf.vs.californium.util.ConcurrentLongMap;
+import ch.ethz.inf.vs.californium.util.Properties;
+
+/**
+ * The class NStartLayer limits the number of outstanding confirmable
+ * requests per endpoint to NSTART. Further requests wait in a queue per
+ * endpoint, FIFO or ordered by {@link Request#getPriority()}, and are sent
+ * once the {@link TransactionLayer} below reports an outstanding one as
+ * acknowledged, reset, or timed out. Other messages pass through.
+ * 
+ * @author Matthias Kovatsch
+ */
+public class NStartLayer extends UpperLayer implements TransactionLayer.CompletionListener {
+
+// Members /////////////////////////////////////////////////////////////////////
+	
+	/** The maximum number of outstanding requests per endpoint, 0 for no limit. */
+	private int nstart;
+	
+	private int queueCapacity;
+	
+	private boolean priorityQueue;
+	
+	/** The scheduling state by peer ID. */
+	private ConcurrentLongMap<PeerQueue> queues = new ConcurrentLongMap<PeerQueue>();
+	
+	// metrics
+	private AtomicInteger numQueued = new AtomicInteger();
+	private AtomicInteger maxQueueDepth = new AtomicInteger();
+	private AtomicLong numDelayed = new AtomicLong();
+	private AtomicLong numReleased = new AtomicLong();
+	private AtomicLong totalWaitNanos = new AtomicLong();
+	private AtomicLong maxWaitNanos = new AtomicLong();
+
+// Nested Classes //////////////////////////////////////////////////////////////
+	
+	/*
+	 * Entity class for a waiting request
+	 */
+	private static class WaitingRequest {
+		Request request;
+		long sequence;
+		long enqueued;
+	}
+	
+	/*
+	 * Orders by priority, then by arrival
+	 */
+	private static final Comparator<WaitingRequest> PRIORITY_ORDER = new Comparator<WaitingRequest>() {
+		@Override
+		public int compare(WaitingRequest a, WaitingRequest b) {
+			if (a.request.getPriority() != b.request.getPriority()) {
+				return a.request.getPriority() > b.request.getPriority() ? -1 : 1;
+			}
+			return a.sequence < b.sequence ? -1 : (a.sequence == b.sequence ? 0 : 1);
+		}
+	};
+	
+	/*
+	 * Entity class to keep the scheduling state of an endpoint, guarded by itself
+	 */
+	private static class PeerQueue {
+		long peerId;
+		Set<Message> outstanding = Collections.newSetFromMap(new IdentityHashMap<Message, Boolean>());
+		Queue<WaitingRequest> waiting;
+		long sequence;
+		boolean retired;
+	}
+	
+	// Constructors ////////////////////////////////////////////////////////////
+	
+	public NStartLayer(int nstart) {
+		// member initialization
+		this.nstart = nstart;
+		this.queueCapacity = Properties.std.getInt("NSTART_QUEUE_CAPACITY");
+		this.priorityQueue = Properties.std.getBool("NSTART_PRIORITY_QUEUE");
+	}
+	
+	public NStartLayer() {
+		this(Properties.std.getInt("NSTART"));
+	}
+
+	// I/O implementation //////////////////////////////////////////////////////
+	
+	@Override
+	protected void doSendMessage(Message msg) throws IOException {
+		
+		if (nstart <= 0 || !(msg instanceof Request) || !msg.isConfirmable()) {
+			sendMessageOverLowerLayer(msg);
+			return;
+		}
+		
+		while (true) {
+			
+			PeerQueue queue = queueFor(msg);
+			
+			synchronized (queue) {
+				
+				if (queue.retired) {
+					// removed concurrently, look up again
+					continue;
+				}
+				
+				if (queue.outstanding.size() >= nstart) {
+					
+					if (queue.waiting.size() >= queueCapacity) {
+						throw new IOException(String.format("NSTART queue full for %s", msg.getPeerAddress()));
+					}
+					
+					WaitingRequest waiting = new WaitingRequest();
+					waiting.request = (Request) msg;
+					waiting.sequence = queue.sequence++;
+					waiting.enqueued = System.nanoTime();
+					queue.waiting.offer(waiting);
+					
+					updateMax(maxQueueDepth, queue.waiting.size());
+					numQueued.incrementAndGet();
+					numDelayed.incrementAndGet();
+					
+					LOG.fine(String.format("Delayed request for NSTART (%d waiting): %s", queue.waiting.size(), msg.key()));
+					return;
+				}
+				
+				queue.outstanding.add(msg);
+			}
+			
+			try {
+				sendMessageOverLowerLayer(msg);
+			} catch (IOException e) {
+				// not outstanding if it did not make it into the transaction table
+				transactionCompleted(msg);
+				throw e;
+			}
+			return;
+		}
+	}
+	
+	@Override
+	protected void doReceiveMessage(Message msg) {
+		deliverMessage(msg);
+	}
+	
+	@Override
+	public void transactionCompleted(Message msg) {
+		
+		if (nstart <= 0 || !(msg instanceof Request)) {
+			return;
+		}
+		
+		PeerQueue queue = queues.get(PeerRegistry.getInstance().getPeerId(msg.getPeerAddress()));
+		if (queue == null) {
+			return;
+		}
+		
+		Request next = null;
+		
+		synchronized (queue) {
+			
+			if (!queue.outstanding.remove(msg)) {
+				// not scheduled by this layer
+				return;
+			}
+			
+			WaitingRequest waiting = queue.waiting.poll();
+			
+			if (waiting != null) {
+				
+				numQueued.decrementAndGet();
+				numReleased.incrementAndGet();
+				
+				long wait = System.nanoTime() - waiting.enqueued;
+				totalWaitNanos.addAndGet(wait);
+				updateMax(maxWaitNanos, wait);
+				
+				next = waiting.request;
+				queue.outstanding.add(next);
+				
+			} else if (queue.outstanding.isEmpty()) {
+				
+				// idle endpoint
+				queue.retired = true;
+				queues.remove(queue.peerId, queue);
+			}
+		}
+		
+		if (next != null) {
+			
+			LOG.fine(String.format("Releasing request for NSTART: %s", next.key()));
+			
+			try {
+				sendMessageOverLowerLayer(next);
+			} catch (IOException e) {
+				LOG.severe(String.format("Sending delayed request failed: %s\n%s", next.key(), e.getMessage()));
+				// let the next one go
+				transactionCompleted(next);
+			}
+		}
+	}
+
+	// Internal ////////////////////////////////////////////////////////////////
+	
+	private PeerQueue queueFor(Message msg) {
+		
+		long peerId = PeerRegistry.getInstance().getPeerId(msg.getPeerAddress());
+		
+		PeerQueue queue = queues.get(peerId);
+		
+		if (queue == null) {
+			
+			PeerQueue created = new PeerQueue();
+			created.peerId = peerId;
+			if (priorityQueue) {
+				created.waiting = new PriorityQueue<WaitingRequest>(11, PRIORITY_ORDER);
+			} else {
+				created.waiting = new LinkedList<WaitingRequest>();
+			}
+			
+			queue = queues.putIfAbsent(peerId, created);
+			if (queue == null) {
+				queue = created;
+			}
+		}
+		
+		return queue;
+	}
+	
+	private static void updateMax(AtomicInteger max, int value) {
+		int current = max.get();
+		while (value > current && !max.compareAndSet(current, value)) {
+			current = max.get();
+		}
+	}
+	
+	private static void updateMax(AtomicLong max, long value) {
+		long current = max.get();
+		while (value > current && !max.compareAndSet(current, value)) {
+			current = max.get();
+		}
+	}
+	
+	public String getStats() {
+		StringBuilder stats = new StringBuilder();
+		
+		long released = numReleased.get();
+		
+		stats.append("NSTART:            ");
+		stats.append(nstart);
+		stats.append('\n');
+		stats.append("Active endpoints:  ");
+		stats.append(queues.size());
+		stats.append('\n');
+		stats.append("Waiting requests:  ");
+		stats.append(numQueued.get());
+		stats.append(" (max depth ");
+		stats.append(maxQueueDepth.get());
+		stats.append(")\n");
+		stats.append("Delayed requests:  ");
+		stats.append(numDelayed.get());
+		stats.append('\n');
+		stats.append("Wait time:         ");
+		stats.append(String.format("avg %.2fms, max %.2fms", released > 0 ? totalWaitNanos.get() / (released * 1000000d) : 0d, maxWaitNanos.get() / 1000000d));
+		stats.append('\n');
+		stats.append("Messages sent:     ");
+		stats.append(numMessagesSent);
+		stats.append('\n');
+		stats.append("Messages received: ");
+		stats.append(numMessagesReceived);
+		
+		return stats.toString();
+	}
+}
@@ -31,24 +31,23 @@
 package ch.ethz.inf.vs.californium.layers;
 
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
 
 import ch.ethz.inf.vs.californium.coap.CodeRegistry;
+import ch.ethz.inf.vs.californium.coap.KeyId;
 import ch.ethz.inf.vs.californium.coap.Message;
 import ch.ethz.inf.vs.californium.coap.OptionNumberRegistry;
 import ch.ethz.inf.vs.californium.coap.Request;
 import ch.ethz.inf.vs.californium.coap.Response;
 import ch.ethz.inf.vs.californium.coap.TokenManager;
+import ch.ethz.inf.vs.californium.util.HashedWheelTimer;
 import ch.ethz.inf.vs.californium.util.Properties;
 
 /**
  * This class takes care of unique tokens for each sequence of request/response
  * exchanges.
  * Additionally, the TokenLayer takes care of an overall timeout for each
- * request/response exchange.
+ * request/response exchange. The exchanges are kept in an {@link ExchangeStore}
+ * shared with the {@link MatchingLayer}.
  * 
  * @author Matthias Kovatsch
  */
@@ -56,51 +55,48 @@ public class TokenLayer extends UpperLayer {
 
 // Members /////////////////////////////////////////////////////////////////////
 	
-	private Map<String, RequestResponseSequence> exchanges = new HashMap<String, RequestResponseSequence>();
+	private ExchangeStore exchanges;
 
 	/** A timer for scheduling overall request timeouts. */
-	private Timer timer = new Timer(true);
+	private HashedWheelTimer timer;
 	
 	/** The time to wait for requests to complete, in milliseconds. */
 	private int sequenceTimeout;
 	
 // Nested Classes //////////////////////////////////////////////////////////////
 	
-	/*
-	 * Entity class to keep state of transfers
-	 */
-	private static class RequestResponseSequence {
-		public String key;
-		public Request request;
-		public TimerTask timeoutTask;
-	}
-	
 	/*
 	 * Utility class to provide transaction timeouts
 	 */
-	private class TimeoutTask extends TimerTask {
+	private class TimeoutTask implements Runnable {
 		
-		private RequestResponseSequence sequence;
+		private ExchangeStore.Exchange exchange;
 
-		public TimeoutTask(RequestResponseSequence sequence) {
-			this.sequence = sequence;
+		public TimeoutTask(ExchangeStore.Exchange exchange) {
+			this.exchange = exchange;
 		}
 		
 		@Override
 		public void run() {
-			transferTimedOut(sequence);
+			transferTimedOut(exchange);
 		}
 	}
 	
 	// Constructors ////////////////////////////////////////////////////////////
 	
-	public TokenLayer(int sequenceTimeout) {
+	public TokenLayer(ExchangeStore exchanges, int sequenceTimeout, HashedWheelTimer timer) {
 		// member initialization
+		this.exchanges = exchanges;
 		this.sequenceTimeout = sequenceTimeout;
+		this.timer = timer;
+	}
+	
+	public TokenLayer(ExchangeStore exchanges) {
+		this(exchanges, Properties.std.getInt("DEFAULT_OVERALL_TIMEOUT"), HashedWheelTimer.getInstance());
 	}
 	
 	public TokenLayer() {
-		this(Properties.std.getInt("DEFAULT_OVERALL_TIMEOUT"));
+		this(new ExchangeStore());
 	}
 
 	// I/O implementation //////////////////////////////////////////////////////
@@ -133,10 +129,25 @@ public class TokenLayer extends UpperLayer {
 
 			Response response = (Response) msg;
 			
-			RequestResponseSequence sequence = getExchange(msg.sequenceKey());
-
+			KeyId key = msg.sequenceId();
+			ExchangeStore.Exchange exchange;
+			
+			// TODO separate observe registry
+			if (msg.getFirstOption(OptionNumberRegistry.OBSERVE)==null) {
+				exchange = exchanges.remove(key);
+				if (exchange!=null) {
+					completeExchange(exchange);
+				}
+			} else {
+				exchange = exchanges.get(key);
+				// marked as observing by the MatchingLayer, stays open
+				if (exchange!=null && exchange.timeoutTask!=null) {
+					exchange.timeoutTask.cancel();
+				}
+			}
+			
 			// check for missing token
-			if (sequence == null && response.getToken().length==0) {
+			if (exchange == null && response.getToken().length==0) {
 				
 				LOG.warning(String.format("Remote endpoint failed to echo token: %s", msg.key()));
 				
@@ -146,23 +157,15 @@ public class TokenLayer extends UpperLayer {
 				return;
 			}
 			
-			if (sequence != null) {
-				
-				// cancel timeout
-				sequence.timeoutTask.cancel();
-				
-				// TODO separate observe registry
-				if (msg.getFirstOption(OptionNumberRegistry.OBSERVE)==null) {
-					removeExchange(msg.sequenceKey());
-				}
+			if (exchange != null) {
 
-				LOG.info(String.format("Incoming response from %s: %s // RTT: %fms", ((Response) msg).getRequest().getUriPath(), msg.sequenceKey(), ((Response) msg).getRTT()));
+				LOG.info(String.format("Incoming response from %s: %s // RTT: %fms", ((Response) msg).getRequest().getUriPath(), key, ((Response) msg).getRTT()));
 				
 				deliverMessage(msg);
 				
 			} else {
 			
-				LOG.warning(String.format("Dropping unexpected response: %s", response.sequenceKey()));
+				LOG.warning(String.format("Dropping unexpected response: %s", key));
 			}
 			
 		} else if (msg instanceof Request) {
@@ -173,51 +176,50 @@ public class TokenLayer extends UpperLayer {
 		}
 	}
 	
-	private synchronized RequestResponseSequence addExchange(Request request) {
-		
-		// be aware when manually setting tokens, as request/response will be replace
-		removeExchange(request.sequenceKey());
-		
-		// create new Transaction
-		RequestResponseSequence sequence = new RequestResponseSequence();
-		sequence.key = request.sequenceKey();
-		sequence.request = request;
-		sequence.timeoutTask = new TimeoutTask(sequence);
+	private ExchangeStore.Exchange addExchange(Request request) {
 		
-		// associate token with Transaction
-		exchanges.put(sequence.key, sequence);
+		// create new exchange
+		ExchangeStore.Exchange exchange = new ExchangeStore.Exchange(request.sequenceId(), request);
+		exchange.timeoutTask = timer.schedule(new TimeoutTask(exchange), sequenceTimeout);
 		
-		timer.schedule(sequence.timeoutTask, sequenceTimeout);
+		// be aware when manually setting tokens, as request/response will be replace
+		ExchangeStore.Exchange replaced = exchanges.put(exchange);
+		if (replaced!=null) {
+			if (replaced.timeoutTask!=null) {
+				replaced.timeoutTask.cancel();
+			}
+			LOG.finer(String.format("Replaced exchange: %s", replaced.key));
+		}
 
-		LOG.fine(String.format("Stored new exchange: %s", sequence.key));
+		LOG.fine(String.format("Stored new exchange: %s", exchange.key));
 		
-		return sequence;
+		return exchange;
 	}
 	
-	private RequestResponseSequence getExchange(String key) {
-		return exchanges.get(key);
-	}
-	
-	private synchronized void removeExchange(String key) {
-		
-		RequestResponseSequence exchange = exchanges.remove(key);
+	/*
+	 * Called by the thread that removed the exchange from the store.
+	 */
+	private void completeExchange(ExchangeStore.Exchange exchange) {
 		
-		if (exchange!=null) {
-			
+		if (exchange.timeoutTask!=null) {
 			exchange.timeoutTask.cancel();
-			
-			TokenManager.getInstance().releaseToken(exchange.request.getToken());
-	
-			LOG.finer(String.format("Cleared exchange: %s", exchange.key));
 		}
+		
+		TokenManager.getInstance().releaseToken(exchange.token);
+
+		LOG.finer(String.format("Cleared exchange: %s", exchange.key));
 	}
 	
-	private void transferTimedOut(RequestResponseSequence exchange) {
+	private void transferTimedOut(ExchangeStore.Exchange exchange) {
+		
+		// a response might have completed the exchange in the meantime
+		if (!exchanges.remove(exchange)) {
+			return;
+		}
 		
-		// cancel transaction
-		removeExchange(exchange.key);
+		completeExchange(exchange);
 		
-		LOG.warning(String.format("Request/Response exchange timed out: %s", exchange.request.sequenceKey()));
+		LOG.warning(String.format("Request/Response exchange timed out: %s", exchange.key));
 		
 		// call event handler
 		exchange.request.handleTimeout();
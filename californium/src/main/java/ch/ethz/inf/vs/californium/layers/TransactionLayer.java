@@ -31,17 +31,22 @@
 package ch.ethz.inf.vs.californium.layers;
 
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.LinkedHashMap;
-import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Queue;
 
 import ch.ethz.inf.vs.californium.coap.CodeRegistry;
+import ch.ethz.inf.vs.californium.coap.EndpointAddress;
 import ch.ethz.inf.vs.californium.coap.Message;
 import ch.ethz.inf.vs.californium.coap.ObservingManager;
+import ch.ethz.inf.vs.californium.coap.Peer;
+import ch.ethz.inf.vs.californium.coap.ReliabilityHandler;
+import ch.ethz.inf.vs.californium.coap.PeerRegistry;
 import ch.ethz.inf.vs.californium.coap.Response;
+import ch.ethz.inf.vs.californium.coap.RtoEstimator;
 import ch.ethz.inf.vs.californium.coap.UnsupportedRequest;
+import ch.ethz.inf.vs.californium.util.ConcurrentLongMap;
+import ch.ethz.inf.vs.californium.util.HashedWheelTimer;
 import ch.ethz.inf.vs.californium.util.Properties;
 
 /**
@@ -52,73 +57,174 @@ import ch.ethz.inf.vs.californium.util.Properties;
  * corresponding ACK/RST, detection and cancellation of duplicate messages,
  * retransmission of ACK/RST messages upon receiving duplicate confirmable
  * messages.
+ * <p>
+ * Received messages are remembered for EXCHANGE_LIFETIME, the time within
+ * which a peer may retransmit them. Replies to confirmables are kept in
+ * serialized form, so answering a duplicate costs a single datagram send.
  * 
  * @author Matthias Kovatsch
  */
 public class TransactionLayer extends UpperLayer {
 
-// Static attributes ///////////////////////////////////////////////////////////
-
-	/** The message ID used for newly generated messages. */
-	private static int currentMID = (int) (Math.random() * 0x10000);
-
-	/**
-	 * Returns the next message ID to use out of the consecutive 16-bit range.
-	 * 
-	 * @return the current message ID
-	 */
-	public static int nextMessageID() {
-
-		currentMID = ++currentMID % 0x10000;
-
-		return currentMID;
-	}
-	
 // Members /////////////////////////////////////////////////////////////////////
 
-	/** The timer daemon to schedule retransmissions. */
-	private Timer timer = new Timer(true); // run as daemon
+	/** The timer to schedule retransmissions. */
+	private HashedWheelTimer timer;
 
-	/** The Table to store the transactions of outgoing messages. */
-	private Map<String, Transaction> transactionTable = new HashMap<String, Transaction>();
+	/** The Table to store the transactions of outgoing messages by {@link Message#transactionId()}. */
+	private ConcurrentLongMap<Transaction> transactionTable = new ConcurrentLongMap<Transaction>();
 
-	/** The cache for duplicate detection. */
-	private MessageCache dupCache = new MessageCache();
-
-	// Cache used to retransmit replies to incoming messages
-	private MessageCache replyCache = new MessageCache();
+	/** The received messages for duplicate detection and reply retransmissions. */
+	private Deduplicator deduplicator;
+	
+	/** Notified when a confirmable is acknowledged, reset, or given up. */
+	private CompletionListener completionListener;
 
 // Nested Classes //////////////////////////////////////////////////////////////
 
 	/**
-	 * Entity class to keep state of retransmissions.
+	 * The interface for the layer above to learn when confirmables leave the
+	 * transaction table, including empty ACKs that are not delivered upwards.
+	 */
+	public interface CompletionListener {
+		void transactionCompleted(Message msg);
+	}
+
+	/**
+	 * Entity class to keep state of retransmissions. The retransmission
+	 * schedule is guarded by the transaction itself.
 	 */
 	private static class Transaction {
+		long id;
 		Message msg;
-		RetransmitTask retransmitTask;
+		Peer peer; // retained until completion
+		boolean completed;
+		RtoEstimator estimator; // null if congestion control is disabled
+		double backoff;
+		HashedWheelTimer.Timeout retransmitTask;
 		int numRetransmit;
 		int timeout; // to satisfy RESPONSE_RANDOM_FACTOR
 	}
 
 	/**
-	 * The MessageCache is a utility class used for duplicate detection and
-	 * reply retransmissions. It is a ring buffer whose size is configured
-	 * through the Californium properties file. 
+	 * Entity class for a received message.
 	 */
-	@SuppressWarnings("serial")
-	private static class MessageCache extends LinkedHashMap<String, Message> {
-
+	private static class Exchange {
+		long key;
+		long expires;
+		volatile Message reply;
+	}
+	
+	/**
+	 * The Deduplicator is a utility class used for duplicate detection and
+	 * reply retransmissions. Exchanges expire after EXCHANGE_LIFETIME and are
+	 * kept in a FIFO queue in order of their expiry, so stale ones are swept
+	 * from its head without a timer. The total number is bounded by
+	 * DEDUPLICATION_CAPACITY.
+	 */
+	private static class Deduplicator {
+		
+		private final long lifetime = Properties.std.getInt("EXCHANGE_LIFETIME") * 1000000L;
+		private final int capacity = Properties.std.getInt("DEDUPLICATION_CAPACITY");
+		
+		private final HashedWheelTimer.Clock clock;
+		
+		private ConcurrentLongMap<Exchange> exchanges = new ConcurrentLongMap<Exchange>();
+		private Queue<Exchange> expiryQueue = new ArrayDeque<Exchange>();
+		
+		Deduplicator(HashedWheelTimer.Clock clock) {
+			this.clock = clock;
+		}
+		
+		/**
+		 * Records a received message.
+		 * 
+		 * @return the exchange of the original if the message is a duplicate,
+		 * or null if it is new
+		 */
+		Exchange findOrAdd(long key) {
+			
+			long now = clock.nanoTime();
+			
+			Exchange exchange = new Exchange();
+			exchange.key = key;
+			exchange.expires = now + lifetime;
+			
+			Exchange previous;
+			while ((previous = exchanges.putIfAbsent(key, exchange)) != null) {
+				if (previous.expires - now > 0) {
+					return previous;
+				}
+				// MID reused after the lifetime, the expired one is not swept yet;
+				// only one of concurrent receivers may take over the key
+				if (exchanges.replace(key, previous, exchange)) {
+					break;
+				}
+			}
+			
+			synchronized (expiryQueue) {
+				sweep(now);
+				if (expiryQueue.size() >= capacity) {
+					Exchange eldest = expiryQueue.poll();
+					exchanges.remove(eldest.key, eldest);
+				}
+				expiryQueue.offer(exchange);
+			}
+			
+			return null;
+		}
+		
+		Exchange get(long key) {
+			return exchanges.get(key);
+		}
+		
+		int size() {
+			return exchanges.size();
+		}
+		
+		private void sweep(long now) {
+			Exchange eldest;
+			while ((eldest = expiryQueue.peek()) != null && eldest.expires - now <= 0) {
+				expiryQueue.poll();
+				exchanges.remove(eldest.key, eldest);
+			}
+		}
+	}
+	
+	/**
+	 * A reply frozen as it was sent, used to answer duplicates.
+	 */
+	private static class CachedReply extends Message {
+		
+		private byte[] bytes;
+		
+		CachedReply(Message reply) {
+			super(reply.getType(), reply.getCode());
+			setMID(reply.getMID());
+			setPeerAddress(reply.getPeerAddress());
+			this.bytes = reply.toByteArray();
+		}
+		
 		@Override
-		protected boolean removeEldestEntry(Map.Entry<String, Message> eldest) {
-			return size() > Properties.std.getInt("MESSAGE_CACHE_SIZE");
+		public byte[] toByteArray() {
+			return bytes;
+		}
+		
+		@Override
+		public int encodedSize() {
+			return bytes.length;
+		}
+		
+		@Override
+		public void encode(ByteBuffer buffer) {
+			buffer.put(bytes);
 		}
-
 	}
 
 	/**
 	 * Utility class to handle timeouts.
 	 */
-	private class RetransmitTask extends TimerTask {
+	private class RetransmitTask implements Runnable {
 
 		private Transaction transaction;
 
@@ -134,22 +240,54 @@ public class TransactionLayer extends UpperLayer {
 
 // Static methods //////////////////////////////////////////////////////////////
 
+	/**
+	 * Returns the next message ID to use for a peer out of its consecutive
+	 * 16-bit range.
+	 * 
+	 * @param peerAddress the address of the peer, or null for local messages
+	 * @return the message ID, or -1 if all IDs of the peer are in use
+	 */
+	public static int nextMessageID(EndpointAddress peerAddress) {
+		return PeerRegistry.getInstance().getPeer(peerAddress).nextMessageID();
+	}
+
+	/**
+	 * Returns the key of a received message for duplicate detection. Unlike
+	 * {@link Message#transactionId()}, it includes the type, as the MIDs of
+	 * replies stem from the local and those of CON/NON from the peer's range.
+	 * 
+	 * @param msg the message
+	 * @param type the type to use
+	 * @return the key
+	 */
+	private static long exchangeKey(Message msg, Message.messageType type) {
+		long id = msg.transactionId();
+		return ((id >>> 16) << 18) | (type.ordinal() << 16) | (id & 0xFFFF);
+	}
+
 	/**
 	 * Calculates the initial timeout for outgoing confirmable messages.
 	 * 
+	 * @param rto the retransmission timeout in milliseconds
 	 * @Return the timeout in milliseconds
 	 */
-	private static int initialTimeout() {
+	private static int initialTimeout(double rto) {
 		
-		final double min = Properties.std.getDbl("RESPONSE_TIMEOUT");
 		final double f = Properties.std.getDbl("RESPONSE_RANDOM_FACTOR");
 		
-		return (int) (min + (min * (f - 1d) * Math.random()));
+		return (int) Math.ceil(rto + (rto * (f - 1d) * Math.random()));
 	}
 	
 // Constructors ////////////////////////////////////////////////////////////////
 
+	public TransactionLayer(HashedWheelTimer timer) {
+		// member initialization
+		this.timer = timer;
+		this.deduplicator = new Deduplicator(timer.getClock());
+	}
+	
 	public TransactionLayer() {
+		this(HashedWheelTimer.getInstance());
 	}
 
 // I/O implementation //////////////////////////////////////////////////////////
@@ -159,7 +297,12 @@ public class TransactionLayer extends UpperLayer {
 
 		// set message ID
 		if (msg.getMID() < 0) {
-			msg.setMID(nextMessageID());
+			int mid = nextMessageID(msg.getPeerAddress());
+			if (mid < 0) {
+				// push back instead of reusing an ID the peer may still know
+				throw new IOException(String.format("No message ID available for %s", msg.getPeerAddress()));
+			}
+			msg.setMID(mid);
 		}
 		
 		// check if message needs confirmation, i.e., a reply is expected
@@ -170,8 +313,11 @@ public class TransactionLayer extends UpperLayer {
 
 		} else if (msg.isReply()) {
 
-			// put message into ring buffer in case peer retransmits
-			replyCache.put(msg.transactionKey(), msg);
+			// keep serialized reply in case peer retransmits
+			Exchange exchange = deduplicator.get(exchangeKey(msg, Message.messageType.CON));
+			if (exchange != null) {
+				exchange.reply = new CachedReply(msg);
+			}
 		}
 
 		// send message over unreliable channel
@@ -195,8 +341,11 @@ public class TransactionLayer extends UpperLayer {
 			return;
 		}
 
-		// check for duplicate
-		if (dupCache.containsKey(msg.key())) {
+		// check for duplicate and remember received message atomically,
+		// as messages are received by concurrent dispatch threads
+		Exchange original = deduplicator.findOrAdd(exchangeKey(msg, msg.getType()));
+		
+		if (original != null) {
 
 			// check for retransmitted Confirmable
 			if (msg.isConfirmable()) {
@@ -208,7 +357,7 @@ public class TransactionLayer extends UpperLayer {
 				}
 
 				// retrieve cached reply
-				Message reply = replyCache.get(msg.transactionKey());
+				Message reply = original.reply;
 				if (reply != null) {
 
 					// retransmit reply
@@ -231,11 +380,6 @@ public class TransactionLayer extends UpperLayer {
 				LOG.info(String.format("Dropped duplicate: %s", msg.key()));
 				return;
 			}
-
-		} else {
-
-			// cache received message
-			dupCache.put(msg.key(), msg);
 		}
 
 		// check for reply to CON and remove transaction
@@ -249,6 +393,21 @@ public class TransactionLayer extends UpperLayer {
 				// transmission completed
 				removeTransaction(transaction);
 				
+				if (transaction.estimator != null) {
+					// both timestamps are taken by the UDPLayer
+					double rtt = (msg.getTimestamp() - transaction.msg.getTimestamp()) / 1000000d;
+					transaction.estimator.update(rtt, transaction.numRetransmit);
+				}
+				
+				ReliabilityHandler handler = transaction.msg.getReliabilityHandler();
+				if (handler != null) {
+					if (msg.getType()==Message.messageType.RST) {
+						handler.handleReset(transaction.msg);
+					} else {
+						handler.handleAcknowledgement(transaction.msg);
+					}
+				}
+				
 				if (msg.isEmptyACK()) {
 					
 					// transaction is complete, no information for higher layers
@@ -292,12 +451,12 @@ public class TransactionLayer extends UpperLayer {
 	private void handleIncomingReset(Message msg) {
 		
 		// remove possible observers
-		ObservingManager.getInstance().removeObserver(msg.getPeerAddress().toString(), msg.getMID());
+		ObservingManager.getInstance().removeObserver(msg.getPeerAddress(), msg.getMID());
 	}
 
 	private void handleResponseTimeout(Transaction transaction) {
 
-		final int max = Properties.std.getInt("MAX_RETRANSMIT");
+		final int max = transaction.msg.getMaxRetransmit() >= 0 ? transaction.msg.getMaxRetransmit() : Properties.std.getInt("MAX_RETRANSMIT");
 		
 		// check if limit of retransmissions reached
 		if (transaction.numRetransmit < max) {
@@ -326,22 +485,33 @@ public class TransactionLayer extends UpperLayer {
 			removeTransaction(transaction);
 			
 			// cancel observations
-			ObservingManager.getInstance().removeObserver(transaction.msg.getPeerAddress().toString());
+			ObservingManager.getInstance().removeObserver(transaction.msg.getPeerAddress());
+			
+			ReliabilityHandler handler = transaction.msg.getReliabilityHandler();
+			if (handler != null) {
+				handler.handleTimeout(transaction.msg);
+			}
 
 			// invoke event handler method
 			transaction.msg.handleTimeout();
 		}
 	}
 
-	private synchronized Transaction addTransaction(Message msg) {
+	private Transaction addTransaction(Message msg) {
 
 		// initialize new transmission context
 		Transaction transaction = new Transaction();
+		transaction.id = msg.transactionId();
 		transaction.msg = msg;
 		transaction.numRetransmit = 0;
 		transaction.retransmitTask = null;
+		transaction.peer = PeerRegistry.getInstance().getPeer(msg.getPeerAddress());
+		transaction.peer.retain();
+		if (Properties.std.getBool("CONGESTION_CONTROL")) {
+			transaction.estimator = transaction.peer.getRtoEstimator();
+		}
 
-		transactionTable.put(msg.transactionKey(), transaction);
+		transactionTable.put(transaction.id, transaction);
 
 		// schedule first retransmission
 		scheduleRetransmission(transaction);
@@ -351,54 +521,93 @@ public class TransactionLayer extends UpperLayer {
 		return transaction;
 	}
 
-	private synchronized Transaction getTransaction(Message msg) {
-		return transactionTable.get(msg.transactionKey());
+	private Transaction getTransaction(Message msg) {
+		return transactionTable.get(msg.transactionId());
 	}
 
-	private synchronized void removeTransaction(Transaction transaction) {
+	private void removeTransaction(Transaction transaction) {
+		
+		boolean completed;
 
 		// cancel any pending retransmission schedule
-		transaction.retransmitTask.cancel();
-		transaction.retransmitTask = null;
+		synchronized (transaction) {
+			completed = !transaction.completed;
+			transaction.completed = true;
+			if (transaction.retransmitTask != null) {
+				transaction.retransmitTask.cancel();
+				transaction.retransmitTask = null;
+			}
+		}
 
-		// remove transaction from table
-		transactionTable.remove(transaction.msg.transactionKey());
+		// remove transaction from table unless replaced by a newer one
+		transactionTable.remove(transaction.id, transaction);
 		
 		LOG.finest(String.format("Cleared transaction for %s", transaction.msg.key()));
+		
+		if (completed) {
+			transaction.peer.release();
+			if (completionListener != null) {
+				completionListener.transactionCompleted(transaction.msg);
+			}
+		}
 	}
 
 	private void scheduleRetransmission(Transaction transaction) {
+		
+		synchronized (transaction) {
+			
+			// do not revive a transaction completed during retransmission
+			if (transaction.completed) {
+				return;
+			}
 
-		// cancel existing schedule (if any)
-		if (transaction.retransmitTask != null) {
-			transaction.retransmitTask.cancel();
-		}
+			// cancel existing schedule (if any)
+			if (transaction.retransmitTask != null) {
+				transaction.retransmitTask.cancel();
+			}
 
-		// create new retransmission task
-		transaction.retransmitTask = new RetransmitTask(transaction);
+			// calculate timeout using exponential back-off
+			if (transaction.timeout == 0) {
+				// use initial timeout
+				if (transaction.estimator != null) {
+					transaction.timeout = initialTimeout(transaction.estimator.getRto());
+					transaction.backoff = RtoEstimator.backoffFactor(transaction.timeout);
+				} else {
+					transaction.timeout = initialTimeout(Properties.std.getDbl("RESPONSE_TIMEOUT"));
+					transaction.backoff = 2d;
+				}
+			} else {
+				// multiply timeout
+				transaction.timeout = (int) (transaction.timeout * transaction.backoff);
+			}
 
-		// calculate timeout using exponential back-off
-		if (transaction.timeout == 0) {
-			// use initial timeout
-			transaction.timeout = initialTimeout();
-		} else {
-			// double timeout
-			transaction.timeout *= 2;
+			// schedule retransmission task
+			transaction.retransmitTask = timer.schedule(new RetransmitTask(transaction), transaction.timeout);
 		}
-
-		// schedule retransmission task
-		timer.schedule(transaction.retransmitTask, transaction.timeout);
+	}
+	
+	public void setCompletionListener(CompletionListener listener) {
+		this.completionListener = listener;
 	}
 	
 	public String getStats() {
 		StringBuilder stats = new StringBuilder();
 
-		stats.append("Current message ID: ");
-		stats.append(currentMID);
+		stats.append("Known peers:       ");
+		stats.append(PeerRegistry.getInstance().getPeerCount());
+		stats.append('\n');
+		stats.append("Evicted peers:     ");
+		stats.append(PeerRegistry.getInstance().getEvictedCount());
 		stats.append('\n');
 		stats.append("Open transactions: ");
 		stats.append(transactionTable.size());
 		stats.append('\n');
+		stats.append("Pending timeouts:  ");
+		stats.append(timer.getPendingCount());
+		stats.append('\n');
+		stats.append("Remembered messages: ");
+		stats.append(deduplicator.size());
+		stats.append('\n');
 		stats.append("Messages sent:     ");
 		stats.append(numMessagesSent);
 		stats.append('\n');
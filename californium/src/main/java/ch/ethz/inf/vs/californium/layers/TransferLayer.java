@@ -32,18 +32,28 @@ package ch.ethz.inf.vs.californium.layers;
 
 import java.io.IOException;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import ch.ethz.inf.vs.californium.coap.BlockOption;
 import ch.ethz.inf.vs.californium.coap.CodeRegistry;
+import ch.ethz.inf.vs.californium.coap.KeyId;
 import ch.ethz.inf.vs.californium.coap.Message;
 import ch.ethz.inf.vs.californium.coap.Option;
 import ch.ethz.inf.vs.californium.coap.OptionNumberRegistry;
 import ch.ethz.inf.vs.californium.coap.Request;
 import ch.ethz.inf.vs.californium.coap.Response;
 import ch.ethz.inf.vs.californium.coap.Message.messageType;
+import ch.ethz.inf.vs.californium.util.BufferBlockSource;
+import ch.ethz.inf.vs.californium.util.HashedWheelTimer;
+import ch.ethz.inf.vs.californium.util.MemoryBudget;
 import ch.ethz.inf.vs.californium.util.Properties;
+import ch.ethz.inf.vs.californium.util.ReassemblyBuffer;
 
 /**
  * The class TransferLayer provides support for
@@ -59,12 +69,34 @@ import ch.ethz.inf.vs.californium.util.Properties;
  */
 public class TransferLayer extends UpperLayer {
 	
+	/*
+	 * Periodically frees abandoned transfers while there are any.
+	 */
+	private class SweepTask implements Runnable {
+		
+		@Override
+		public void run() {
+			sweepScheduled.set(false);
+			evictIdleTransfers();
+			if (!incoming.isEmpty() || !outgoing.isEmpty()) {
+				scheduleSweep();
+			}
+		}
+	}
+	
 	private class TransferContext {
 		public Message cache;
 		public String uriPath;
 		public BlockOption current;
 		
-		// TODO: timer
+		// payload of incoming transfers
+		public ReassemblyBuffer buffer;
+		
+		// clock time of the last block, for evicting abandoned transfers
+		public volatile long lastActivity;
+		
+		// payload bytes held on the heap by a cached download
+		public int cachedBytes;
 		
 		TransferContext(Message msg) {
 			
@@ -81,6 +113,8 @@ public class TransferLayer extends UpperLayer {
 				this.current = (BlockOption) msg.getFirstOption(OptionNumberRegistry.BLOCK2);
 			}
 			
+			this.lastActivity = timer.getClock().nanoTime();
+			
 			LOG.finest(String.format("Created new transfer context for %s: %s", this.uriPath, msg.sequenceKey()));
 		}
 	}
@@ -88,20 +122,60 @@ public class TransferLayer extends UpperLayer {
 
 // Members /////////////////////////////////////////////////////////////////////
 	
-	private Map<String, TransferContext> incoming = new HashMap<String, TransferContext>();
-	private Map<String, TransferContext> outgoing = new HashMap<String, TransferContext>();
+	private ConcurrentMap<KeyId, TransferContext> incoming = new ConcurrentHashMap<KeyId, TransferContext>();
+	private ConcurrentMap<KeyId, TransferContext> outgoing = new ConcurrentHashMap<KeyId, TransferContext>();
+	
+	// cached downloads from the least recently used, guarded by itself
+	private Map<KeyId, TransferContext> displaceable = new LinkedHashMap<KeyId, TransferContext>(16, 0.75f, true);
 	
 	// default block size used for the transfer
 	private int defaultSZX;
 	
+	// memory shared by the reassembly buffers of incoming transfers
+	private MemoryBudget budget;
+	private int spillThreshold;
+	
+	// limits of incoming transfers, beyond which they are rejected with 4.13
+	private int maxTransferSize;
+	private MemoryBudget spillBudget;
+	
+	// maximum payload bytes of all cached downloads, evicting the least recently used ones
+	private long cacheCapacity;
+	private AtomicLong outgoingBytes = new AtomicLong();
+	
+	// time after which an idle transfer is freed, in milliseconds
+	private int transferTimeout;
+	
+	private HashedWheelTimer timer;
+	private AtomicBoolean sweepScheduled = new AtomicBoolean();
+	
+	private AtomicInteger numSpilled = new AtomicInteger();
+	private AtomicInteger numEvicted = new AtomicInteger();
+	private AtomicInteger numDisplaced = new AtomicInteger();
+	
 	// Constructors ////////////////////////////////////////////////////////////
 	
 	/**
 	 * Constructor for a new TransferLayer
 	 * 
 	 * @param defaultBlockSize the block size to use if not indicated by block option
+	 * @param spillThreshold the size above which incoming transfers are reassembled in a file
+	 * @param memoryBudget the number of bytes all incoming transfers may hold in memory
+	 * @param maxTransferSize the maximum size of an incoming transfer
+	 * @param spillBudget the number of bytes all incoming transfers may hold in temporary files
+	 * @param cacheCapacity the number of payload bytes all cached downloads may hold
+	 * @param transferTimeout the time in milliseconds after which an idle transfer is freed
+	 * @param timer the timer to sweep for abandoned transfers
 	 */
-	public TransferLayer(int defaultBlockSize) {
+	public TransferLayer(int defaultBlockSize, int spillThreshold, int memoryBudget, int maxTransferSize, int spillBudget, int cacheCapacity, int transferTimeout, HashedWheelTimer timer) {
+		
+		this.spillThreshold = spillThreshold;
+		this.budget = new MemoryBudget(memoryBudget);
+		this.maxTransferSize = maxTransferSize;
+		this.spillBudget = new MemoryBudget(spillBudget);
+		this.cacheCapacity = cacheCapacity;
+		this.transferTimeout = transferTimeout;
+		this.timer = timer;
 		
 		if (defaultBlockSize==0) {
 			defaultBlockSize = Properties.std.getInt("DEFAULT_BLOCK_SIZE");
@@ -122,6 +196,17 @@ public class TransferLayer extends UpperLayer {
 		}
 	}
 	
+	public TransferLayer(int defaultBlockSize) {
+		this(defaultBlockSize,
+			Properties.std.getInt("BLOCK_SPILL_THRESHOLD"),
+			Properties.std.getInt("BLOCK_MEMORY_BUDGET"),
+			Properties.std.getInt("BLOCK_MAX_TRANSFER_SIZE"),
+			Properties.std.getInt("BLOCK_SPILL_BUDGET"),
+			Properties.std.getInt("BLOCK_CACHE_CAPACITY"),
+			Properties.std.getInt("BLOCK_TRANSFER_TIMEOUT"),
+			HashedWheelTimer.getInstance());
+	}
+	
 	public TransferLayer() {
 		this(0);
 	}
@@ -134,6 +219,11 @@ public class TransferLayer extends UpperLayer {
 	@Override
 	protected void doSendMessage(Message msg) throws IOException {
 		
+		// a reassembled request is completed by its response
+		if (msg instanceof Response && ((Response)msg).getRequest()!=null) {
+			releasePayload(((Response)msg).getRequest());
+		}
+		
 		int sendSZX = defaultSZX;
 		int sendNUM = 0;
 		
@@ -166,7 +256,7 @@ public class TransferLayer extends UpperLayer {
 					msg.setOption(block2);
 					
 					TransferContext transfer = new TransferContext(msg);
-					outgoing.put(msg.sequenceKey(), transfer);
+					addOutgoing(msg.sequenceId(), transfer);
 					
 					LOG.fine(String.format("Caching blockwise transfer for NUM %d: %s", sendNUM, msg.sequenceKey()));
 				} else {
@@ -227,13 +317,14 @@ public class TransferLayer extends UpperLayer {
 			
 			LOG.finer(String.format("Received demand for next block: %s | %s", msg.sequenceKey(), blockOut));
 			
-			TransferContext transfer = outgoing.get(msg.sequenceKey());
+			KeyId key = msg.sequenceId();
+			TransferContext transfer = outgoing.get(key);
 				
 			if (transfer!=null) {
 				
 				if (msg instanceof Request && !msg.getUriPath().equals(transfer.uriPath)) {
 				
-					outgoing.remove(msg.sequenceKey());
+					freeOutgoing(key, transfer);
 					LOG.fine(String.format("Freed blockwise transfer by client token reuse: %s", msg.sequenceKey()));
 					
 				} else {
@@ -243,30 +334,41 @@ public class TransferLayer extends UpperLayer {
 						transfer.cache.setMID(msg.getMID());
 					}
 			
+					transfer.lastActivity = timer.getClock().nanoTime();
+					touchOutgoing(key, transfer);
+			
 					// use cached representation
-					Message next = getBlock(transfer.cache, blockOut.getNUM(), blockOut.getSZX());
+					Message next = null;
+					try {
+						next = getBlock(transfer.cache, blockOut.getNUM(), blockOut.getSZX());
+					} catch (IOException e) {
+						freeOutgoing(key, transfer);
+						LOG.severe(String.format("Failed to read block from payload source, freed transfer: %s | %s", msg.sequenceKey(), e.getMessage()));
+						return;
+					}
 						
 					if (next!=null) {
 							
+						BlockOption respBlock = (BlockOption) next.getFirstOption(blockOut.getOptionNumber());
+							
+						// remove transfer context if completed, before sending the last block,
+						// as the peer might already reuse the token on another dispatch thread
+						if (!respBlock.getM() && msg instanceof Request) {
+							freeOutgoing(key, transfer);
+							LOG.fine(String.format("Freed blockwise download by completion: %s", next.sequenceKey()));
+						}
+							
 						try {
 							LOG.finer(String.format("Sending next block: %s | %s", next.sequenceKey(), blockOut));
 							sendMessageOverLowerLayer(next);
 						} catch (IOException e) {
 							LOG.severe(String.format("Failed to send block response: %s", e.getMessage()));
 						}
-							
-						BlockOption respBlock = (BlockOption) next.getFirstOption(blockOut.getOptionNumber());
-							
-						// remove transfer context if completed
-						if (!respBlock.getM() && msg instanceof Request) {
-							outgoing.remove(msg.sequenceKey());
-							LOG.fine(String.format("Freed blockwise download by completion: %s", next.sequenceKey()));
-						}
 						return;
 							
 					} else if (msg instanceof Response && !blockOut.getM()) {
 						
-						outgoing.remove(msg.sequenceKey());
+						freeOutgoing(key, transfer);
 						LOG.fine(String.format("Freed blockwise upload by completion: %s", msg.sequenceKey()));
 						
 						// restore original request with registered handlers
@@ -274,7 +376,7 @@ public class TransferLayer extends UpperLayer {
 						
 					} else {
 						LOG.warning(String.format("Rejecting out-of-scope demand for cached transfer (freed): %s | %s, %d bytes available", msg.sequenceKey(), blockOut, transfer.cache.payloadSize()));
-						outgoing.remove(msg.sequenceKey());
+						freeOutgoing(key, transfer);
 						handleOutOfScopeError(msg.newReply(true));
 						return;
 					}
@@ -282,23 +384,24 @@ public class TransferLayer extends UpperLayer {
 			}
 		} else if (msg instanceof Response) {
 			// check for cached transfers
-			TransferContext transfer = outgoing.get(msg.sequenceKey());
+			KeyId key = msg.sequenceId();
+			TransferContext transfer = outgoing.get(key);
 			if (transfer!=null) {
 
 				// restore original request with registered handlers
 				((Response)msg).setRequest((Request)transfer.cache);
 				
-				outgoing.remove(msg.sequenceKey());
+				freeOutgoing(key, transfer);
 				LOG.fine(String.format("Freed outgoing transfer by client abort: %s", msg.sequenceKey()));
 			}
 			
-			transfer = incoming.get(msg.sequenceKey());
+			transfer = incoming.get(key);
 			if (transfer!=null) {
 
 				// restore original request with registered handlers
 				((Response)msg).setRequest((Request)transfer.cache);
 				
-				incoming.remove(msg.sequenceKey());
+				freeIncoming(key, transfer);
 				LOG.fine(String.format("Freed incoming transfer by client abort: %s", msg.sequenceKey()));
 			}
 		}
@@ -309,7 +412,8 @@ public class TransferLayer extends UpperLayer {
 	
 	private void handleIncomingPayload(Message msg, BlockOption blockOpt) {
 		
-		TransferContext transfer = incoming.get(msg.sequenceKey());
+		KeyId key = msg.sequenceId();
+		TransferContext transfer = incoming.get(key);
 		
 		if (blockOpt.getNUM()>0 && transfer != null) {
 			
@@ -317,10 +421,18 @@ public class TransferLayer extends UpperLayer {
 			if (blockOpt.getNUM()*blockOpt.getSize()==(transfer.current.getNUM()+1)*transfer.current.getSize() ) {
 								
 				// append received payload to first response and update message ID
-				transfer.cache.appendPayload(msg.getPayload());
+				try {
+					transfer.buffer.append(msg.getPayload());
+				} catch (IOException e) {
+					LOG.severe(String.format("Failed to buffer block, freed transfer: %s | %s", msg.sequenceKey(), e.getMessage()));
+					freeIncoming(key, transfer);
+					handleEntityTooLargeError(msg.newReply(true));
+					return;
+				}
 				
 				// update info
 				transfer.cache.setMID(msg.getMID());
+				transfer.lastActivity = timer.getClock().nanoTime();
 				
 				LOG.fine(String.format("Received next block:  %s | %s", msg.sequenceKey(), blockOpt)); // extra space to match "Demanding next block" indent
 				
@@ -338,9 +450,28 @@ public class TransferLayer extends UpperLayer {
 				msg.setPayload(Arrays.copyOf(msg.getPayload(), newNUM));
 			}
 			
-			// create new transfer context
+			// create new transfer context, moving the first block into its buffer
 			transfer = new TransferContext(msg);
-			incoming.put(msg.sequenceKey(), transfer);
+			transfer.buffer = new ReassemblyBuffer(budget, spillThreshold, maxTransferSize, spillBudget);
+			try {
+				transfer.buffer.append(msg.getPayload());
+			} catch (IOException e) {
+				LOG.severe(String.format("Failed to buffer block: %s | %s", msg.sequenceKey(), e.getMessage()));
+				transfer.buffer.discard();
+				handleEntityTooLargeError(msg.newReply(true));
+				return;
+			}
+			msg.setPayload((byte[]) null);
+			
+			// pin the peer while the transfer is stored
+			key.getPeer().retain();
+			TransferContext previous = incoming.put(key, transfer);
+			if (previous!=null) {
+				// restarted by the peer
+				previous.buffer.discard();
+				key.getPeer().release();
+			}
+			scheduleSweep();
 			
 			LOG.fine(String.format("Incoming blockwise transfer: %s | %s", msg.sequenceKey(), blockOpt));
 			
@@ -395,6 +526,10 @@ public class TransferLayer extends UpperLayer {
 			reply.setOption(msg.getFirstOption(OptionNumberRegistry.TOKEN));
 			reply.setOption(next);
 
+			// update incoming transfer before demanding the next block,
+			// as it might be received by another dispatch thread right away
+			transfer.current = blockOpt;
+
 			try {
 				
 				LOG.fine(String.format("Demanding next block: %s | %s", reply.sequenceKey(), next));
@@ -404,9 +539,6 @@ public class TransferLayer extends UpperLayer {
 			} catch (IOException e) {
 				LOG.severe(String.format("Failed to request block: %s", e.getMessage()));
 			}
-
-			// update incoming transfer
-			transfer.current = blockOpt;
 			
 		} else {
 			
@@ -414,9 +546,29 @@ public class TransferLayer extends UpperLayer {
 			transfer.cache.setOption(blockOpt);
 			
 			LOG.fine(String.format("Finished blockwise transfer: %s", msg.sequenceKey()));
-			incoming.remove(msg.sequenceKey());
+			if (incoming.remove(key, transfer)) {
+				key.getPeer().release();
+			}
+			
+			if (transfer.buffer.isSpilled()) {
+				numSpilled.incrementAndGet();
+			}
+			
+			try {
+				transfer.buffer.moveTo(transfer.cache);
+			} catch (IOException e) {
+				LOG.severe(String.format("Failed to complete blockwise transfer: %s | %s", msg.sequenceKey(), e.getMessage()));
+				transfer.buffer.discard();
+				handleEntityTooLargeError(msg.newReply(true));
+				return;
+			}
 			
 			deliverMessage(transfer.cache);
+			
+			// a reassembled response is completed by its delivery
+			if (transfer.cache instanceof Response) {
+				releasePayload(transfer.cache);
+			}
 		}
 	}
 	
@@ -433,6 +585,17 @@ public class TransferLayer extends UpperLayer {
 		}
 	}
 	
+	private void handleEntityTooLargeError(Message resp) {
+		
+		resp.setCode(CodeRegistry.RESP_REQUEST_ENTITY_TOO_LARGE);
+		
+		try {
+			sendMessageOverLowerLayer(resp);
+		} catch (IOException e) {
+			LOG.severe(String.format("Failed to send error message: %s", e.getMessage()));
+		}
+	}
+	
 	private void handleIncompleteError(Message resp) {
 		
 		resp.setCode(CodeRegistry.RESP_REQUEST_ENTITY_INCOMPLETE);
@@ -446,9 +609,186 @@ public class TransferLayer extends UpperLayer {
 	}
 	
 	
+	// Eviction ////////////////////////////////////////////////////////////////
+	
+	/**
+	 * Frees all transfers that did not receive or serve a block within the
+	 * transfer timeout, e.g., downloads abandoned by the client. Called
+	 * periodically on the timer while there are transfers.
+	 * 
+	 * @return the number of freed transfers
+	 */
+	public int evictIdleTransfers() {
+		
+		long now = timer.getClock().nanoTime();
+		long timeoutNanos = transferTimeout * 1000000L;
+		int evicted = 0;
+		
+		for (Map.Entry<KeyId, TransferContext> entry : incoming.entrySet()) {
+			TransferContext transfer = entry.getValue();
+			if (now - transfer.lastActivity > timeoutNanos && freeIncoming(entry.getKey(), transfer)) {
+				LOG.info(String.format("Freed abandoned incoming transfer: %s", entry.getKey()));
+				++evicted;
+			}
+		}
+		for (Map.Entry<KeyId, TransferContext> entry : outgoing.entrySet()) {
+			TransferContext transfer = entry.getValue();
+			if (now - transfer.lastActivity > timeoutNanos && freeOutgoing(entry.getKey(), transfer)) {
+				LOG.info(String.format("Freed abandoned outgoing transfer: %s", entry.getKey()));
+				++evicted;
+			}
+		}
+		
+		numEvicted.addAndGet(evicted);
+		return evicted;
+	}
+	
+	private boolean freeIncoming(KeyId key, TransferContext transfer) {
+		if (incoming.remove(key, transfer)) {
+			transfer.buffer.discard();
+			key.getPeer().release();
+			return true;
+		}
+		return false;
+	}
+	
+	private void addOutgoing(KeyId key, TransferContext transfer) {
+		
+		// only downloads are displaced, as the client can request them again,
+		// while uploads of this endpoint are bounded by the application;
+		// a source-backed payload does not occupy the heap
+		if (transfer.cache instanceof Response && transfer.cache.getPayloadSource()==null) {
+			transfer.cachedBytes = transfer.cache.payloadSize();
+		}
+		
+		// pin the peer while the transfer is stored
+		key.getPeer().retain();
+		TransferContext previous = outgoing.put(key, transfer);
+		if (previous!=null) {
+			outgoingBytes.addAndGet(-previous.cachedBytes);
+			key.getPeer().release();
+		}
+		outgoingBytes.addAndGet(transfer.cachedBytes);
+		
+		synchronized (displaceable) {
+			if (transfer.cachedBytes > 0) {
+				displaceable.put(key, transfer);
+			} else if (previous!=null) {
+				displaceable.remove(key);
+			}
+		}
+		
+		// displace the least recently used downloads, but keep the new one
+		while (outgoingBytes.get() > cacheCapacity) {
+			
+			KeyId oldestKey = null;
+			TransferContext oldest = null;
+			synchronized (displaceable) {
+				for (Map.Entry<KeyId, TransferContext> entry : displaceable.entrySet()) {
+					if (entry.getValue()!=transfer) {
+						oldestKey = entry.getKey();
+						oldest = entry.getValue();
+						break;
+					}
+				}
+			}
+			if (oldest==null) {
+				break;
+			}
+			if (freeOutgoing(oldestKey, oldest)) {
+				numDisplaced.incrementAndGet();
+				LOG.info(String.format("Freed outgoing transfer by cache capacity: %s", oldestKey));
+			}
+		}
+		
+		scheduleSweep();
+	}
+	
+	private boolean freeOutgoing(KeyId key, TransferContext transfer) {
+		if (outgoing.remove(key, transfer)) {
+			outgoingBytes.addAndGet(-transfer.cachedBytes);
+			if (transfer.cachedBytes > 0) {
+				synchronized (displaceable) {
+					if (displaceable.get(key)==transfer) {
+						displaceable.remove(key);
+					}
+				}
+			}
+			key.getPeer().release();
+			return true;
+		}
+		return false;
+	}
+	
+	private void touchOutgoing(KeyId key, TransferContext transfer) {
+		if (transfer.cachedBytes > 0) {
+			synchronized (displaceable) {
+				// moves it to the most recently used end
+				displaceable.get(key);
+			}
+		}
+	}
+	
+	private void scheduleSweep() {
+		if (sweepScheduled.compareAndSet(false, true)) {
+			timer.schedule(new SweepTask(), transferTimeout / 2);
+		}
+	}
+	
+	// Gauges //////////////////////////////////////////////////////////////////
+	
+	public int getIncomingCount() {
+		return incoming.size();
+	}
+	
+	public int getOutgoingCount() {
+		return outgoing.size();
+	}
+	
+	/**
+	 * Returns the payload bytes held by incoming transfers in memory.
+	 * 
+	 * @return the number of bytes
+	 */
+	public long getIncomingBytes() {
+		return budget.getUsed();
+	}
+	
+	/**
+	 * Returns the payload bytes held by incoming transfers in temporary files.
+	 * 
+	 * @return the number of bytes
+	 */
+	public long getSpilledBytes() {
+		return spillBudget.getUsed();
+	}
+	
+	/**
+	 * Returns the payload bytes cached on the heap for downloads.
+	 * 
+	 * @return the number of bytes
+	 */
+	public long getOutgoingBytes() {
+		return outgoingBytes.get();
+	}
+	
+	public int getDisplacedCount() {
+		return numDisplaced.get();
+	}
+	
 	// Static Methods //////////////////////////////////////////////////////////
+	
+	/*
+	 * Returns the spill budget held by a mapped payload; the mapping itself
+	 * stays readable.
+	 */
+	private static void releasePayload(Message msg) {
+		if (msg.getPayloadSource() instanceof BufferBlockSource) {
+			((BufferBlockSource) msg.getPayloadSource()).release();
+		}
+	}
 
-	private static Message getBlock(Message msg, int num, int szx) {
+	private static Message getBlock(Message msg, int num, int szx) throws IOException {
 		
 		int blockSize = 1 << (szx + 4);
 		int payloadOffset = num * blockSize;
@@ -472,9 +812,13 @@ public class TransferLayer extends UpperLayer {
 			block.setPeerAddress(msg.getPeerAddress());
 			
 			// use same options
-			for (Option opt : msg.getOptions()) {
-				block.addOption(opt);
+			block.copyOptions(msg);
+			
+			// the first block completes a CON notification, later ones are requested
+			if (num==0) {
+				block.setReliabilityHandler(msg.getReliabilityHandler());
 			}
+			block.setMaxRetransmit(msg.getMaxRetransmit());
 			
 			// calculate 'more' bit 
 			boolean m = blockSize < payloadLeft;
@@ -484,10 +828,10 @@ public class TransferLayer extends UpperLayer {
 				blockSize = payloadLeft;
 			}
 			
-			// copy payload block
+			// copy payload block, only reading the slice from a payload source
 			
 			byte[] blockPayload = new byte[blockSize];
-			System.arraycopy(msg.getPayload(), payloadOffset, blockPayload, 0, blockSize);
+			msg.readPayload(payloadOffset, blockPayload, 0, blockSize);
 			
 			block.setPayload(blockPayload);
 			
@@ -515,9 +859,28 @@ public class TransferLayer extends UpperLayer {
 		stats.append("Outgoing cache size: ");
 		stats.append(outgoing.size());
 		stats.append('\n');
+		stats.append("Outgoing cached:     ");
+		stats.append(outgoingBytes.get());
+		stats.append(" of ");
+		stats.append(cacheCapacity);
+		stats.append(" bytes\n");
 		stats.append("Incoming cache size: ");
 		stats.append(incoming.size());
 		stats.append('\n');
+		stats.append("Incoming buffered:   ");
+		stats.append(budget.getUsed());
+		stats.append(" of ");
+		stats.append(budget.getLimit());
+		stats.append(" bytes\n");
+		stats.append("Spilled transfers:   ");
+		stats.append(numSpilled.get());
+		stats.append('\n');
+		stats.append("Evicted transfers:   ");
+		stats.append(numEvicted.get());
+		stats.append('\n');
+		stats.append("Displaced transfers: ");
+		stats.append(numDisplaced.get());
+		stats.append('\n');
 		stats.append("Messages sent:     ");
 		stats.append(numMessagesSent);
 		stats.append('\n');
@@ -31,13 +31,32 @@
 package ch.ethz.inf.vs.californium.layers;
 
 import java.io.IOException;
+import java.lang.reflect.Method;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import ch.ethz.inf.vs.californium.coap.EndpointAddress;
 import ch.ethz.inf.vs.californium.coap.Message;
+import ch.ethz.inf.vs.californium.coap.Peer;
+import ch.ethz.inf.vs.californium.coap.PeerRegistry;
+import ch.ethz.inf.vs.californium.coap.SendHandler;
+import ch.ethz.inf.vs.californium.util.ByteBufferPool;
 import ch.ethz.inf.vs.californium.util.Properties;
 
 /**
@@ -49,6 +68,31 @@ import ch.ethz.inf.vs.californium.util.Properties;
  * The UDPLayer is the base layer of the stack, sub-calssing {@link Layer}. Any
  * {@link UpperLayer} can be stacked on top, using a {@link ch.ethz.inf.vs.californium.coap.Communicator} as
  * stack builder.
+ * <p>
+ * Two receive engines are available: the classic engine receives into a new
+ * {@link DatagramPacket} per datagram, the NIO engine (UDP_NIO_RECEIVER)
+ * receives through a {@link DatagramChannel} into pooled direct buffers and
+ * decodes the message straight from the buffer, so that receiving does not
+ * allocate datagram buffers in steady state.
+ * <p>
+ * With UDP_RECEIVER_SHARDS greater than one, the NIO engine opens several
+ * channels bound to the same port with SO_REUSEPORT, each served by its own
+ * receiver thread, so that the kernel spreads peers across the sockets.
+ * Replies leave through the socket on which the peer was last heard.
+ * <p>
+ * The receiver thread only reads and decodes datagrams. The layer stack above,
+ * including the resource handlers, runs on a pool of dispatch threads fed
+ * through a bounded queue (DISPATCH_POOL_SIZE, DISPATCH_QUEUE_CAPACITY).
+ * Messages arriving while the queue is full are dropped like on a congested
+ * link; confirmable senders will retransmit.
+ * <p>
+ * Outgoing messages are put into a bounded send queue (TX_QUEUE_CAPACITY)
+ * that is drained in batches by a writer thread, which serializes them into
+ * pooled buffers. Callers, such as the dispatch threads, retransmission
+ * timers, or observe notifications, thus never block on the socket. The
+ * outcome is reported through the {@link SendHandler} of the message. A batch
+ * only bounds how much the writer takes per wake-up; each datagram is still
+ * sent with its own system call, as Java has no vectored datagram send.
  * 
  * @author Dominique Im Obersteg, Daniel Pauli, and Matthias Kovatsch
  */
@@ -60,8 +104,32 @@ public class UDPLayer extends Layer {
 	// TODO Use MulticastSocket
 	private DatagramSocket socket;
 
-	// The thread that listens on the socket for incoming datagrams
-	private ReceiverThread receiverThread;
+	// The channels of the NIO receive engine, null for the classic engine
+	private DatagramChannel[] channels;
+	
+	// The direct buffers used by the NIO receive engine
+	private ByteBufferPool receiveBuffers;
+
+	// The threads that listen on the sockets for incoming datagrams
+	private Thread[] receiverThreads;
+	
+	// The worker threads that pass received messages up the stack, null to run the stack on the receiver thread
+	private ThreadPoolExecutor dispatcher;
+	
+	// The number of received messages dropped due to a full dispatch queue
+	private AtomicInteger numMessagesDropped = new AtomicInteger();
+	
+	// The queue of messages to send, null to send on the calling thread
+	private BlockingQueue<Message> sendQueue;
+	
+	// The thread that drains the send queue
+	private Thread writerThread;
+	
+	// The buffers used to serialize outgoing messages for the channels
+	private ByteBufferPool sendBuffers;
+	
+	// The number of messages that could not be sent
+	private AtomicInteger numSendFailures = new AtomicInteger();
 
 // Inner Classes ///////////////////////////////////////////////////////////////
 
@@ -91,11 +159,116 @@ public class UDPLayer extends Layer {
 					continue;
 				}
 				
-				// TODO: Dispatch to worker thread
 				datagramReceived(datagram);
 			}
 		}
 	}
+	
+	class ChannelReceiverThread extends Thread {
+		
+		private DatagramChannel channel;
+		
+		public ChannelReceiverThread(DatagramChannel channel, String name) {
+			super(name);
+			this.channel = channel;
+		}
+		
+		@Override
+		public void run() {
+			// always listen for incoming datagrams
+			while (true) {
+				
+				// reuse a pooled buffer
+				ByteBuffer buffer = receiveBuffers.acquire();
+				
+				try {
+					// receive datagram
+					InetSocketAddress source = (InetSocketAddress) channel.receive(buffer);
+					
+					// the message is decoded before the buffer returns to the pool
+					buffer.flip();
+					datagramReceived(buffer, source, channel);
+					
+				} catch (ClosedChannelException e) {
+					LOG.severe("Receiver channel closed: " + e.getMessage());
+					break;
+				} catch (IOException e) {
+					LOG.severe("Could not receive datagram: " + e.getMessage());
+					e.printStackTrace();
+				} finally {
+					receiveBuffers.release(buffer);
+				}
+			}
+		}
+	}
+	
+	class WriterThread extends Thread {
+		
+		public WriterThread() {
+			super("WriterThread");
+			// the receiver threads decide whether the JVM keeps running
+			setDaemon(true);
+		}
+		
+		@Override
+		public void run() {
+			
+			int batchSize = Math.max(Properties.std.getInt("TX_BATCH_SIZE"), 1);
+			List<Message> batch = new ArrayList<Message>(batchSize);
+			
+			while (true) {
+				
+				try {
+					// wait for the next message and take what else is queued
+					batch.add(sendQueue.take());
+					sendQueue.drainTo(batch, batchSize - 1);
+				} catch (InterruptedException e) {
+					LOG.info("Writer thread interrupted");
+					break;
+				}
+				
+				for (Message msg : batch) {
+					try {
+						transmit(msg);
+						sendSucceeded(msg);
+					} catch (IOException e) {
+						sendFailed(msg, e);
+					} catch (RuntimeException e) {
+						sendFailed(msg, new IOException(e.toString()));
+					}
+				}
+				
+				batch.clear();
+			}
+		}
+	}
+	
+	class DispatchTask implements Runnable {
+		
+		private Message msg;
+		
+		public DispatchTask(Message msg) {
+			this.msg = msg;
+		}
+		
+		@Override
+		public void run() {
+			messageDispatched(msg);
+		}
+	}
+	
+	static class DispatchThreadFactory implements ThreadFactory {
+		
+		private AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "DispatchThread-" + count.incrementAndGet());
+			// the receiver thread decides whether the JVM keeps running
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
 
 // Constructors ////////////////////////////////////////////////////////////////
 
@@ -107,14 +280,69 @@ public class UDPLayer extends Layer {
 	 */
 	public UDPLayer(int port, boolean daemon) throws SocketException {
 		// initialize members
-		this.socket = new DatagramSocket(port);
-		this.receiverThread = new ReceiverThread();
+		if (Properties.std.getBool("UDP_NIO_RECEIVER")) {
+			
+			// +1 to check for > RX_BUFFER_SIZE
+			this.receiveBuffers = new ByteBufferPool(Properties.std.getInt("RX_BUFFER_SIZE")+1, Properties.std.getInt("RX_BUFFER_POOL_SIZE"), true);
+			
+			int shards = Math.max(Properties.std.getInt("UDP_RECEIVER_SHARDS"), 1);
+			if (shards > 1 && !reusePortSupported()) {
+				LOG.warning(String.format("SO_REUSEPORT not supported by this JVM, using 1 instead of %d receiver channels", shards));
+				shards = 1;
+			}
+			
+			try {
+				this.channels = openChannels(port, shards);
+			} catch (SocketException e) {
+				if (shards == 1) {
+					throw e;
+				}
+				LOG.warning(String.format("Could not open %d receiver channels, using 1 instead: %s", shards, e.getMessage()));
+				shards = 1;
+				this.channels = openChannels(port, shards);
+			}
+			
+			this.receiverThreads = new Thread[shards];
+			for (int i = 0; i < shards; ++i) {
+				receiverThreads[i] = new ChannelReceiverThread(channels[i], shards > 1 ? "ReceiverThread-" + i : "ReceiverThread");
+			}
+			
+			// the socket adaptor of the first channel is used for sending by default
+			this.socket = channels[0].socket();
+			
+		} else {
+			this.socket = new DatagramSocket(port);
+			this.receiverThreads = new Thread[] { new ReceiverThread() };
+		}
+
+		// initialize send path
+		int queueCapacity = Properties.std.getInt("TX_QUEUE_CAPACITY");
+		if (queueCapacity > 0) {
+			this.sendQueue = new ArrayBlockingQueue<Message>(queueCapacity);
+			this.writerThread = new WriterThread();
+		}
+		if (channels != null) {
+			this.sendBuffers = new ByteBufferPool(Properties.std.getInt("TX_BUFFER_SIZE"), Properties.std.getInt("TX_BATCH_SIZE"), true);
+		}
+		
+		// initialize dispatch stage
+		int poolSize = Properties.std.getInt("DISPATCH_POOL_SIZE");
+		if (poolSize > 0) {
+			this.dispatcher = new ThreadPoolExecutor(poolSize, poolSize, 0L, TimeUnit.MILLISECONDS,
+					new ArrayBlockingQueue<Runnable>(Math.max(Properties.std.getInt("DISPATCH_QUEUE_CAPACITY"), 1)),
+					new DispatchThreadFactory());
+		}
 
-		// decide if receiver thread terminates with main thread
-		receiverThread.setDaemon(daemon);
+		// decide if receiver threads terminate with main thread
+		setDaemon(daemon);
 
 		// start listening right from the beginning
-		this.receiverThread.start();
+		for (Thread receiverThread : receiverThreads) {
+			receiverThread.start();
+		}
+		if (writerThread != null) {
+			writerThread.start();
+		}
 
 	}
 
@@ -134,30 +362,35 @@ public class UDPLayer extends Layer {
 	 * thread terminates. This is useful for e.g. server applications
 	 */
 	public void setDaemon(boolean on) {
-		receiverThread.setDaemon(on);
+		for (Thread receiverThread : receiverThreads) {
+			receiverThread.setDaemon(on);
+		}
 	}
 
 // I/O implementation //////////////////////////////////////////////////////////
 
 	@Override
 	protected void doSendMessage(Message msg) throws IOException {
-
-		// retrieve payload
-		byte[] payload = msg.toByteArray();
 		
-		// create datagram
-		DatagramPacket datagram = new DatagramPacket(payload, payload.length,
-			msg.getPeerAddress().getAddress(), msg.getPeerAddress().getPort() );
-
-		// remember when this message was sent for the first time
-		// set timestamp only once in order
-		// to handle retransmissions correctly
-		if (msg.getTimestamp() == -1) {
-			msg.setTimestamp(System.nanoTime());
+		if (sendQueue != null) {
+			
+			// hand over to writer thread
+			if (!sendQueue.offer(msg)) {
+				IOException e = new IOException("Send queue full");
+				sendFailed(msg, e);
+				throw e;
+			}
+			
+		} else {
+			
+			try {
+				transmit(msg);
+			} catch (IOException e) {
+				sendFailed(msg, e);
+				throw e;
+			}
+			sendSucceeded(msg);
 		}
-
-		// send it over the UDP socket
-		socket.send(datagram);
 	}
 
 	@Override
@@ -169,6 +402,168 @@ public class UDPLayer extends Layer {
 
 // Internal ////////////////////////////////////////////////////////////////////
 
+	/*
+	 * Opens and binds the channels, closing the ones already opened if a
+	 * later one fails.
+	 */
+	private static DatagramChannel[] openChannels(int port, int shards) throws SocketException {
+		
+		DatagramChannel[] channels = new DatagramChannel[shards];
+		try {
+			for (int i = 0; i < shards; ++i) {
+				
+				channels[i] = openChannel(shards > 1);
+				
+				// the first bind resolves an ephemeral port for the other channels
+				channels[i].socket().bind(new InetSocketAddress(port));
+				port = channels[i].socket().getLocalPort();
+			}
+			return channels;
+			
+		} catch (SocketException e) {
+			for (DatagramChannel channel : channels) {
+				if (channel != null) {
+					try {
+						channel.close();
+					} catch (IOException e1) {
+						// ignore
+					}
+				}
+			}
+			throw e;
+		}
+	}
+	
+	private static DatagramChannel openChannel(boolean reusePort) throws SocketException {
+		
+		DatagramChannel channel = null;
+		try {
+			channel = DatagramChannel.open();
+			
+			// must be set before binding
+			if (reusePort) {
+				setReusePort(channel);
+			}
+			
+			return channel;
+			
+		} catch (Exception e) {
+			if (channel != null) {
+				try {
+					channel.close();
+				} catch (IOException e1) {
+					// ignore
+				}
+			}
+			SocketException ex = new SocketException("Could not open datagram channel: " + e.getMessage());
+			ex.initCause(e);
+			throw ex;
+		}
+	}
+	
+	/*
+	 * SO_REUSEPORT is only available through StandardSocketOptions on newer
+	 * JDKs, which are accessed reflectively to keep running on older ones.
+	 * Even then, the platform may not support it for datagram channels.
+	 */
+	private static boolean reusePortSupported() {
+		DatagramChannel channel = null;
+		try {
+			Object option = Class.forName("java.net.StandardSocketOptions").getField("SO_REUSEPORT").get(null);
+			channel = DatagramChannel.open();
+			Set<?> supported = (Set<?>) DatagramChannel.class.getMethod("supportedOptions").invoke(channel);
+			return supported.contains(option);
+		} catch (Exception e) {
+			return false;
+		} finally {
+			if (channel != null) {
+				try {
+					channel.close();
+				} catch (IOException e) {
+					// ignore
+				}
+			}
+		}
+	}
+	
+	private static void setReusePort(DatagramChannel channel) throws Exception {
+		Object option = Class.forName("java.net.StandardSocketOptions").getField("SO_REUSEPORT").get(null);
+		Method setOption = DatagramChannel.class.getMethod("setOption", Class.forName("java.net.SocketOption"), Object.class);
+		setOption.invoke(channel, option, Boolean.TRUE);
+	}
+	
+	private DatagramChannel channelFor(Message msg) {
+		
+		if (channels.length > 1) {
+			// reply through the channel the peer was last heard on
+			DatagramChannel channel = PeerRegistry.getInstance().getPeer(msg.getPeerAddress()).getChannel();
+			if (channel != null) {
+				return channel;
+			}
+		}
+		// forgotten peers are answered through the first channel, which is bound to the same port
+		return channels[0];
+	}
+	
+	private void transmit(Message msg) throws IOException {
+		
+		int size = msg.encodedSize();
+
+		// remember when this message was sent for the first time
+		// set timestamp only once in order
+		// to handle retransmissions correctly
+		if (msg.getTimestamp() == -1) {
+			msg.setTimestamp(System.nanoTime());
+		}
+		
+		if (channels != null && size <= sendBuffers.getBufferSize()) {
+			
+			InetSocketAddress target = new InetSocketAddress(msg.getPeerAddress().getAddress(), msg.getPeerAddress().getPort());
+			
+			// encode straight into a pooled buffer and send it over the channel
+			ByteBuffer buffer = sendBuffers.acquire();
+			try {
+				msg.encode(buffer);
+				buffer.flip();
+				channelFor(msg).send(buffer, target);
+			} finally {
+				sendBuffers.release(buffer);
+			}
+			
+		} else {
+			
+			// retrieve payload
+			byte[] payload = msg.toByteArray();
+			
+			// create datagram
+			DatagramPacket datagram = new DatagramPacket(payload, payload.length,
+				msg.getPeerAddress().getAddress(), msg.getPeerAddress().getPort() );
+			
+			// send it over the UDP socket
+			socket.send(datagram);
+		}
+	}
+	
+	private void sendSucceeded(Message msg) {
+		
+		SendHandler handler = msg.getSendHandler();
+		if (handler != null) {
+			handler.handleSent(msg);
+		}
+	}
+	
+	private void sendFailed(Message msg, IOException cause) {
+		
+		numSendFailures.incrementAndGet();
+		
+		SendHandler handler = msg.getSendHandler();
+		if (handler != null) {
+			handler.handleSendFailure(msg, cause);
+		} else {
+			LOG.severe(String.format("Could not send %s: %s", msg.key(), cause.getMessage()));
+		}
+	}
+
 	private void datagramReceived(DatagramPacket datagram) {
 
 		if (datagram.getLength() > 0) {
@@ -182,54 +577,102 @@ public class UDPLayer extends Layer {
 			// create new message from the received data
 			Message msg = Message.fromByteArray(data);
 			
-			if (msg!=null) {
+			messageReceived(msg, timestamp, datagram.getAddress(), datagram.getPort(), datagram.getLength(), null);
+			
+		} else {
+			
+			LOG.info(String.format("Dropped empty datagram from: %s:%d", datagram.getAddress().getHostName(), datagram.getPort()));
+		}
+	}
+
+	private void datagramReceived(ByteBuffer buffer, InetSocketAddress source, DatagramChannel channel) {
+		
+		int length = buffer.remaining();
+		
+		if (length > 0) {
+			
+			// get current time
+			long timestamp = System.nanoTime();
+			
+			// create new message straight from the receive buffer
+			Message msg = Message.fromByteBuffer(buffer);
+			
+			messageReceived(msg, timestamp, source.getAddress(), source.getPort(), length, channel);
+			
+		} else {
+			
+			LOG.info(String.format("Dropped empty datagram from: %s:%d", source.getAddress().getHostName(), source.getPort()));
+		}
+	}
 	
-				// remember when this message was received
-				msg.setTimestamp(timestamp);
-				
-				msg.setPeerAddress(new EndpointAddress(datagram.getAddress(), datagram.getPort()));
-				
-				if (datagram.getLength()>Properties.std.getInt("RX_BUFFER_SIZE")) {
-					LOG.info(String.format("Marking large datagram for blockwise transfer: %s", msg.key()));
-					msg.requiresBlockwise(true);
-				}
+	private void messageReceived(Message msg, long timestamp, InetAddress address, int port, int length, DatagramChannel channel) {
 
-				// protect against unknown exceptions
+		if (msg!=null) {
+		
+			// remember when this message was received
+			msg.setTimestamp(timestamp);
+			
+			// use the canonical address of the peer
+			Peer peer = PeerRegistry.getInstance().getPeer(address, port);
+			msg.setPeerAddress(peer.getAddress());
+			
+			// remember the channel to reply through
+			if (channel != null && channels.length > 1 && peer.getChannel() != channel) {
+				peer.setChannel(channel);
+			}
+			
+			if (length>Properties.std.getInt("RX_BUFFER_SIZE")) {
+				LOG.info(String.format("Marking large datagram for blockwise transfer: %s", msg.key()));
+				msg.requiresBlockwise(true);
+			}
+			
+			if (dispatcher != null) {
 				try {
-					
-					// call receive handler
-					receiveMessage(msg);
-					
-				} catch (Exception e) {
-					StringBuilder builder = new StringBuilder();
-					builder.append("Crash: ");
-					builder.append(e.getMessage());
-					builder.append('\n');
-					builder.append("                    ");
-					builder.append("Stacktrace for ");
-					builder.append(e.getClass().getName());
-					builder.append(":\n");
-					for (StackTraceElement elem : e.getStackTrace()) {
-						builder.append("                    ");
-						builder.append(elem.getClassName());
-						builder.append('.');
-						builder.append(elem.getMethodName());
-						builder.append('(');
-						builder.append(elem.getFileName());
-						builder.append(':');
-						builder.append(elem.getLineNumber());
-						builder.append(")\n");
-					}
-					
-					LOG.severe(builder.toString());
+					// hand over to worker thread
+					dispatcher.execute(new DispatchTask(msg));
+				} catch (RejectedExecutionException e) {
+					numMessagesDropped.incrementAndGet();
+					LOG.warning(String.format("Dispatch queue full, dropped: %s", msg.key()));
 				}
 			} else {
-				LOG.severe("Illeagal datagram received:\n" + data.toString());
+				messageDispatched(msg);
 			}
 			
 		} else {
+			LOG.severe(String.format("Illeagal datagram received from %s:%d (%d bytes)", address.getHostAddress(), port, length));
+		}
+	}
+	
+	private void messageDispatched(Message msg) {
+
+		// protect against unknown exceptions
+		try {
 			
-			LOG.info(String.format("Dropped empty datagram from: %s:%d", datagram.getAddress().getHostName(), datagram.getPort()));
+			// call receive handler
+			receiveMessage(msg);
+			
+		} catch (Exception e) {
+			StringBuilder builder = new StringBuilder();
+			builder.append("Crash: ");
+			builder.append(e.getMessage());
+			builder.append('\n');
+			builder.append("                    ");
+			builder.append("Stacktrace for ");
+			builder.append(e.getClass().getName());
+			builder.append(":\n");
+			for (StackTraceElement elem : e.getStackTrace()) {
+				builder.append("                    ");
+				builder.append(elem.getClassName());
+				builder.append('.');
+				builder.append(elem.getMethodName());
+				builder.append('(');
+				builder.append(elem.getFileName());
+				builder.append(':');
+				builder.append(elem.getLineNumber());
+				builder.append(")\n");
+			}
+			
+			LOG.severe(builder.toString());
 		}
 	}
 
@@ -243,24 +686,66 @@ public class UDPLayer extends Layer {
 	 * terminates. This is useful for e.g. server applications
 	 */
 	public boolean isDaemon() {
-		return receiverThread.isDaemon();
+		return receiverThreads[0].isDaemon();
 	}
 
 	public int getPort() {
 		return socket.getLocalPort();
 	}
 	
+	/**
+	 * Returns the number of receiver threads, one per channel when receiving
+	 * is sharded.
+	 * 
+	 * @return the number of receiver threads
+	 */
+	public int getReceiverCount() {
+		return receiverThreads.length;
+	}
+	
+	/**
+	 * Returns the number of received messages dropped because the dispatch
+	 * queue was full.
+	 * 
+	 * @return the number of dropped messages
+	 */
+	public int getNumMessagesDropped() {
+		return numMessagesDropped.get();
+	}
+	
 	public String getStats() {
 		StringBuilder stats = new StringBuilder();
 
 		stats.append("UDP port: ");
 		stats.append(getPort());
 		stats.append('\n');
+		stats.append("Receiver threads:  ");
+		stats.append(receiverThreads.length);
+		stats.append('\n');
 		stats.append("Messages sent:     ");
 		stats.append(numMessagesSent);
 		stats.append('\n');
 		stats.append("Messages received: ");
 		stats.append(numMessagesReceived);
+		stats.append('\n');
+		stats.append("Send failures:     ");
+		stats.append(numSendFailures.get());
+		if (sendQueue != null) {
+			stats.append('\n');
+			stats.append("Send queue:        ");
+			stats.append(sendQueue.size());
+		}
+		if (dispatcher != null) {
+			stats.append('\n');
+			stats.append("Dispatch threads:  ");
+			stats.append(dispatcher.getCorePoolSize());
+			stats.append('\n');
+			stats.append("Dispatch queue:    ");
+			stats.append(dispatcher.getQueue().size());
+			stats.append('\n');
+			stats.append("Messages dropped:  ");
+			stats.append(numMessagesDropped.get());
+		}
 		
 		return stats.toString();
 	}
@@ -0,0 +1,129 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import ch.ethz.inf.vs.californium.coap.BlockSource;
+
+/**
+ * The class BufferBlockSource serves a payload from a {@link ByteBuffer},
+ * e.g., a direct buffer or a memory-mapped file. The content between the
+ * position and the limit of the given buffer is served; the buffer itself is
+ * never modified, so it can be shared by concurrent transfers.
+ * <p>
+ * A source can carry a release hook for what it holds beyond the buffer,
+ * e.g., the reservation for the temporary file it maps, which runs once
+ * {@link #release()} is called by the owner of the payload.
+ * 
+ * @author Matthias Kovatsch
+ */
+public class BufferBlockSource implements BlockSource {
+
+// Members /////////////////////////////////////////////////////////////////////
+	
+	private final ByteBuffer buffer;
+	
+	private final Runnable releaseHook;
+	private final AtomicBoolean released = new AtomicBoolean();
+
+// Constructors ////////////////////////////////////////////////////////////////
+	
+	public BufferBlockSource(ByteBuffer buffer) {
+		this(buffer, null);
+	}
+	
+	/**
+	 * Instantiates a new source with a release hook.
+	 * 
+	 * @param buffer the buffer to serve
+	 * @param releaseHook run once on {@link #release()}, may be null
+	 */
+	public BufferBlockSource(ByteBuffer buffer, Runnable releaseHook) {
+		this.buffer = buffer.slice().asReadOnlyBuffer();
+		this.releaseHook = releaseHook;
+	}
+
+// Static methods //////////////////////////////////////////////////////////////
+	
+	/**
+	 * Maps the given file read-only into memory. The file is closed again
+	 * right away; the mapping stays valid until the source is garbage
+	 * collected and its pages are loaded by the OS on demand.
+	 * 
+	 * @param file the file to serve
+	 * @return the block source for the file
+	 * @throws IOException if the file cannot be mapped
+	 */
+	public static BufferBlockSource map(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			if (channel.size() > Integer.MAX_VALUE) {
+				throw new IOException(String.format("File too large for a block source: %s", file));
+			}
+			return new BufferBlockSource(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		} finally {
+			raf.close();
+		}
+	}
+
+// Methods /////////////////////////////////////////////////////////////////////
+	
+	@Override
+	public int size() {
+		return buffer.capacity();
+	}
+	
+	@Override
+	public void read(int offset, byte[] dst, int dstOffset, int length) {
+		// duplicate for a private position, as reads may be concurrent
+		ByteBuffer view = buffer.duplicate();
+		view.position(offset);
+		view.get(dst, dstOffset, length);
+	}
+	
+	/**
+	 * Runs the release hook once the payload is no longer needed. Further
+	 * calls have no effect. The buffer stays readable until it is garbage
+	 * collected.
+	 */
+	public void release() {
+		if (releaseHook != null && released.compareAndSet(false, true)) {
+			releaseHook.run();
+		}
+	}
+}
@@ -0,0 +1,122 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The class ByteBufferPool recycles fixed-size {@link ByteBuffer}s so that
+ * the datagram I/O paths do not need to allocate a new buffer per datagram.
+ * The pool grows on demand and keeps at most the configured number of idle
+ * buffers; surplus buffers returned by {@link #release(ByteBuffer)} are left
+ * to the garbage collector.
+ * 
+ * @author Matthias Kovatsch
+ */
+public class ByteBufferPool {
+
+// Members /////////////////////////////////////////////////////////////////////
+
+	/** The capacity of each buffer in bytes. */
+	private final int bufferSize;
+	
+	/** True if buffers are allocated outside of the Java heap. */
+	private final boolean direct;
+
+	/** The stack of idle buffers. */
+	private final ByteBuffer[] idle;
+	private int idleCount = 0;
+	
+	/** The number of buffers allocated by this pool, for statistics. */
+	private int allocated = 0;
+
+// Constructors ////////////////////////////////////////////////////////////////
+
+	/**
+	 * Instantiates a new pool.
+	 * 
+	 * @param bufferSize the capacity of each buffer in bytes
+	 * @param maxIdle the maximum number of idle buffers kept for reuse
+	 * @param direct true to allocate direct buffers
+	 */
+	public ByteBufferPool(int bufferSize, int maxIdle, boolean direct) {
+		this.bufferSize = bufferSize;
+		this.direct = direct;
+		this.idle = new ByteBuffer[Math.max(maxIdle, 1)];
+	}
+
+// Methods /////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Returns a cleared buffer, either recycled or newly allocated.
+	 * 
+	 * @return a buffer ready to be filled
+	 */
+	public synchronized ByteBuffer acquire() {
+		
+		if (idleCount > 0) {
+			ByteBuffer buffer = idle[--idleCount];
+			idle[idleCount] = null;
+			buffer.clear();
+			return buffer;
+		}
+		
+		++allocated;
+		return direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+	}
+
+	/**
+	 * Returns a buffer to the pool. The caller must not use the buffer
+	 * afterwards.
+	 * 
+	 * @param buffer the buffer obtained through {@link #acquire()}
+	 */
+	public synchronized void release(ByteBuffer buffer) {
+		
+		if (buffer != null && buffer.capacity() == bufferSize && idleCount < idle.length) {
+			idle[idleCount++] = buffer;
+		}
+	}
+
+// Queries /////////////////////////////////////////////////////////////////////
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	public synchronized int getIdleCount() {
+		return idleCount;
+	}
+
+	public synchronized int getAllocatedCount() {
+		return allocated;
+	}
+}
@@ -0,0 +1,329 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The class ConcurrentLongMap is a hash map with primitive long keys for the
+ * lookup tables on the message path, e.g., transactions keyed by peer and
+ * message ID. Keys are neither boxed nor formatted, and entries live in
+ * open-addressing arrays, so lookups and removals do not allocate.
+ * <p>
+ * The map is split into independently locked segments, so concurrent
+ * dispatch threads only contend when they hit the same segment. Null values
+ * are not permitted.
+ * 
+ * @author Matthias Kovatsch
+ */
+public class ConcurrentLongMap<V> {
+
+// Constants ///////////////////////////////////////////////////////////////////
+	
+	private static final int SEGMENTS = 16;
+	private static final int INITIAL_CAPACITY = 16;
+
+// Members /////////////////////////////////////////////////////////////////////
+	
+	private final Segment[] segments;
+
+// Nested Classes //////////////////////////////////////////////////////////////
+	
+	/*
+	 * Linear probing table with backward-shift deletion, i.e., without
+	 * tombstones. A slot is free if its value is null.
+	 */
+	private static final class Segment {
+		
+		long[] keys = new long[INITIAL_CAPACITY];
+		Object[] values = new Object[INITIAL_CAPACITY];
+		int size = 0;
+		
+		int indexOf(long key, int hash) {
+			int mask = keys.length - 1;
+			int i = hash & mask;
+			while (values[i] != null) {
+				if (keys[i] == key) {
+					return i;
+				}
+				i = (i + 1) & mask;
+			}
+			return -1;
+		}
+		
+		Object get(long key, int hash) {
+			int i = indexOf(key, hash);
+			return i < 0 ? null : values[i];
+		}
+		
+		Object put(long key, int hash, Object value, boolean onlyIfAbsent) {
+			int mask = keys.length - 1;
+			int i = hash & mask;
+			while (values[i] != null) {
+				if (keys[i] == key) {
+					Object old = values[i];
+					if (!onlyIfAbsent) {
+						values[i] = value;
+					}
+					return old;
+				}
+				i = (i + 1) & mask;
+			}
+			keys[i] = key;
+			values[i] = value;
+			// keep load factor at most 1/2
+			if (++size * 2 > keys.length) {
+				resize();
+			}
+			return null;
+		}
+		
+		Object remove(long key, int hash, Object expected) {
+			int i = indexOf(key, hash);
+			if (i < 0 || (expected != null && values[i] != expected)) {
+				return null;
+			}
+			Object old = values[i];
+			deleteSlot(i);
+			return old;
+		}
+		
+		void deleteSlot(int i) {
+			int mask = keys.length - 1;
+			values[i] = null;
+			--size;
+			// shift following entries of the probe sequence back
+			int j = i;
+			while (true) {
+				j = (j + 1) & mask;
+				if (values[j] == null) {
+					return;
+				}
+				int home = mix(keys[j]) & mask;
+				// move entry j into the gap at i unless its home lies in (i, j]
+				if ((j > i && (home <= i || home > j)) || (j < i && (home <= i && home > j))) {
+					keys[i] = keys[j];
+					values[i] = values[j];
+					values[j] = null;
+					i = j;
+				}
+			}
+		}
+		
+		void resize() {
+			long[] oldKeys = keys;
+			Object[] oldValues = values;
+			keys = new long[oldKeys.length * 2];
+			values = new Object[oldValues.length * 2];
+			int mask = keys.length - 1;
+			for (int k = 0; k < oldKeys.length; ++k) {
+				if (oldValues[k] != null) {
+					int i = mix(oldKeys[k]) & mask;
+					while (values[i] != null) {
+						i = (i + 1) & mask;
+					}
+					keys[i] = oldKeys[k];
+					values[i] = oldValues[k];
+				}
+			}
+		}
+		
+		void clear() {
+			keys = new long[INITIAL_CAPACITY];
+			values = new Object[INITIAL_CAPACITY];
+			size = 0;
+		}
+	}
+
+// Constructors ////////////////////////////////////////////////////////////////
+	
+	public ConcurrentLongMap() {
+		segments = new Segment[SEGMENTS];
+		for (int i = 0; i < SEGMENTS; ++i) {
+			segments[i] = new Segment();
+		}
+	}
+
+// Methods /////////////////////////////////////////////////////////////////////
+	
+	@SuppressWarnings("unchecked")
+	public V get(long key) {
+		int hash = mix(key);
+		Segment segment = segmentFor(hash);
+		synchronized (segment) {
+			return (V) segment.get(key, hash);
+		}
+	}
+	
+	public boolean containsKey(long key) {
+		return get(key) != null;
+	}
+	
+	/**
+	 * Associates the value with the key.
+	 * 
+	 * @return the previous value, or null if there was none
+	 */
+	@SuppressWarnings("unchecked")
+	public V put(long key, V value) {
+		if (value == null) {
+			throw new NullPointerException();
+		}
+		int hash = mix(key);
+		Segment segment = segmentFor(hash);
+		synchronized (segment) {
+			return (V) segment.put(key, hash, value, false);
+		}
+	}
+	
+	/**
+	 * Associates the value with the key unless it is already mapped.
+	 * 
+	 * @return the current value, or null if the value was added
+	 */
+	@SuppressWarnings("unchecked")
+	public V putIfAbsent(long key, V value) {
+		if (value == null) {
+			throw new NullPointerException();
+		}
+		int hash = mix(key);
+		Segment segment = segmentFor(hash);
+		synchronized (segment) {
+			return (V) segment.put(key, hash, value, true);
+		}
+	}
+	
+	/**
+	 * Replaces the value only if the key is mapped to the expected instance.
+	 * 
+	 * @return true if the value was replaced
+	 */
+	public boolean replace(long key, V expected, V value) {
+		if (value == null) {
+			throw new NullPointerException();
+		}
+		int hash = mix(key);
+		Segment segment = segmentFor(hash);
+		synchronized (segment) {
+			int i = segment.indexOf(key, hash);
+			if (i < 0 || segment.values[i] != expected) {
+				return false;
+			}
+			segment.values[i] = value;
+			return true;
+		}
+	}
+	
+	@SuppressWarnings("unchecked")
+	public V remove(long key) {
+		int hash = mix(key);
+		Segment segment = segmentFor(hash);
+		synchronized (segment) {
+			return (V) segment.remove(key, hash, null);
+		}
+	}
+	
+	/**
+	 * Removes the entry only if the key is mapped to the given value instance.
+	 * 
+	 * @return true if the entry was removed
+	 */
+	public boolean remove(long key, V value) {
+		if (value == null) {
+			return false;
+		}
+		int hash = mix(key);
+		Segment segment = segmentFor(hash);
+		synchronized (segment) {
+			return segment.remove(key, hash, value) != null;
+		}
+	}
+	
+	public int size() {
+		int size = 0;
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				size += segment.size;
+			}
+		}
+		return size;
+	}
+	
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+	
+	public void clear() {
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				segment.clear();
+			}
+		}
+	}
+	
+	/**
+	 * Returns a snapshot of the values, segment by segment.
+	 * 
+	 * @return the list of values
+	 */
+	@SuppressWarnings("unchecked")
+	public List<V> values() {
+		List<V> list = new ArrayList<V>();
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				for (Object value : segment.values) {
+					if (value != null) {
+						list.add((V) value);
+					}
+				}
+			}
+		}
+		return list;
+	}
+
+// Internal ////////////////////////////////////////////////////////////////////
+	
+	private Segment segmentFor(int hash) {
+		// use the upper bits, the lower ones select the slot
+		return segments[(hash >>> 28) & (SEGMENTS - 1)];
+	}
+	
+	private static int mix(long key) {
+		// finalizer of MurmurHash3
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb9fe1a85ec53L;
+		key ^= key >>> 33;
+		return (int) key;
+	}
+}
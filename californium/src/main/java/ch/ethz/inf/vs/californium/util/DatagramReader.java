@@ -30,7 +30,7 @@
  ******************************************************************************/
 package ch.ethz.inf.vs.californium.util;
 
-import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
 
 /*
  * This class describes the functionality to read raw
@@ -50,9 +50,20 @@ public class DatagramReader {
 	 * @param byteArray The byte array to read from
 	 */
 	public DatagramReader(byte[] byteArray) {
+		this(ByteBuffer.wrap(byteArray));
+	}
+
+	/*
+	 * Initializes a new BitReader object that reads directly from the
+	 * remaining bytes of a buffer, e.g., a pooled receive buffer. The
+	 * buffer position advances while reading.
+	 * 
+	 * @param buffer The buffer to read from
+	 */
+	public DatagramReader(ByteBuffer buffer) {
 
-		// initialize underlying byte stream
-		byteStream = new ByteArrayInputStream(byteArray);
+		// initialize underlying byte buffer
+		byteBuffer = buffer;
 
 		// initialize bit buffer
 		currentByte = 0;
@@ -105,7 +116,7 @@ public class DatagramReader {
 
 		// for negative count values, read all bytes left
 		if (count < 0)
-			count = byteStream.available();
+			count = byteBuffer.remaining();
 
 		// allocate byte array
 		byte[] bytes = new byte[count];
@@ -120,8 +131,9 @@ public class DatagramReader {
 		} else {
 
 			// if bit buffer is empty, call can be delegated
-			// to byte stream to increase performance
-			byteStream.read(bytes, 0, bytes.length);
+			// to byte buffer to increase performance
+			int available = Math.min(count, byteBuffer.remaining());
+			byteBuffer.get(bytes, 0, available);
 		}
 
 		return bytes;
@@ -143,12 +155,10 @@ public class DatagramReader {
 	 */
 	private void readCurrentByte() {
 
-		// try to read from byte stream
-		int val = byteStream.read();
-
-		if (val >= 0) {
+		// try to read from byte buffer
+		if (byteBuffer.hasRemaining()) {
 			// byte successfully read
-			currentByte = (byte) val;
+			currentByte = byteBuffer.get();
 		} else {
 			// end of stream reached;
 			// return implicit zero bytes
@@ -161,7 +171,7 @@ public class DatagramReader {
 
 	// Attributes //////////////////////////////////////////////////////////////
 
-	private ByteArrayInputStream byteStream;
+	private ByteBuffer byteBuffer;
 
 	private byte currentByte;
 	private int currentBitIndex;
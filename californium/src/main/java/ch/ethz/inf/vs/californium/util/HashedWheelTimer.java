@@ -0,0 +1,368 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * The class HashedWheelTimer schedules one-shot tasks on a wheel of time
+ * slots, as used for retransmissions and exchange timeouts. Scheduling and
+ * cancelling are O(1), and a cancelled task is unlinked immediately instead
+ * of lingering in a heap like with {@link java.util.Timer}. The price is a
+ * resolution limited to one tick.
+ * <p>
+ * Time is taken from a {@link Clock}, so that tests can drive the wheel
+ * through {@link #expireTimeouts()} without starting the worker thread.
+ * Tasks are run by the thread that expires them and should return quickly.
+ * 
+ * @author Matthias Kovatsch
+ */
+public class HashedWheelTimer {
+
+// Logging /////////////////////////////////////////////////////////////////////
+	
+	private static final Logger LOG = Logger.getLogger(HashedWheelTimer.class.getName());
+
+// Static attributes ///////////////////////////////////////////////////////////
+	
+	/** The clock based on {@link System#nanoTime()}. */
+	public static final Clock SYSTEM_CLOCK = new Clock() {
+		@Override
+		public long nanoTime() {
+			return System.nanoTime();
+		}
+	};
+	
+	private static HashedWheelTimer singleton;
+
+// Members /////////////////////////////////////////////////////////////////////
+	
+	private final Clock clock;
+	
+	/** The duration of one slot in nanoseconds. */
+	private final long tickNanos;
+	
+	/** The slots, each holding a doubly-linked list of timeouts. */
+	private final Timeout[] wheel;
+	private final int mask;
+	
+	/** The reference all deadlines are relative to. */
+	private final long startTime;
+	
+	/** The next tick to expire, guarded by this. */
+	private long tick = 0;
+	
+	/** The number of pending timeouts, guarded by this. */
+	private int pending = 0;
+	
+	private Thread worker;
+
+// Nested Classes //////////////////////////////////////////////////////////////
+	
+	/**
+	 * The time source of the timer.
+	 */
+	public interface Clock {
+		
+		/**
+		 * Returns the current time of a monotonic clock.
+		 * 
+		 * @return the time in nanoseconds
+		 */
+		long nanoTime();
+	}
+	
+	/**
+	 * A handle for a scheduled task.
+	 */
+	public final class Timeout {
+		
+		private final Runnable task;
+		private final long deadline;
+		
+		// slot list, null prev and next while not linked
+		private Timeout prev;
+		private Timeout next;
+		private int slot = -1;
+		
+		private boolean cancelled = false;
+		private boolean expired = false;
+		
+		private Timeout(Runnable task, long deadline) {
+			this.task = task;
+			this.deadline = deadline;
+		}
+		
+		/**
+		 * Cancels the task if it has not been run yet.
+		 * 
+		 * @return true if the task will not run because of this call
+		 */
+		public boolean cancel() {
+			synchronized (HashedWheelTimer.this) {
+				if (cancelled || expired) {
+					return false;
+				}
+				cancelled = true;
+				unlink(this);
+				return true;
+			}
+		}
+		
+		public boolean isCancelled() {
+			synchronized (HashedWheelTimer.this) {
+				return cancelled;
+			}
+		}
+		
+		public boolean isExpired() {
+			synchronized (HashedWheelTimer.this) {
+				return expired;
+			}
+		}
+	}
+	
+	private class Worker extends Thread {
+		
+		public Worker(String name) {
+			super(name);
+			setDaemon(true);
+		}
+		
+		@Override
+		public void run() {
+			while (!isInterrupted()) {
+				try {
+					long wait = nextTickTime() - clock.nanoTime();
+					if (wait > 0) {
+						Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+					}
+				} catch (InterruptedException e) {
+					break;
+				}
+				expireTimeouts();
+			}
+			LOG.fine(String.format("Timer thread stopped: %s", getName()));
+		}
+	}
+
+// Constructors ////////////////////////////////////////////////////////////////
+	
+	/**
+	 * Instantiates a new timer. It does not run tasks before {@link #start()}
+	 * or explicit calls to {@link #expireTimeouts()}.
+	 * 
+	 * @param tickDuration the duration of one tick in milliseconds
+	 * @param wheelSize the number of slots, rounded up to a power of two
+	 * @param clock the time source
+	 */
+	public HashedWheelTimer(long tickDuration, int wheelSize, Clock clock) {
+		
+		if (tickDuration <= 0) {
+			throw new IllegalArgumentException("Tick duration must be positive: " + tickDuration);
+		}
+		
+		int size = 1;
+		while (size < wheelSize) {
+			size <<= 1;
+		}
+		
+		this.clock = clock;
+		this.tickNanos = tickDuration * 1000000L;
+		this.wheel = new Timeout[size];
+		this.mask = size - 1;
+		this.startTime = clock.nanoTime();
+	}
+	
+	/**
+	 * Returns the timer shared by the layers of this endpoint. It is configured
+	 * through TIMER_TICK and TIMER_WHEEL_SIZE and started on first use.
+	 * 
+	 * @return the shared timer
+	 */
+	public static synchronized HashedWheelTimer getInstance() {
+		
+		if (singleton == null) {
+			singleton = new HashedWheelTimer(Properties.std.getInt("TIMER_TICK"), Properties.std.getInt("TIMER_WHEEL_SIZE"), SYSTEM_CLOCK);
+			singleton.start("TimerThread");
+		}
+		return singleton;
+	}
+
+// Methods /////////////////////////////////////////////////////////////////////
+	
+	/**
+	 * Starts a daemon thread that expires the timeouts tick by tick.
+	 * 
+	 * @param name the name of the thread
+	 */
+	public synchronized void start(String name) {
+		if (worker == null) {
+			worker = new Worker(name);
+			worker.start();
+		}
+	}
+	
+	/**
+	 * Stops the worker thread. Pending timeouts are kept.
+	 */
+	public synchronized void stop() {
+		if (worker != null) {
+			worker.interrupt();
+			worker = null;
+		}
+	}
+
+	/**
+	 * Schedules a task to be run once after the given delay.
+	 * 
+	 * @param task the task to run
+	 * @param delay the delay in milliseconds
+	 * @return the handle to cancel the task
+	 */
+	public Timeout schedule(Runnable task, long delay) {
+		
+		long deadline = clock.nanoTime() - startTime + Math.max(delay, 0L) * 1000000L;
+		Timeout timeout = new Timeout(task, deadline);
+		
+		synchronized (this) {
+			// a deadline in an already expired tick goes into the next one
+			long target = Math.max((deadline + tickNanos - 1) / tickNanos, tick);
+			link(timeout, (int) (target & mask));
+		}
+		
+		return timeout;
+	}
+	
+	/**
+	 * Runs all tasks whose deadline has passed according to the clock.
+	 * 
+	 * @return the number of tasks run
+	 */
+	public int expireTimeouts() {
+		
+		List<Timeout> expired = new ArrayList<Timeout>();
+		
+		synchronized (this) {
+			
+			long now = clock.nanoTime() - startTime;
+			
+			while (tick * tickNanos <= now) {
+				
+				// timeouts of later rounds stay in the slot
+				Timeout timeout = wheel[(int) (tick & mask)];
+				while (timeout != null) {
+					Timeout next = timeout.next;
+					if (timeout.deadline <= now) {
+						unlink(timeout);
+						timeout.expired = true;
+						expired.add(timeout);
+					}
+					timeout = next;
+				}
+				
+				++tick;
+				
+				// skip idle rounds, e.g., after the clock jumped
+				if (pending == 0) {
+					tick = Math.max(tick, now / tickNanos + 1);
+				}
+			}
+		}
+		
+		// run tasks without holding the lock
+		for (Timeout timeout : expired) {
+			try {
+				timeout.task.run();
+			} catch (RuntimeException e) {
+				LOG.severe(String.format("Timer task failed: %s", e.toString()));
+			}
+		}
+		
+		return expired.size();
+	}
+	
+	/**
+	 * Returns the time source of this timer, e.g., to timestamp activity
+	 * that is checked by scheduled tasks.
+	 * 
+	 * @return the clock
+	 */
+	public Clock getClock() {
+		return clock;
+	}
+	
+	/**
+	 * Returns the number of scheduled tasks that have neither run nor been
+	 * cancelled.
+	 * 
+	 * @return the number of pending tasks
+	 */
+	public synchronized int getPendingCount() {
+		return pending;
+	}
+
+// Internal ////////////////////////////////////////////////////////////////////
+	
+	private synchronized long nextTickTime() {
+		return startTime + tick * tickNanos;
+	}
+	
+	private void link(Timeout timeout, int slot) {
+		timeout.slot = slot;
+		timeout.next = wheel[slot];
+		if (wheel[slot] != null) {
+			wheel[slot].prev = timeout;
+		}
+		wheel[slot] = timeout;
+		++pending;
+	}
+	
+	private void unlink(Timeout timeout) {
+		if (timeout.slot < 0) {
+			return;
+		}
+		if (timeout.prev != null) {
+			timeout.prev.next = timeout.next;
+		} else {
+			wheel[timeout.slot] = timeout.next;
+		}
+		if (timeout.next != null) {
+			timeout.next.prev = timeout.prev;
+		}
+		timeout.prev = null;
+		timeout.next = null;
+		timeout.slot = -1;
+		--pending;
+	}
+}
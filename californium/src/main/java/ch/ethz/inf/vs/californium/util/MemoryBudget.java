@@ -0,0 +1,98 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The class MemoryBudget bounds the number of bytes that several buffers may
+ * hold together, e.g., all block-wise transfers of a layer. Buffers reserve
+ * bytes before allocating and release them when freed; a failed reservation
+ * tells the buffer to fall back to another strategy or to give up.
+ * 
+ * @author Matthias Kovatsch
+ */
+public class MemoryBudget {
+
+// Members /////////////////////////////////////////////////////////////////////
+	
+	private final long limit;
+	
+	private final AtomicLong used = new AtomicLong();
+
+// Constructors ////////////////////////////////////////////////////////////////
+	
+	/**
+	 * Instantiates a new budget.
+	 * 
+	 * @param limit the maximum number of bytes that can be reserved
+	 */
+	public MemoryBudget(long limit) {
+		this.limit = limit;
+	}
+
+// Methods /////////////////////////////////////////////////////////////////////
+	
+	/**
+	 * Reserves the given number of bytes if they fit into the budget.
+	 * 
+	 * @param bytes the number of bytes to reserve
+	 * @return true if the bytes were reserved
+	 */
+	public boolean reserve(long bytes) {
+		while (true) {
+			long current = used.get();
+			if (current + bytes > limit) {
+				return false;
+			}
+			if (used.compareAndSet(current, current + bytes)) {
+				return true;
+			}
+		}
+	}
+	
+	/**
+	 * Releases previously reserved bytes.
+	 * 
+	 * @param bytes the number of bytes to release
+	 */
+	public void release(long bytes) {
+		used.addAndGet(-bytes);
+	}
+	
+	public long getUsed() {
+		return used.get();
+	}
+	
+	public long getLimit() {
+		return limit;
+	}
+}
@@ -86,14 +86,85 @@ public class Properties extends java.util.Properties {
 		// to transmit a message is canceled		
 		set("MAX_RETRANSMIT", 4);
 		
+		// maximal number of outstanding confirmable requests per endpoint,
+		// 0 disables the limit
+		set("NSTART", 1);
+		
+		// adapt the initial timeout and backoff to the measured round trip
+		// times per peer (CoCoA) instead of using RESPONSE_TIMEOUT only
+		set("CONGESTION_CONTROL", true);
+		
+		// time from starting to send a confirmable until the last possible
+		// duplicate is received, i.e., how long message IDs are remembered
+		set("EXCHANGE_LIFETIME", 247000); // [milliseconds]
+		
 		/* Implementation-specific */
 		
+		// probabilities to drop outgoing and incoming messages for evaluation,
+		// the AdverseLayer is only added to the stack if one is positive
+		set("ADVERSE_TX_LOSS", 0.0);
+		set("ADVERSE_RX_LOSS", 0.0);
+		
 		// buffer size for incoming datagrams, in bytes
 		// TODO find best value
 		set("RX_BUFFER_SIZE", 4 * 1024); // [bytes]
 		
-		// capacity for caches used for duplicate detection and retransmissions
-		set("MESSAGE_CACHE_SIZE", 32); // [messages]
+		// receive datagrams through a java.nio DatagramChannel into pooled
+		// direct buffers instead of allocating a new buffer per datagram
+		set("UDP_NIO_RECEIVER", true);
+		
+		// number of idle receive buffers kept for reuse
+		set("RX_BUFFER_POOL_SIZE", 16); // [buffers]
+		
+		// number of NIO channels bound to the same port with SO_REUSEPORT,
+		// each served by its own receiver thread (requires a JDK that
+		// supports SO_REUSEPORT, e.g., on Linux)
+		set("UDP_RECEIVER_SHARDS", 1); // [channels]
+		
+		// capacity of the queue drained by the writer thread,
+		// 0 sends on the calling thread
+		set("TX_QUEUE_CAPACITY", 1024); // [messages]
+		
+		// maximum number of queued messages taken in one go by the writer
+		// thread, which still sends each with its own system call
+		set("TX_BATCH_SIZE", 32); // [messages]
+		
+		// size of the pooled buffers outgoing datagrams are serialized into,
+		// larger datagrams are sent from their own buffer
+		set("TX_BUFFER_SIZE", 2 * 1024); // [bytes]
+		
+		// number of worker threads that run the stack for received messages,
+		// 0 runs the stack on the receiver thread
+		set("DISPATCH_POOL_SIZE", 4); // [threads]
+		
+		// capacity of the queue between receiver thread and worker threads,
+		// messages are dropped when it is full
+		set("DISPATCH_QUEUE_CAPACITY", 1024); // [messages]
+		
+		// capacity of the per-endpoint queue for requests waiting for NSTART,
+		// and whether they are ordered by request priority instead of FIFO
+		set("NSTART_QUEUE_CAPACITY", 1024); // [requests]
+		set("NSTART_PRIORITY_QUEUE", false);
+		
+		// resolution and number of slots of the timer wheel used for
+		// retransmissions and exchange timeouts
+		set("TIMER_TICK", 10); // [milliseconds]
+		set("TIMER_WHEEL_SIZE", 512); // [slots]
+		
+		// upper bound for received messages remembered for duplicate detection
+		// and reply retransmissions, the oldest are dropped when exceeded
+		set("DEDUPLICATION_CAPACITY", 100000); // [messages]
+		
+		// time after which peers without activity are forgotten with their
+		// state, e.g., the RTO estimate; must exceed EXCHANGE_LIFETIME, as a
+		// forgotten peer starts over with new message IDs
+		set("PEER_IDLE_TIMEOUT", 300000); // [milliseconds]
+		
+		// maximum number of tokens in use at the same time, and whether
+		// tokens are random instead of counted to make them hard to guess
+		// for off-path attackers (draft-ietf-core-coap, security considerations)
+		set("TOKEN_CAPACITY", 16384); // [tokens]
+		set("RANDOM_TOKENS", false);
 		
 		// time limit for transactions to complete,
 		// used to avoid infinite waits for replies to non-confirmables
@@ -103,9 +174,45 @@ public class Properties extends java.util.Properties {
 		// the default block size for block-wise transfers
 		// must be power of two between 16 and 1024
 		set("DEFAULT_BLOCK_SIZE", 512); // [bytes]
+		
+		// incoming block-wise transfers larger than the threshold are
+		// reassembled in a temporary file; all transfers together may hold
+		// at most the budget in memory before they spill as well
+		set("BLOCK_SPILL_THRESHOLD", 65536); // [bytes]
+		set("BLOCK_MEMORY_BUDGET", 4194304); // [bytes]
+		
+		// incoming block-wise transfers larger than the maximum, or spilling
+		// beyond the disk budget of all transfers, are rejected with 4.13
+		set("BLOCK_MAX_TRANSFER_SIZE", 16777216); // [bytes]
+		set("BLOCK_SPILL_BUDGET", 67108864); // [bytes]
+		
+		// outgoing block-wise transfers cache their payload for the next
+		// block requests; the least recently used ones are freed above the
+		// capacity, payloads served from a block source do not count
+		set("BLOCK_CACHE_CAPACITY", 4194304); // [bytes]
+		
+		// block-wise transfers are freed after receiving or serving no
+		// block for this time, e.g., when abandoned by the peer
+		set("BLOCK_TRANSFER_TIMEOUT", 120000); // [milliseconds]
 
-		// the number of notifications until a CON notification will be used
+		// number of threads that send the notifications of changed resources,
+		// 0 notifies on the thread that calls changed()
+		set("NOTIFICATION_POOL_SIZE", 1); // [threads]
+		
+		// the number of notifications until a CON notification will be used;
+		// the interval doubles for observers that acknowledge right away
 		set("OBSERVING_REFRESH_INTERVAL", 10);
+		set("OBSERVING_REFRESH_INTERVAL_MAX", 80);
+		
+		// retransmissions of CON notifications to an observer that needed
+		// retransmissions before; it is evicted when they time out
+		set("OBSERVING_MAX_RETRANSMIT", 1);
+		
+		// default minimum and maximum time between two notifications to an
+		// observer, 0 for none; resources and observers (pmin and pmax query
+		// parameters in seconds) can override them
+		set("OBSERVING_MIN_PERIOD", 0); // [milliseconds]
+		set("OBSERVING_MAX_PERIOD", 0); // [milliseconds]
 		
 	}
 
@@ -131,6 +238,10 @@ public class Properties extends java.util.Properties {
 		setProperty(key, String.valueOf(value));
 	}
 	
+	public void set(String key, boolean value) {
+		setProperty(key, String.valueOf(value));
+	}
+	
 	public String getStr(String key) {
 		String value = getProperty(key);
 		if (value == null) {
@@ -167,6 +278,16 @@ public class Properties extends java.util.Properties {
 		return 0.0;
 	}
 	
+	public boolean getBool(String key) {
+		String value = getProperty(key);
+		if (value != null) {
+			return Boolean.parseBoolean(value.trim());
+		} else {
+			LOG.severe(String.format("Undefined boolean property: %s", key));
+		}
+		return false;
+	}
+	
 	public void load(String fileName) throws IOException {
 		InputStream in = new FileInputStream(fileName);
 		load(in);
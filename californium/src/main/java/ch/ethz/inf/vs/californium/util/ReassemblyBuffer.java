@@ -0,0 +1,269 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import ch.ethz.inf.vs.californium.coap.Message;
+
+/**
+ * The class ReassemblyBuffer collects the blocks of an incoming block-wise
+ * transfer. The buffer grows geometrically, so appending is amortized O(1)
+ * instead of copying the whole payload for every block. Its memory is
+ * reserved from a {@link MemoryBudget} shared by all transfers. Above the
+ * spill threshold, or when the budget is exhausted, the content is moved to
+ * a temporary file and the completed payload is handed over as a mapped
+ * {@link BufferBlockSource}, so large uploads do not stay on the heap.
+ * The size of a transfer is limited, and the temporary files of all
+ * transfers are bounded by a second budget; appending beyond either fails,
+ * so that the transfer can be rejected. The disk reservation of a mapped
+ * payload is held until the source is released, as the mapping keeps the
+ * blocks of the deleted file.
+ * 
+ * @author Matthias Kovatsch
+ */
+public class ReassemblyBuffer {
+
+// Constants ///////////////////////////////////////////////////////////////////
+	
+	private static final int INITIAL_CAPACITY = 1024;
+
+// Members /////////////////////////////////////////////////////////////////////
+	
+	private final MemoryBudget budget;
+	private final int spillThreshold;
+	
+	private final int maxSize;
+	private final MemoryBudget spillBudget;
+	
+	// in-memory content, null when spilled or discarded
+	private byte[] data = new byte[0];
+	private int size = 0;
+	
+	// temporary file after spilling
+	private File file;
+	private RandomAccessFile raf;
+	private long spilled = 0;
+	
+	private boolean discarded = false;
+
+// Constructors ////////////////////////////////////////////////////////////////
+	
+	/**
+	 * Instantiates a new buffer.
+	 * 
+	 * @param budget the memory budget shared with the other transfers
+	 * @param spillThreshold the size above which the content goes to a file
+	 * @param maxSize the maximum size of the content
+	 * @param spillBudget the disk budget shared with the other transfers
+	 */
+	public ReassemblyBuffer(MemoryBudget budget, int spillThreshold, int maxSize, MemoryBudget spillBudget) {
+		this.budget = budget;
+		this.spillThreshold = spillThreshold;
+		this.maxSize = maxSize;
+		this.spillBudget = spillBudget;
+	}
+	
+	/**
+	 * Instantiates a new buffer without limits other than the memory budget.
+	 * 
+	 * @param budget the memory budget shared with the other transfers
+	 * @param spillThreshold the size above which the content goes to a file
+	 */
+	public ReassemblyBuffer(MemoryBudget budget, int spillThreshold) {
+		this(budget, spillThreshold, Integer.MAX_VALUE, new MemoryBudget(Long.MAX_VALUE));
+	}
+
+// Methods /////////////////////////////////////////////////////////////////////
+	
+	/**
+	 * Appends a block.
+	 * 
+	 * @param block the payload of the block, may be null
+	 * @throws IOException if the buffer was discarded, a limit was exceeded,
+	 * or spilling failed
+	 */
+	public synchronized void append(byte[] block) throws IOException {
+		
+		if (discarded) {
+			throw new IOException("Reassembly buffer discarded");
+		}
+		if (block == null || block.length == 0) {
+			return;
+		}
+		
+		int needed = size + block.length;
+		
+		if (needed > maxSize || needed < 0) {
+			throw new IOException(String.format("Transfer exceeds %d bytes", maxSize));
+		}
+		
+		if (data != null && needed > data.length) {
+			
+			int capacity = Math.max(needed, Math.max(INITIAL_CAPACITY, data.length * 2));
+			if (needed <= spillThreshold) {
+				capacity = Math.min(capacity, spillThreshold);
+			}
+			
+			if (needed > spillThreshold || !budget.reserve(capacity - data.length)) {
+				spill();
+			} else {
+				data = Arrays.copyOf(data, capacity);
+			}
+		}
+		
+		if (data != null) {
+			System.arraycopy(block, 0, data, size, block.length);
+		} else {
+			reserveSpill(block.length);
+			raf.getChannel().write(ByteBuffer.wrap(block), size);
+		}
+		size = needed;
+	}
+	
+	/**
+	 * Sets the reassembled content as payload of the given message and frees
+	 * the buffer. A spilled buffer is set as mapped payload source, which
+	 * keeps its part of the spill budget until
+	 * {@link BufferBlockSource#release()} is called.
+	 * 
+	 * @param msg the message to receive the payload
+	 * @throws IOException if the buffer was discarded or mapping failed
+	 */
+	public synchronized void moveTo(Message msg) throws IOException {
+		
+		if (discarded) {
+			throw new IOException("Reassembly buffer discarded");
+		}
+		
+		if (data != null) {
+			msg.setPayload(size == data.length ? data : Arrays.copyOf(data, size));
+		} else {
+			FileChannel channel = raf.getChannel();
+			final long reserved = spilled;
+			msg.setPayloadSource(new BufferBlockSource(channel.map(FileChannel.MapMode.READ_ONLY, 0, size), new Runnable() {
+				@Override
+				public void run() {
+					spillBudget.release(reserved);
+				}
+			}));
+			// handed over to the source
+			spilled = 0;
+		}
+		
+		discard();
+	}
+	
+	/**
+	 * Frees the memory and the temporary file of the buffer.
+	 */
+	public synchronized void discard() {
+		
+		if (discarded) {
+			return;
+		}
+		discarded = true;
+		
+		if (data != null) {
+			budget.release(data.length);
+			data = null;
+		}
+		if (raf != null) {
+			try {
+				raf.close();
+			} catch (IOException e) {
+				// nothing left to do
+			}
+			// a mapping stays valid after the file is deleted, except on Windows
+			if (!file.delete()) {
+				file.deleteOnExit();
+			}
+			raf = null;
+			spillBudget.release(spilled);
+			spilled = 0;
+		}
+	}
+	
+	public synchronized int size() {
+		return size;
+	}
+	
+	public synchronized boolean isSpilled() {
+		return file != null;
+	}
+
+// Internal ////////////////////////////////////////////////////////////////////
+	
+	private void spill() throws IOException {
+		
+		reserveSpill(size);
+		
+		File tmp;
+		try {
+			tmp = File.createTempFile("cf-block", ".tmp");
+		} catch (IOException e) {
+			spillBudget.release(size);
+			spilled -= size;
+			throw e;
+		}
+		RandomAccessFile out = null;
+		try {
+			out = new RandomAccessFile(tmp, "rw");
+			out.getChannel().write(ByteBuffer.wrap(data, 0, size), 0);
+		} catch (IOException e) {
+			if (out != null) {
+				out.close();
+			}
+			tmp.delete();
+			spillBudget.release(size);
+			spilled -= size;
+			throw e;
+		}
+		
+		file = tmp;
+		raf = out;
+		
+		budget.release(data.length);
+		data = null;
+	}
+	
+	private void reserveSpill(long bytes) throws IOException {
+		if (!spillBudget.reserve(bytes)) {
+			throw new IOException(String.format("Spill budget of %d bytes exhausted", spillBudget.getLimit()));
+		}
+		spilled += bytes;
+	}
+}
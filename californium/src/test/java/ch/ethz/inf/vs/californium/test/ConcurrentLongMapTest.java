@@ -0,0 +1,99 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.test;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import ch.ethz.inf.vs.californium.util.ConcurrentLongMap;
+
+
+public class ConcurrentLongMapTest {
+
+	@Test
+	public void testBasicOperations() {
+		ConcurrentLongMap<String> map = new ConcurrentLongMap<String>();
+		
+		assertNull(map.put(0L, "zero"));
+		assertNull(map.put(-1L, "minus one"));
+		assertEquals("zero", map.put(0L, "null"));
+		assertEquals("null", map.putIfAbsent(0L, "zero"));
+		assertEquals(2, map.size());
+		
+		assertEquals("null", map.get(0L));
+		assertTrue(map.containsKey(-1L));
+		assertFalse(map.containsKey(1L));
+		
+		// removal only if mapped to the given instance
+		assertFalse(map.remove(-1L, new String("minus one")));
+		assertEquals("minus one", map.remove(-1L));
+		assertNull(map.remove(-1L));
+		assertEquals(1, map.size());
+		
+		// replacement only if mapped to the expected instance
+		assertFalse(map.replace(0L, new String("null"), "zero"));
+		assertFalse(map.replace(1L, null, "one"));
+		assertTrue(map.replace(0L, map.get(0L), "zero"));
+		assertEquals("zero", map.get(0L));
+		
+		map.clear();
+		assertTrue(map.isEmpty());
+	}
+	
+	@Test
+	public void testAgainstHashMap() {
+		ConcurrentLongMap<Long> map = new ConcurrentLongMap<Long>();
+		Map<Long, Long> reference = new HashMap<Long, Long>();
+		Random random = new Random(4711);
+		
+		// small key range to provoke collisions and deletions within probe chains
+		for (int i = 0; i < 200000; ++i) {
+			long key = ((long) random.nextInt(64) << 16) | random.nextInt(64);
+			if (random.nextInt(3) == 0) {
+				assertEquals(reference.remove(key), map.remove(key));
+			} else {
+				Long value = Long.valueOf(i);
+				assertEquals(reference.put(key, value), map.put(key, value));
+			}
+		}
+		
+		assertEquals(reference.size(), map.size());
+		for (Map.Entry<Long, Long> entry : reference.entrySet()) {
+			assertEquals(entry.getValue(), map.get(entry.getKey()));
+		}
+		assertEquals(reference.size(), map.values().size());
+	}
+}
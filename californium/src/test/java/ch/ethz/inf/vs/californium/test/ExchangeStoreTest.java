@@ -0,0 +1,179 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.test;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import ch.ethz.inf.vs.californium.coap.BlockOption;
+import ch.ethz.inf.vs.californium.coap.CodeRegistry;
+import ch.ethz.inf.vs.californium.coap.EndpointAddress;
+import ch.ethz.inf.vs.californium.coap.GETRequest;
+import ch.ethz.inf.vs.californium.coap.Message;
+import ch.ethz.inf.vs.californium.coap.Option;
+import ch.ethz.inf.vs.californium.coap.OptionNumberRegistry;
+import ch.ethz.inf.vs.californium.coap.Request;
+import ch.ethz.inf.vs.californium.coap.Response;
+import ch.ethz.inf.vs.californium.coap.TimeoutHandler;
+import ch.ethz.inf.vs.californium.layers.ExchangeStore;
+import ch.ethz.inf.vs.californium.layers.MatchingLayer;
+import ch.ethz.inf.vs.californium.layers.TokenLayer;
+import ch.ethz.inf.vs.californium.test.StackFixture.Collector;
+import ch.ethz.inf.vs.californium.test.StackFixture.ManualClock;
+import ch.ethz.inf.vs.californium.test.StackFixture.RecordingLayer;
+import ch.ethz.inf.vs.californium.util.HashedWheelTimer;
+
+
+public class ExchangeStoreTest {
+	
+	private ManualClock clock = new ManualClock();
+	
+	private HashedWheelTimer timer;
+	private ExchangeStore exchanges;
+	private TokenLayer tokenLayer;
+	private MatchingLayer matchingLayer;
+	private List<Message> delivered;
+	
+	private EndpointAddress peer;
+	
+	private Response response(Request request) {
+		Response response = new Response(CodeRegistry.RESP_CONTENT);
+		response.setPeerAddress(peer);
+		response.setToken(request.getToken());
+		return response;
+	}
+	
+	@Before
+	public void setUp() throws Exception {
+		timer = new HashedWheelTimer(10, 8, clock);
+		exchanges = new ExchangeStore();
+		tokenLayer = new TokenLayer(exchanges, 1000, timer);
+		matchingLayer = new MatchingLayer(exchanges);
+		tokenLayer.setLowerLayer(matchingLayer);
+		matchingLayer.setLowerLayer(new RecordingLayer());
+		
+		Collector collector = new Collector();
+		tokenLayer.registerReceiver(collector);
+		delivered = collector.received;
+		
+		peer = new EndpointAddress(InetAddress.getByName("127.0.0.1"), 61630);
+	}
+
+	@Test
+	public void testSingleRecordPerExchange() throws IOException {
+		Request request = new GETRequest();
+		request.setPeerAddress(peer);
+		tokenLayer.sendMessage(request);
+		
+		assertEquals(1, exchanges.size());
+		
+		// e.g., the next block request sent by the TransferLayer
+		Request block = new GETRequest();
+		block.setPeerAddress(peer);
+		block.setToken(request.getToken());
+		matchingLayer.sendMessage(block);
+		
+		assertEquals(1, exchanges.size());
+		
+		Response response = response(request);
+		matchingLayer.receiveMessage(response);
+		
+		assertEquals(1, delivered.size());
+		assertSame(block, response.getRequest());
+		assertEquals(0, exchanges.size());
+		
+		// duplicate responses find no exchange
+		matchingLayer.receiveMessage(response(request));
+		assertEquals(1, delivered.size());
+	}
+	
+	@Test
+	public void testObserveWithoutTokenLayer() throws IOException {
+		ExchangeStore exchanges = new ExchangeStore();
+		MatchingLayer matchingLayer = new MatchingLayer(exchanges);
+		matchingLayer.setLowerLayer(new RecordingLayer());
+		matchingLayer.registerReceiver(new Collector());
+		
+		Request request = new GETRequest();
+		request.setPeerAddress(peer);
+		request.setToken(new byte[] {0x0e});
+		request.setOption(new Option(0, OptionNumberRegistry.OBSERVE));
+		matchingLayer.sendMessage(request);
+		
+		Response notification = response(request);
+		notification.setOption(new Option(1, OptionNumberRegistry.OBSERVE));
+		notification.setOption(new BlockOption(OptionNumberRegistry.BLOCK2, 0, BlockOption.encodeSZX(64), true));
+		matchingLayer.receiveMessage(notification);
+		assertEquals(1, exchanges.size());
+		
+		// the next block of the notification does not carry Observe
+		Response block = response(request);
+		block.setOption(new BlockOption(OptionNumberRegistry.BLOCK2, 1, BlockOption.encodeSZX(64), false));
+		matchingLayer.receiveMessage(block);
+		assertEquals(1, exchanges.size());
+		
+		// a plain response ends the relationship and the exchange
+		matchingLayer.receiveMessage(response(request));
+		assertEquals(0, exchanges.size());
+	}
+	
+	@Test
+	public void testTimeout() throws IOException {
+		final List<Request> timedOut = new ArrayList<Request>();
+		
+		Request request = new GETRequest();
+		request.setPeerAddress(peer);
+		request.registerTimeoutHandler(new TimeoutHandler() {
+			@Override
+			public void handleTimeout(Request request) {
+				timedOut.add(request);
+			}
+		});
+		tokenLayer.sendMessage(request);
+		
+		clock.advance(1100);
+		timer.expireTimeouts();
+		
+		assertEquals(0, exchanges.size());
+		assertEquals(1, timedOut.size());
+		
+		// late responses are dropped
+		matchingLayer.receiveMessage(response(request));
+		assertEquals(0, delivered.size());
+	}
+}
@@ -0,0 +1,164 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.test;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import ch.ethz.inf.vs.californium.test.StackFixture.ManualClock;
+import ch.ethz.inf.vs.californium.util.HashedWheelTimer;
+
+
+public class HashedWheelTimerTest {
+	
+	private ManualClock clock;
+	private HashedWheelTimer timer;
+	private List<String> fired;
+	
+	private class RecordTask implements Runnable {
+		private String name;
+		public RecordTask(String name) {
+			this.name = name;
+		}
+		@Override
+		public void run() {
+			fired.add(name);
+		}
+	}
+	
+	private void advance(long millis) {
+		clock.advance(millis);
+		timer.expireTimeouts();
+	}
+
+	@Before
+	public void setUp() {
+		clock = new ManualClock(1000000000L);
+		timer = new HashedWheelTimer(10, 8, clock);
+		fired = new ArrayList<String>();
+	}
+
+	@Test
+	public void testExpiresInOrder() {
+		timer.schedule(new RecordTask("b"), 50);
+		timer.schedule(new RecordTask("a"), 20);
+		timer.schedule(new RecordTask("c"), 51);
+		
+		advance(19);
+		assertTrue(fired.isEmpty());
+		
+		advance(1);
+		assertEquals(1, fired.size());
+		assertEquals("a", fired.get(0));
+		
+		advance(30);
+		assertEquals(2, fired.size());
+		assertEquals("b", fired.get(1));
+		
+		// resolution is one tick
+		advance(9);
+		assertEquals(2, fired.size());
+		advance(1);
+		assertEquals(3, fired.size());
+		assertEquals(0, timer.getPendingCount());
+	}
+	
+	@Test
+	public void testLaterRounds() {
+		// 8 slots of 10 ms, so 250 ms needs several rounds
+		timer.schedule(new RecordTask("late"), 250);
+		timer.schedule(new RecordTask("early"), 10);
+		
+		advance(240);
+		assertEquals(1, fired.size());
+		assertEquals("early", fired.get(0));
+		
+		advance(10);
+		assertEquals(2, fired.size());
+		assertEquals("late", fired.get(1));
+	}
+	
+	@Test
+	public void testCancel() {
+		HashedWheelTimer.Timeout t1 = timer.schedule(new RecordTask("1"), 30);
+		HashedWheelTimer.Timeout t2 = timer.schedule(new RecordTask("2"), 30);
+		HashedWheelTimer.Timeout t3 = timer.schedule(new RecordTask("3"), 30);
+		assertEquals(3, timer.getPendingCount());
+		
+		assertTrue(t2.cancel());
+		assertFalse(t2.cancel());
+		assertTrue(t2.isCancelled());
+		assertEquals(2, timer.getPendingCount());
+		
+		advance(30);
+		assertEquals(2, fired.size());
+		assertFalse(fired.contains("2"));
+		assertTrue(t1.isExpired());
+		assertTrue(t3.isExpired());
+		
+		// too late to cancel
+		assertFalse(t1.cancel());
+	}
+	
+	@Test
+	public void testClockJump() {
+		timer.schedule(new RecordTask("x"), 100);
+		advance(3600000);
+		assertEquals(1, fired.size());
+		
+		// wheel keeps working after catching up
+		timer.schedule(new RecordTask("y"), 0);
+		advance(10);
+		assertEquals(2, fired.size());
+	}
+	
+	@Test
+	public void testTaskMayReschedule() {
+		timer.schedule(new Runnable() {
+			@Override
+			public void run() {
+				fired.add("first");
+				timer.schedule(new RecordTask("second"), 20);
+			}
+		}, 10);
+		
+		advance(10);
+		assertEquals(1, fired.size());
+		advance(20);
+		assertEquals(2, fired.size());
+		assertEquals("second", fired.get(1));
+	}
+}
@@ -0,0 +1,269 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.test;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import ch.ethz.inf.vs.californium.coap.CodeRegistry;
+import ch.ethz.inf.vs.californium.coap.Message;
+import ch.ethz.inf.vs.californium.coap.MessageCodec;
+import ch.ethz.inf.vs.californium.coap.Option;
+import ch.ethz.inf.vs.californium.coap.OptionNumberRegistry;
+import ch.ethz.inf.vs.californium.util.DatagramReader;
+import ch.ethz.inf.vs.californium.util.DatagramWriter;
+
+
+public class MessageCodecTest {
+	
+	private static final int[] CODES = {
+		CodeRegistry.EMPTY_MESSAGE, CodeRegistry.METHOD_GET, CodeRegistry.METHOD_POST,
+		CodeRegistry.METHOD_PUT, CodeRegistry.METHOD_DELETE, CodeRegistry.RESP_CONTENT,
+		CodeRegistry.RESP_CHANGED, CodeRegistry.RESP_NOT_FOUND };
+	
+	private static final int[] OPTIONS = {
+		OptionNumberRegistry.CONTENT_TYPE, OptionNumberRegistry.MAX_AGE,
+		OptionNumberRegistry.PROXY_URI, OptionNumberRegistry.ETAG,
+		OptionNumberRegistry.URI_HOST, OptionNumberRegistry.LOCATION_PATH,
+		OptionNumberRegistry.URI_PORT, OptionNumberRegistry.URI_PATH,
+		OptionNumberRegistry.OBSERVE, OptionNumberRegistry.TOKEN,
+		OptionNumberRegistry.URI_QUERY, OptionNumberRegistry.BLOCK2,
+		OptionNumberRegistry.BLOCK1, OptionNumberRegistry.IF_NONE_MATCH };
+	
+	/*
+	 * The bit-wise codec of Message before MessageCodec, used as reference
+	 */
+	private static byte[] referenceEncode(Message msg) {
+		
+		DatagramWriter optWriter = new DatagramWriter();
+		
+		int optionCount = 0;
+		int lastOptionNumber = 0;
+		for (Option opt : msg.getOptions()) {
+			
+			if (opt.isDefaultValue()) continue;
+			
+			int optionDelta = opt.getOptionNumber() - lastOptionNumber;
+			
+			while (optionDelta > Message.MAX_OPTIONDELTA) {
+				int fencepostNumber = OptionNumberRegistry.nextFencepost(lastOptionNumber);
+				int fencepostDelta = fencepostNumber - lastOptionNumber;
+				optWriter.write(fencepostDelta, Message.OPTIONDELTA_BITS);
+				optWriter.write(0, Message.OPTIONLENGTH_BASE_BITS);
+				++optionCount;
+				lastOptionNumber = fencepostNumber;
+				optionDelta -= fencepostDelta;
+			}
+			
+			optWriter.write(optionDelta, Message.OPTIONDELTA_BITS);
+			
+			int length = opt.getLength();
+			if (length <= Message.MAX_OPTIONLENGTH_BASE) {
+				optWriter.write(length, Message.OPTIONLENGTH_BASE_BITS);
+			} else {
+				int baseLength = Message.MAX_OPTIONLENGTH_BASE + 1;
+				optWriter.write(baseLength, Message.OPTIONLENGTH_BASE_BITS);
+				optWriter.write(length - baseLength, Message.OPTIONLENGTH_EXTENDED_BITS);
+			}
+			
+			optWriter.writeBytes(opt.getRawValue());
+			
+			++optionCount;
+			lastOptionNumber = opt.getOptionNumber();
+		}
+		
+		DatagramWriter writer = new DatagramWriter();
+		writer.write(msg.getVersion(), Message.VERSION_BITS);
+		writer.write(msg.getType().ordinal(), Message.TYPE_BITS);
+		writer.write(optionCount, Message.OPTIONCOUNT_BITS);
+		writer.write(msg.getCode(), Message.CODE_BITS);
+		writer.write(msg.getMID(), Message.ID_BITS);
+		writer.writeBytes(optWriter.toByteArray());
+		writer.writeBytes(msg.getPayload());
+		
+		return writer.toByteArray();
+	}
+	
+	private static Message referenceDecode(byte[] data) {
+		
+		DatagramReader datagram = new DatagramReader(data);
+		
+		if (datagram.read(Message.VERSION_BITS) != Message.SUPPORTED_VERSION) {
+			return null;
+		}
+		
+		Message.messageType type = Message.getTypeByValue(datagram.read(Message.TYPE_BITS));
+		int optionCount = datagram.read(Message.OPTIONCOUNT_BITS);
+		
+		Message msg = CodeRegistry.getMessageSubClass(datagram.read(Message.CODE_BITS));
+		msg.setType(type);
+		msg.setMID(datagram.read(Message.ID_BITS));
+		
+		int currentOption = 0;
+		for (int i = 0; i < optionCount; i++) {
+			
+			currentOption += datagram.read(Message.OPTIONDELTA_BITS);
+			
+			if (OptionNumberRegistry.isFencepost(currentOption)) {
+				datagram.read(Message.OPTIONLENGTH_BASE_BITS);
+			} else {
+				int length = datagram.read(Message.OPTIONLENGTH_BASE_BITS);
+				if (length > Message.MAX_OPTIONLENGTH_BASE) {
+					length += datagram.read(Message.OPTIONLENGTH_EXTENDED_BITS);
+				}
+				msg.addOption(new Option(datagram.readBytes(length), currentOption));
+			}
+		}
+		
+		msg.setPayload(datagram.readBytesLeft());
+		
+		return msg;
+	}
+	
+	private static Message randomMessage(Random random) {
+		
+		Message msg = CodeRegistry.getMessageSubClass(CODES[random.nextInt(CODES.length)]);
+		msg.setType(Message.getTypeByValue(random.nextInt(4)));
+		msg.setMID(random.nextInt(0x10000));
+		
+		// each option at most once keeps the count within the header field
+		for (int number : OPTIONS) {
+			if (random.nextInt(3) == 0) {
+				// integer options are at most 4 bytes long
+				int maxLength = number == OptionNumberRegistry.MAX_AGE ? 5 : (random.nextBoolean() ? 15 : 271);
+				byte[] value = new byte[random.nextInt(maxLength)];
+				random.nextBytes(value);
+				msg.addOption(new Option(value, number));
+			}
+		}
+		
+		if (random.nextBoolean()) {
+			byte[] payload = new byte[random.nextInt(1024)];
+			random.nextBytes(payload);
+			msg.setPayload(payload);
+		}
+		
+		return msg;
+	}
+	
+	private static void assertSameMessage(Message expected, Message actual) {
+		assertEquals(expected.getClass(), actual.getClass());
+		assertEquals(expected.getType(), actual.getType());
+		assertEquals(expected.getCode(), actual.getCode());
+		assertEquals(expected.getMID(), actual.getMID());
+		List<Option> expectedOptions = expected.getOptions();
+		List<Option> actualOptions = actual.getOptions();
+		assertEquals(expectedOptions.size(), actualOptions.size());
+		for (int i = 0; i < expectedOptions.size(); ++i) {
+			assertEquals(expectedOptions.get(i).getOptionNumber(), actualOptions.get(i).getOptionNumber());
+			assertArrayEquals(expectedOptions.get(i).getRawValue(), actualOptions.get(i).getRawValue());
+		}
+		assertArrayEquals(expected.getPayload() != null ? expected.getPayload() : new byte[0], actual.getPayload());
+	}
+
+	@Test
+	public void testConformance() {
+		Random random = new Random(0xC0A9);
+		
+		for (int i = 0; i < 5000; ++i) {
+			Message msg = randomMessage(random);
+			
+			byte[] reference = referenceEncode(msg);
+			byte[] encoded = MessageCodec.toByteArray(msg);
+			
+			assertArrayEquals(reference, encoded);
+			assertEquals(encoded.length, MessageCodec.encodedSize(msg));
+			
+			assertSameMessage(referenceDecode(reference), MessageCodec.decode(ByteBuffer.wrap(encoded)));
+		}
+	}
+	
+	@Test
+	public void testEncodeIntoBuffer() {
+		Message msg = randomMessage(new Random(4711));
+		ByteBuffer buffer = ByteBuffer.allocateDirect(2048);
+		
+		// leave some bytes in front to check that the position is respected
+		buffer.position(3);
+		MessageCodec.encode(msg, buffer);
+		assertEquals(3 + MessageCodec.encodedSize(msg), buffer.position());
+		
+		buffer.flip();
+		buffer.position(3);
+		assertSameMessage(msg, MessageCodec.decode(buffer));
+	}
+	
+	@Test
+	public void testLazyOptions() {
+		Message msg = CodeRegistry.getMessageSubClass(CodeRegistry.METHOD_GET);
+		msg.setType(Message.messageType.CON);
+		msg.setMID(1);
+		msg.addOption(new Option("first", OptionNumberRegistry.URI_PATH));
+		msg.addOption(new Option("second", OptionNumberRegistry.URI_PATH));
+		msg.addOption(new Option("q=1", OptionNumberRegistry.URI_QUERY));
+		msg.addOption(new Option(new byte[] { 0x0A }, OptionNumberRegistry.TOKEN));
+		
+		Message decoded = MessageCodec.decode(ByteBuffer.wrap(MessageCodec.toByteArray(msg)));
+		
+		// appended after the received options of the same number
+		decoded.addOption(new Option("third", OptionNumberRegistry.URI_PATH));
+		List<Option> path = decoded.getOptions(OptionNumberRegistry.URI_PATH);
+		assertEquals(3, path.size());
+		assertEquals("first", path.get(0).getStringValue());
+		assertEquals("third", path.get(2).getStringValue());
+		
+		// removed options are not decoded again
+		decoded.removeOptions(OptionNumberRegistry.URI_QUERY);
+		assertNull(decoded.getFirstOption(OptionNumberRegistry.URI_QUERY));
+		
+		assertEquals(0x0A, decoded.getFirstOption(OptionNumberRegistry.TOKEN).getIntValue());
+		assertEquals(4, decoded.getOptionCount());
+	}
+	
+	@Test
+	public void testTruncated() {
+		Message msg = CodeRegistry.getMessageSubClass(CodeRegistry.METHOD_GET);
+		msg.setType(Message.messageType.CON);
+		msg.setMID(1);
+		msg.addOption(new Option("a-path-segment", OptionNumberRegistry.URI_PATH));
+		
+		byte[] encoded = MessageCodec.toByteArray(msg);
+		
+		assertNull(MessageCodec.decode(ByteBuffer.wrap(encoded, 0, 3)));
+		assertNull(MessageCodec.decode(ByteBuffer.wrap(encoded, 0, encoded.length - 1)));
+		assertNotNull(MessageCodec.decode(ByteBuffer.wrap(encoded)));
+	}
+}
@@ -0,0 +1,87 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.test;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import ch.ethz.inf.vs.californium.coap.MessageIdTracker;
+import ch.ethz.inf.vs.californium.test.StackFixture.ManualClock;
+
+
+public class MessageIdTrackerTest {
+	
+	private ManualClock clock = new ManualClock();
+
+	@Test
+	public void testConsecutiveWrap() {
+		MessageIdTracker tracker = new MessageIdTracker(0xFFFE, 1000, clock);
+		assertEquals(0xFFFF, tracker.nextMessageID());
+		assertEquals(0, tracker.nextMessageID());
+		assertEquals(1, tracker.nextMessageID());
+		assertEquals(3, tracker.getAllocatedCount());
+	}
+	
+	@Test
+	public void testExhaustionWithinLifetime() {
+		MessageIdTracker tracker = new MessageIdTracker(0, 247000, clock);
+		
+		for (int i = 0; i < 0x10000; ++i) {
+			assertTrue(tracker.nextMessageID() >= 0);
+		}
+		
+		// the next ID would still be known to the peer
+		assertEquals(-1, tracker.nextMessageID());
+		
+		clock.advance(200000L);
+		assertEquals(-1, tracker.nextMessageID());
+		
+		// available again once the lifetime and the slot granularity have passed
+		clock.advance(55000L);
+		assertEquals(1, tracker.nextMessageID());
+		assertEquals(1, tracker.getAllocatedCount());
+	}
+	
+	@Test
+	public void testSlidingWindow() {
+		MessageIdTracker tracker = new MessageIdTracker(0, 63000, clock);
+		
+		// 1000 IDs per second over two lifetimes never exhausts the space
+		for (int s = 0; s < 126; ++s) {
+			for (int i = 0; i < 1000; ++i) {
+				assertTrue(tracker.nextMessageID() >= 0);
+			}
+			clock.advance(1000L);
+		}
+		assertTrue(tracker.getAllocatedCount() <= 64000);
+	}
+}
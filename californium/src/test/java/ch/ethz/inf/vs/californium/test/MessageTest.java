@@ -31,12 +31,19 @@
 package ch.ethz.inf.vs.californium.test;
 
 import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+
 import org.junit.Test;
 
+import ch.ethz.inf.vs.californium.coap.BlockSource;
 import ch.ethz.inf.vs.californium.coap.CodeRegistry;
 import ch.ethz.inf.vs.californium.coap.Message;
 import ch.ethz.inf.vs.californium.coap.Option;
 import ch.ethz.inf.vs.californium.coap.Message.messageType;
+import ch.ethz.inf.vs.californium.util.BufferBlockSource;
 
 public class MessageTest {
 
@@ -83,6 +90,22 @@ public class MessageTest {
 		assertArrayEquals(msg.getPayload(), convMsg.getPayload());
 	}
 
+	@Test
+	public void testCopyOptions() {
+		Message msg = new Message(messageType.NON, CodeRegistry.METHOD_GET);
+		msg.addOption(new Option("b".getBytes(), 2));
+		msg.addOption(new Option("a".getBytes(), 1));
+		msg.addOption(new Option("c".getBytes(), 2));
+		
+		// received options are copied from the encoded entries
+		Message received = Message.fromByteArray(msg.toByteArray());
+		Message copy = new Message(messageType.NON, CodeRegistry.METHOD_GET);
+		copy.copyOptions(received);
+		
+		assertEquals(3, copy.getOptionCount());
+		assertArrayEquals(msg.toByteArray(), copy.toByteArray());
+	}
+
 	@Test
 	public void testExtendedOptionMessage() {
 		Message msg = new Message();
@@ -113,6 +136,71 @@ public class MessageTest {
 		assertEquals(msg.getOptionCount(), convMsg.getOptionCount());
 	}
 
+	@Test
+	public void testPayloadSource() throws Exception {
+		
+		// generated payload that records the largest read
+		final int[] maxRead = new int[1];
+		BlockSource source = new BlockSource() {
+			public int size() {
+				return 1 << 20;
+			}
+			public void read(int offset, byte[] dst, int dstOffset, int length) {
+				maxRead[0] = Math.max(maxRead[0], length);
+				for (int i = 0; i < length; ++i) {
+					dst[dstOffset + i] = (byte) (offset + i);
+				}
+			}
+		};
+		
+		Message msg = new Message();
+		msg.setPayloadSource(source);
+		
+		assertEquals(1 << 20, msg.payloadSize());
+		
+		byte[] block = new byte[64];
+		msg.readPayload(1024 * 5, block, 0, block.length);
+		assertEquals(0, block[0]);
+		assertEquals(63, block[63]);
+		assertEquals(64, maxRead[0]);
+		
+		// byte array payload replaces the source
+		msg.setPayload("small".getBytes());
+		assertNull(msg.getPayloadSource());
+		assertEquals(5, msg.payloadSize());
+	}
+	
+	@Test
+	public void testMappedPayloadSource() throws Exception {
+		
+		byte[] content = new byte[3000];
+		for (int i = 0; i < content.length; ++i) {
+			content[i] = (byte) (i * 7);
+		}
+		
+		File file = File.createTempFile("cf-block", ".bin");
+		file.deleteOnExit();
+		FileOutputStream out = new FileOutputStream(file);
+		out.write(content);
+		out.close();
+		
+		Message msg = new Message();
+		msg.setCode(CodeRegistry.RESP_CONTENT);
+		msg.setType(messageType.ACK);
+		msg.setMID(4711);
+		msg.setPayloadSource(BufferBlockSource.map(file));
+		
+		assertEquals(content.length, msg.payloadSize());
+		
+		byte[] block = new byte[512];
+		msg.readPayload(2048, block, 0, block.length);
+		assertArrayEquals(Arrays.copyOfRange(content, 2048, 2560), block);
+		
+		// a source sent as a whole is encoded like a byte array payload
+		Message convMsg = Message.fromByteArray(msg.toByteArray());
+		assertArrayEquals(content, convMsg.getPayload());
+	}
+
 	public static String getHexString(byte[] b) throws Exception {
 		String result = "";
 		for (int i = 0; i < b.length; i++) {
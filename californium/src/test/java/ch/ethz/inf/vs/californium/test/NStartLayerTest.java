@@ -0,0 +1,114 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.test;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import ch.ethz.inf.vs.californium.coap.EndpointAddress;
+import ch.ethz.inf.vs.californium.coap.GETRequest;
+import ch.ethz.inf.vs.californium.coap.Message;
+import ch.ethz.inf.vs.californium.coap.Request;
+import ch.ethz.inf.vs.californium.layers.NStartLayer;
+import ch.ethz.inf.vs.californium.test.StackFixture.RecordingLayer;
+
+
+public class NStartLayerTest {
+	
+	private NStartLayer layer;
+	private List<Message> sent;
+	
+	private EndpointAddress peerA;
+	private EndpointAddress peerB;
+	
+	private Request request(EndpointAddress peer) {
+		Request request = new GETRequest();
+		request.setPeerAddress(peer);
+		return request;
+	}
+	
+	@Before
+	public void setUp() throws Exception {
+		RecordingLayer lower = new RecordingLayer();
+		sent = lower.sent;
+		layer = new NStartLayer(1);
+		layer.setLowerLayer(lower);
+		peerA = new EndpointAddress(InetAddress.getByName("127.0.0.1"), 61616);
+		peerB = new EndpointAddress(InetAddress.getByName("127.0.0.1"), 61617);
+	}
+
+	@Test
+	public void testLimitPerPeer() throws IOException {
+		Request a1 = request(peerA);
+		Request a2 = request(peerA);
+		Request a3 = request(peerA);
+		Request b1 = request(peerB);
+		
+		layer.sendMessage(a1);
+		layer.sendMessage(a2);
+		layer.sendMessage(a3);
+		layer.sendMessage(b1);
+		
+		// other peers are not held back
+		assertEquals(2, sent.size());
+		assertSame(a1, sent.get(0));
+		assertSame(b1, sent.get(1));
+		
+		layer.transactionCompleted(a1);
+		assertEquals(3, sent.size());
+		assertSame(a2, sent.get(2));
+		
+		// completing a request twice does not release another
+		layer.transactionCompleted(a1);
+		assertEquals(3, sent.size());
+		
+		layer.transactionCompleted(a2);
+		assertSame(a3, sent.get(3));
+	}
+	
+	@Test
+	public void testNonConfirmablePassThrough() throws IOException {
+		Request a1 = request(peerA);
+		Request a2 = request(peerA);
+		a2.setType(Message.messageType.NON);
+		
+		layer.sendMessage(a1);
+		layer.sendMessage(a2);
+		
+		assertEquals(2, sent.size());
+	}
+}
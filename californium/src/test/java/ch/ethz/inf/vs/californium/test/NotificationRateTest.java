@@ -0,0 +1,99 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.test;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import ch.ethz.inf.vs.californium.coap.NotificationRate;
+
+
+public class NotificationRateTest {
+	
+	private static final long MS = 1000000L;
+
+	@Test
+	public void testMinimumPeriod() {
+		
+		NotificationRate rate = new NotificationRate(100, 0);
+		
+		// first notification goes out right away
+		assertEquals(0L, rate.changed(0L));
+		rate.sent(0L, false);
+		
+		// next one waits for the rest of the minimum period
+		assertEquals(70 * MS, rate.changed(30 * MS));
+		assertEquals(0L, rate.pendingDelay(100 * MS));
+		
+		rate.sent(100 * MS, false);
+		assertEquals(NotificationRate.NONE, rate.pendingDelay(150 * MS));
+		assertFalse(rate.isPending());
+	}
+	
+	@Test
+	public void testCoalesceWhileInFlight() {
+		
+		NotificationRate rate = new NotificationRate(0, 0);
+		
+		rate.changed(0L);
+		rate.sent(0L, true);
+		assertTrue(rate.isInFlight());
+		
+		// changes replace each other until the acknowledgement
+		assertEquals(NotificationRate.NONE, rate.changed(10 * MS));
+		assertEquals(NotificationRate.NONE, rate.changed(20 * MS));
+		assertEquals(NotificationRate.NONE, rate.changed(30 * MS));
+		assertEquals(2, rate.getCoalescedCount());
+		
+		rate.completed();
+		assertEquals(0L, rate.pendingDelay(40 * MS));
+	}
+	
+	@Test
+	public void testMaximumPeriod() {
+		
+		NotificationRate rate = new NotificationRate(0, 1000);
+		
+		assertFalse(rate.refreshDue(0L));
+		rate.changed(0L);
+		rate.sent(0L, false);
+		
+		assertFalse(rate.refreshDue(999 * MS));
+		assertTrue(rate.refreshDue(1000 * MS));
+		
+		// a single flush is scheduled at a time
+		assertTrue(rate.scheduleFlush());
+		assertFalse(rate.scheduleFlush());
+		rate.flushed();
+		assertTrue(rate.scheduleFlush());
+	}
+}
@@ -0,0 +1,93 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.test;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import ch.ethz.inf.vs.californium.coap.CodeRegistry;
+import ch.ethz.inf.vs.californium.coap.MediaTypeRegistry;
+import ch.ethz.inf.vs.californium.coap.Message;
+import ch.ethz.inf.vs.californium.coap.NotificationTemplate;
+import ch.ethz.inf.vs.californium.coap.Option;
+import ch.ethz.inf.vs.californium.coap.OptionNumberRegistry;
+import ch.ethz.inf.vs.californium.coap.Response;
+
+
+public class NotificationTemplateTest {
+
+	@Test
+	public void testSharedRepresentation() {
+		
+		Response rendered = new Response(CodeRegistry.RESP_CONTENT);
+		rendered.setPayload("22.5 C", MediaTypeRegistry.TEXT_PLAIN);
+		rendered.setOption(new Option(30, OptionNumberRegistry.MAX_AGE));
+		rendered.setToken(new byte[] {0x01});
+		rendered.setOption(new Option(7, OptionNumberRegistry.OBSERVE));
+		
+		NotificationTemplate template = new NotificationTemplate(rendered);
+		
+		Response first = template.newResponse();
+		Response second = template.newResponse();
+		
+		// representation is shared, not copied
+		assertSame(rendered.getPayload(), first.getPayload());
+		assertSame(first.getPayload(), second.getPayload());
+		assertSame(rendered.getFirstOption(OptionNumberRegistry.MAX_AGE), second.getFirstOption(OptionNumberRegistry.MAX_AGE));
+		assertEquals(MediaTypeRegistry.TEXT_PLAIN, second.getContentType());
+		
+		// per-observer fields are left out
+		assertNull(first.getFirstOption(OptionNumberRegistry.TOKEN));
+		assertNull(first.getFirstOption(OptionNumberRegistry.OBSERVE));
+		assertNull(first.getType());
+		
+		// patching one notification does not affect the other
+		first.setToken(new byte[] {0x0a});
+		first.setOption(new Option(8, OptionNumberRegistry.OBSERVE));
+		first.setType(Message.messageType.NON);
+		first.setMID(1);
+		second.setToken(new byte[] {0x0b, 0x0c});
+		second.setOption(new Option(9, OptionNumberRegistry.OBSERVE));
+		second.setType(Message.messageType.CON);
+		second.setMID(2);
+		
+		Message decoded = Message.fromByteArray(first.toByteArray());
+		assertArrayEquals(new byte[] {0x0a}, decoded.getToken());
+		assertEquals(8, decoded.getFirstOption(OptionNumberRegistry.OBSERVE).getIntValue());
+		assertEquals("22.5 C", decoded.getPayloadString());
+		
+		decoded = Message.fromByteArray(second.toByteArray());
+		assertArrayEquals(new byte[] {0x0b, 0x0c}, decoded.getToken());
+		assertEquals(9, decoded.getFirstOption(OptionNumberRegistry.OBSERVE).getIntValue());
+		assertEquals(30, decoded.getFirstOption(OptionNumberRegistry.MAX_AGE).getIntValue());
+	}
+}
@@ -0,0 +1,95 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.test;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import ch.ethz.inf.vs.californium.coap.ObserverHealth;
+
+
+public class ObserverHealthTest {
+	
+	private static int countChecks(ObserverHealth health, int notifications) {
+		int checks = 0;
+		for (int i = 0; i < notifications; ++i) {
+			if (health.nextConfirmable()) {
+				++checks;
+			}
+		}
+		return checks;
+	}
+
+	@Test
+	public void testHealthyBackoff() {
+		
+		ObserverHealth health = new ObserverHealth(10, 40);
+		
+		// every 10th notification is a check
+		assertEquals(1, countChecks(health, 10));
+		
+		// interval doubles with each prompt acknowledgement up to the maximum
+		health.acknowledged(0);
+		assertEquals(20, health.getInterval());
+		health.acknowledged(0);
+		health.acknowledged(0);
+		assertEquals(40, health.getInterval());
+		assertEquals(1, countChecks(health, 40));
+		assertFalse(health.isDegraded());
+	}
+	
+	@Test
+	public void testDegradedObserver() {
+		
+		ObserverHealth health = new ObserverHealth(10, 40);
+		health.acknowledged(0);
+		
+		// a check that needed retransmissions falls back to the base interval
+		health.acknowledged(2);
+		assertTrue(health.isDegraded());
+		assertEquals(10, health.getInterval());
+		assertEquals(1, countChecks(health, 10));
+		
+		// and stays there while checks need retransmissions
+		health.acknowledged(1);
+		assertTrue(health.isDegraded());
+		assertEquals(1, countChecks(health, 10));
+		
+		// recovers with the base interval, then backs off again
+		health.acknowledged(0);
+		assertFalse(health.isDegraded());
+		assertEquals(10, health.getInterval());
+		assertEquals(1, countChecks(health, 10));
+		health.acknowledged(0);
+		assertEquals(20, health.getInterval());
+	}
+}
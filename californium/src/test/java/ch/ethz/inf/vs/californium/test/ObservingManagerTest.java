@@ -0,0 +1,445 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.test;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import ch.ethz.inf.vs.californium.coap.BlockSource;
+import ch.ethz.inf.vs.californium.coap.CodeRegistry;
+import ch.ethz.inf.vs.californium.coap.Communicator;
+import ch.ethz.inf.vs.californium.coap.EndpointAddress;
+import ch.ethz.inf.vs.californium.coap.GETRequest;
+import ch.ethz.inf.vs.californium.coap.ObservingManager;
+import ch.ethz.inf.vs.californium.coap.Option;
+import ch.ethz.inf.vs.californium.coap.OptionNumberRegistry;
+import ch.ethz.inf.vs.californium.coap.Peer;
+import ch.ethz.inf.vs.californium.coap.PeerRegistry;
+import ch.ethz.inf.vs.californium.coap.Response;
+import ch.ethz.inf.vs.californium.endpoint.LocalResource;
+import ch.ethz.inf.vs.californium.test.StackFixture.ManualClock;
+import ch.ethz.inf.vs.californium.util.HashedWheelTimer;
+import ch.ethz.inf.vs.californium.util.Properties;
+
+
+public class ObservingManagerTest {
+	
+	private ObservingManager manager = ObservingManager.getInstance();
+	
+	private LocalResource first;
+	private LocalResource second;
+	
+	private GETRequest observe(LocalResource resource, int port, byte token) throws Exception {
+		GETRequest request = new GETRequest();
+		request.setPeerAddress(new EndpointAddress(InetAddress.getByName("127.0.0.1"), port));
+		request.setToken(new byte[] {token});
+		request.setResponse(new Response(CodeRegistry.RESP_CONTENT));
+		manager.addObserver(request, resource);
+		return request;
+	}
+	
+	private GETRequest observe(LocalResource resource, int port, byte token, Option option) throws Exception {
+		GETRequest request = new GETRequest();
+		request.setPeerAddress(new EndpointAddress(InetAddress.getByName("127.0.0.1"), port));
+		request.setToken(new byte[] {token});
+		request.setOption(option);
+		request.setResponse(new Response(CodeRegistry.RESP_CONTENT));
+		manager.addObserver(request, resource);
+		return request;
+	}
+	
+	@Before
+	public void setUp() {
+		first = new LocalResource("first") {};
+		second = new LocalResource("second") {};
+	}
+
+	@Test
+	public void testRemoveByMID() throws Exception {
+		GETRequest a = observe(first, 61640, (byte) 1);
+		GETRequest b = observe(first, 61641, (byte) 2);
+		
+		assertEquals(2, manager.getObserverCount(first));
+		assertTrue(manager.isObserved(a.getPeerAddress(), first));
+		assertFalse(manager.isObserved(a.getPeerAddress(), second));
+		
+		// RST for the last notification of a
+		manager.removeObserver(a.getPeerAddress(), a.getResponse().getMID());
+		
+		assertEquals(1, manager.getObserverCount(first));
+		assertFalse(manager.isObserved(a.getPeerAddress(), first));
+		assertTrue(manager.isObserved(b.getPeerAddress(), first));
+		
+		// RST with an unknown MID does not remove anything
+		manager.removeObserver(b.getPeerAddress(), b.getResponse().getMID() + 1);
+		assertEquals(1, manager.getObserverCount(first));
+	}
+	
+	@Test
+	public void testRemoveByTokenAndPeer() throws Exception {
+		GETRequest a = observe(first, 61642, (byte) 3);
+		observe(second, 61642, (byte) 4);
+		GETRequest c = observe(second, 61643, (byte) 5);
+		
+		assertFalse(manager.removeObserver(a.getPeerAddress(), new byte[] {5}));
+		assertTrue(manager.removeObserver(c.getPeerAddress(), new byte[] {5}));
+		assertEquals(1, manager.getObserverCount(second));
+		
+		// e.g., after a notification timed out
+		manager.removeObserver(a.getPeerAddress());
+		
+		assertEquals(0, manager.getObserverCount(first));
+		assertEquals(0, manager.getObserverCount(second));
+	}
+	
+	@Test
+	public void testReregistration() throws Exception {
+		GETRequest a = observe(first, 61644, (byte) 6);
+		int oldMID = a.getResponse().getMID();
+		
+		GETRequest renewed = observe(first, 61644, (byte) 7);
+		
+		assertEquals(1, manager.getObserverCount(first));
+		
+		// the replaced relationship is no longer matched
+		assertFalse(manager.removeObserver(a.getPeerAddress(), new byte[] {6}));
+		manager.removeObserver(a.getPeerAddress(), oldMID);
+		assertEquals(1, manager.getObserverCount(first));
+		
+		manager.removeObserver(renewed.getPeerAddress(), first);
+		assertEquals(0, manager.getObserverCount(first));
+	}
+	
+	@Test
+	public void testRenderPerGroup() throws Exception {
+		
+		// notifications are sent to unused ports
+		Communicator.setupPort(0);
+		Communicator.setupDeamon(true);
+		
+		final AtomicInteger renders = new AtomicInteger();
+		LocalResource counted = new LocalResource("counted") {
+			@Override
+			public void performGET(GETRequest request) {
+				request.respond(CodeRegistry.RESP_CONTENT, "state " + renders.incrementAndGet());
+			}
+		};
+		
+		GETRequest a = observe(counted, 61660, (byte) 10);
+		GETRequest b = observe(counted, 61661, (byte) 11, new Option("pmin=0", OptionNumberRegistry.URI_QUERY));
+		GETRequest c = observe(counted, 61662, (byte) 12, new Option("q=1", OptionNumberRegistry.URI_QUERY));
+		GETRequest d = observe(counted, 61663, (byte) 13, new Option("q=1", OptionNumberRegistry.URI_QUERY));
+		GETRequest e = observe(counted, 61664, (byte) 14, new Option(41, OptionNumberRegistry.ACCEPT));
+		
+		manager.notifyObservers(counted);
+		
+		// rate parameters do not split a group
+		assertEquals(3, renders.get());
+		assertEquals(a.getResponse().getPayloadString(), b.getResponse().getPayloadString());
+		assertEquals(c.getResponse().getPayloadString(), d.getResponse().getPayloadString());
+		assertFalse(a.getResponse().getPayloadString().equals(e.getResponse().getPayloadString()));
+		
+		for (GETRequest request : new GETRequest[] {a, b, c, d, e}) {
+			manager.removeObserver(request.getPeerAddress(), counted);
+		}
+	}
+	
+	@Test
+	public void testFlushReusesTemplate() throws Exception {
+		
+		Communicator.setupPort(0);
+		Communicator.setupDeamon(true);
+		
+		ManualClock clock = new ManualClock();
+		HashedWheelTimer timer = new HashedWheelTimer(10, 8, clock);
+		manager.setTimer(timer);
+		
+		try {
+			final AtomicInteger renders = new AtomicInteger();
+			LocalResource counted = new LocalResource("refreshed") {
+				@Override
+				public void performGET(GETRequest request) {
+					request.respond(CodeRegistry.RESP_CONTENT, "state " + renders.incrementAndGet());
+				}
+			};
+			
+			Option pmax = new Option("pmax=1", OptionNumberRegistry.URI_QUERY);
+			GETRequest a = observe(counted, 61667, (byte) 17, pmax);
+			GETRequest b = observe(counted, 61668, (byte) 18, pmax);
+			
+			manager.notifyObservers(counted);
+			assertEquals(1, renders.get());
+			Response first = a.getResponse();
+			
+			// both refreshes after the maximum period send the rendered state
+			clock.advance(1100);
+			timer.expireTimeouts();
+			
+			assertEquals(1, renders.get());
+			assertNotSame(first, a.getResponse());
+			assertEquals("state 1", a.getResponse().getPayloadString());
+			assertEquals("state 1", b.getResponse().getPayloadString());
+			
+			// a change renders again
+			manager.notifyObservers(counted);
+			assertEquals(2, renders.get());
+			
+			manager.removeObserver(a.getPeerAddress(), counted);
+			manager.removeObserver(b.getPeerAddress(), counted);
+			
+		} finally {
+			manager.setTimer(null);
+		}
+	}
+	
+	@Test
+	public void testNoMessageIdAvailable() throws Exception {
+		
+		ManualClock clock = new ManualClock();
+		HashedWheelTimer timer = new HashedWheelTimer(10, 8, clock);
+		PeerRegistry previous = PeerRegistry.getInstance();
+		PeerRegistry registry = new PeerRegistry(0, timer);
+		PeerRegistry.setInstance(registry);
+		manager.setTimer(timer);
+		
+		try {
+			final AtomicInteger renders = new AtomicInteger();
+			LocalResource counted = new LocalResource("exhausted") {
+				@Override
+				public void performGET(GETRequest request) {
+					request.respond(CodeRegistry.RESP_CONTENT, "state " + renders.incrementAndGet());
+				}
+			};
+			
+			GETRequest a = observe(counted, 61669, (byte) 19);
+			
+			// all IDs towards the peer are within the exchange lifetime
+			Peer peer = registry.getPeer(a.getPeerAddress());
+			while (peer.nextMessageID() >= 0) {
+				// exhaust
+			}
+			
+			manager.notifyObservers(counted);
+			assertEquals(1, renders.get());
+			Response unsent = a.getResponse();
+			assertEquals(-1, unsent.getMID());
+			
+			// an RST for MID 0xFFFF does not match the unsent notification
+			manager.removeObserver(a.getPeerAddress(), 0xFFFF);
+			assertEquals(1, manager.getObserverCount(counted));
+			
+			// the change stays pending and is tried again from the template
+			clock.advance(5000);
+			timer.expireTimeouts();
+			assertNotSame(unsent, a.getResponse());
+			assertEquals(-1, a.getResponse().getMID());
+			assertEquals(1, renders.get());
+			
+			manager.removeObserver(a.getPeerAddress(), counted);
+			
+		} finally {
+			manager.setTimer(null);
+			PeerRegistry.setInstance(previous);
+		}
+	}
+	
+	@Test
+	public void testSendFailure() throws Exception {
+		
+		Communicator.setupPort(0);
+		Communicator.setupDeamon(true);
+		
+		ManualClock clock = new ManualClock();
+		HashedWheelTimer timer = new HashedWheelTimer(10, 8, clock);
+		manager.setTimer(timer);
+		
+		// every notification is a CON check
+		manager.setRefreshInterval(1);
+		
+		try {
+			final AtomicInteger renders = new AtomicInteger();
+			final AtomicBoolean broken = new AtomicBoolean(false);
+			LocalResource unreadable = new LocalResource("unreadable") {
+				@Override
+				public void performGET(GETRequest request) {
+					renders.incrementAndGet();
+					Response response = new Response(CodeRegistry.RESP_CONTENT);
+					if (broken.get()) {
+						// fails in the TransferLayer before the CON is registered
+						response.setPayloadSource(new BlockSource() {
+							@Override
+							public int size() {
+								return 1024;
+							}
+							@Override
+							public void read(int offset, byte[] dst, int dstOffset, int length) throws IOException {
+								throw new IOException("Device not ready");
+							}
+						});
+					} else {
+						response.setPayload("state");
+					}
+					request.respond(response);
+				}
+			};
+			
+			GETRequest a = observe(unreadable, 61670, (byte) 20);
+			
+			// piggy-backed on the ACK to the registration
+			manager.notifyObservers(unreadable);
+			assertEquals(1, renders.get());
+			
+			broken.set(true);
+			manager.notifyObservers(unreadable);
+			assertEquals(2, renders.get());
+			
+			// the failed CON is not in flight, so the next change is sent
+			broken.set(false);
+			manager.notifyObservers(unreadable);
+			assertEquals(3, renders.get());
+			assertEquals("state", a.getResponse().getPayloadString());
+			
+			manager.removeObserver(a.getPeerAddress(), unreadable);
+			
+		} finally {
+			manager.setRefreshInterval(Properties.std.getInt("OBSERVING_REFRESH_INTERVAL"));
+			manager.setTimer(null);
+		}
+	}
+	
+	@Test
+	public void testDeferredRender() throws Exception {
+		
+		final AtomicInteger renders = new AtomicInteger();
+		LocalResource deferred = new LocalResource("deferred") {
+			@Override
+			public void performGET(GETRequest request) {
+				// would respond later from another thread
+				renders.incrementAndGet();
+			}
+		};
+		
+		GETRequest a = observe(deferred, 61665, (byte) 15);
+		GETRequest b = observe(deferred, 61666, (byte) 16);
+		Response previous = a.getResponse();
+		
+		// neither the stale response nor a template of it is sent
+		manager.notifyObservers(deferred);
+		assertEquals(2, renders.get());
+		assertSame(previous, a.getResponse());
+		
+		manager.removeObserver(a.getPeerAddress(), deferred);
+		manager.removeObserver(b.getPeerAddress(), deferred);
+	}
+	
+	@Test
+	public void testObserverPinsPeer() throws Exception {
+		
+		ManualClock clock = new ManualClock();
+		HashedWheelTimer timer = new HashedWheelTimer(10, 8, clock);
+		PeerRegistry registry = new PeerRegistry(1000, timer);
+		PeerRegistry previous = PeerRegistry.getInstance();
+		PeerRegistry.setInstance(registry);
+		
+		try {
+			GETRequest a = observe(first, 61646, (byte) 9);
+			Peer peer = registry.getPeer(a.getPeerAddress());
+			assertEquals(1, peer.getReferenceCount());
+			
+			// quiet beyond the idle timeout, the periodic sweep keeps it
+			registry.getPeer(InetAddress.getByName("127.0.0.1"), 61647);
+			clock.advance(1200);
+			timer.expireTimeouts();
+			assertEquals(1, registry.getEvictedCount());
+			assertEquals(1, registry.getPeerCount());
+			assertSame(peer, registry.getPeer(a.getPeerAddress()));
+			
+			// the cancellation still finds the relationship
+			assertTrue(manager.removeObserver(a.getPeerAddress(), new byte[] {9}));
+			assertEquals(0, manager.getObserverCount(first));
+			assertEquals(0, peer.getReferenceCount());
+			
+			// without state, the peer is evicted like any other
+			clock.advance(1200);
+			assertEquals(1, registry.evictIdlePeers());
+			assertTrue(peer.isEvicted());
+			assertNotSame(peer, registry.getPeer(a.getPeerAddress()));
+			
+		} finally {
+			PeerRegistry.setInstance(previous);
+		}
+	}
+	
+	@Test
+	public void testEnqueueChange() throws Exception {
+		
+		final List<Runnable> queued = new ArrayList<Runnable>();
+		Executor previous = manager.getNotificationExecutor();
+		manager.setNotificationExecutor(new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				queued.add(command);
+			}
+		});
+		
+		try {
+			// not observed, nothing to do
+			manager.enqueueChange(first);
+			assertEquals(0, manager.getNotificationQueueDepth());
+			
+			GETRequest a = observe(first, 61645, (byte) 8);
+			
+			// changes wait for the notifier and are merged per resource
+			manager.enqueueChange(first);
+			manager.enqueueChange(first);
+			assertEquals(1, queued.size());
+			assertEquals(1, manager.getNotificationQueueDepth());
+			
+			manager.removeObserver(a.getPeerAddress(), first);
+			queued.get(0).run();
+			assertEquals(0, manager.getNotificationQueueDepth());
+			assertTrue(manager.getMaxNotificationLag() >= manager.getNotificationLag());
+			
+		} finally {
+			manager.setNotificationExecutor(previous);
+		}
+	}
+}
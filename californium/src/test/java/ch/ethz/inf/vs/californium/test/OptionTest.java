@@ -31,9 +31,16 @@
 package ch.ethz.inf.vs.californium.test;
 
 import static org.junit.Assert.*;
+
+import java.util.List;
+
 import org.junit.Test;
 
+import ch.ethz.inf.vs.californium.coap.BlockOption;
+import ch.ethz.inf.vs.californium.coap.CodeRegistry;
+import ch.ethz.inf.vs.californium.coap.Message;
 import ch.ethz.inf.vs.californium.coap.Option;
+import ch.ethz.inf.vs.californium.coap.OptionNumberRegistry;
 
 public class OptionTest {
 
@@ -101,6 +108,55 @@ public class OptionTest {
 		assertFalse(optTwoBytes.equals(optOneByte));
 	}
 
+	@Test
+	public void testIntEncoding() {
+		int nrRef = 1;
+		
+		assertEquals(1, new Option(0, nrRef).getLength());
+		assertEquals(3, new Option(0x10000, nrRef).getLength());
+		assertEquals(4, new Option(0x1000000, nrRef).getLength());
+		assertEquals(4, new Option(-1, nrRef).getLength());
+		
+		assertArrayEquals(new byte[] {0x01, 0x00}, new Option(256, nrRef).getRawValue());
+		assertEquals(0x12345678, new Option(0x12345678, nrRef).getIntValue());
+		assertEquals(-1, new Option(-1, nrRef).getIntValue());
+	}
+	
+	@Test
+	public void testReceivedOptions() {
+		Message msg = CodeRegistry.getMessageSubClass(CodeRegistry.METHOD_GET);
+		msg.setMID(1);
+		msg.setOption(new Option(1234, OptionNumberRegistry.URI_PORT));
+		msg.setURI("/a/b");
+		msg.setOption(new BlockOption(OptionNumberRegistry.BLOCK2, 3, 2, false));
+		
+		Message received = Message.fromByteArray(msg.toByteArray());
+		
+		assertEquals(4, received.getOptionCount());
+		assertEquals(1234, received.getFirstOption(OptionNumberRegistry.URI_PORT).getIntValue());
+		assertEquals("a/b", received.getUriPath().substring(1));
+		assertEquals(new Option("b", OptionNumberRegistry.URI_PATH), received.getOptions(OptionNumberRegistry.URI_PATH).get(1));
+		assertEquals(new Option("b", OptionNumberRegistry.URI_PATH).hashCode(), received.getOptions(OptionNumberRegistry.URI_PATH).get(1).hashCode());
+		
+		// changes to received options are encoded
+		BlockOption block = (BlockOption) received.getFirstOption(OptionNumberRegistry.BLOCK2);
+		assertEquals(3, block.getNUM());
+		block.setNUM(4);
+		
+		Message forwarded = Message.fromByteArray(received.toByteArray());
+		assertEquals(4, ((BlockOption) forwarded.getFirstOption(OptionNumberRegistry.BLOCK2)).getNUM());
+		
+		// added options follow received ones of the same number
+		received.addOption(new Option("c", OptionNumberRegistry.URI_PATH));
+		received.removeOptions(OptionNumberRegistry.URI_PORT);
+		
+		List<Option> options = received.getOptions();
+		assertEquals(4, options.size());
+		assertEquals("c", options.get(2).getStringValue());
+		assertEquals(OptionNumberRegistry.BLOCK2, options.get(3).getOptionNumber());
+		assertEquals("/a/b/c", received.getUriPath());
+	}
+
 	public static String getHexString(byte[] b) throws Exception {
 		String result = "";
 		for (int i = 0; i < b.length; i++) {
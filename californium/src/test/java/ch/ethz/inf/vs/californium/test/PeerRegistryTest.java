@@ -0,0 +1,134 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.test;
+
+import static org.junit.Assert.*;
+
+import java.net.InetAddress;
+
+import org.junit.Test;
+
+import ch.ethz.inf.vs.californium.coap.EndpointAddress;
+import ch.ethz.inf.vs.californium.coap.Peer;
+import ch.ethz.inf.vs.californium.coap.PeerRegistry;
+import ch.ethz.inf.vs.californium.test.StackFixture.ManualClock;
+import ch.ethz.inf.vs.californium.util.HashedWheelTimer;
+
+
+public class PeerRegistryTest {
+	
+	private ManualClock clock = new ManualClock();
+	private HashedWheelTimer timer = new HashedWheelTimer(10, 8, clock);
+
+	@Test
+	public void testInterning() throws Exception {
+		PeerRegistry registry = new PeerRegistry(1000, timer);
+		InetAddress localhost = InetAddress.getByName("127.0.0.1");
+		
+		Peer peer = registry.getPeer(localhost, 5683);
+		assertSame(peer, registry.getPeer(localhost, 5683));
+		assertSame(peer, registry.getPeer(new EndpointAddress(localhost, 5683)));
+		assertSame(peer.getAddress(), registry.getPeer(localhost, 5683).getAddress());
+		
+		Peer other = registry.getPeer(localhost, 5684);
+		assertNotSame(peer, other);
+		assertFalse(peer.getId() == other.getId());
+		
+		Peer v6 = registry.getPeer(InetAddress.getByName("::1"), 5683);
+		assertSame(v6, registry.getPeer(InetAddress.getByName("::1"), 5683));
+		assertEquals("[0:0:0:0:0:0:0:1]:5683", v6.getAddress().toString());
+		
+		assertEquals(PeerRegistry.LOCAL_ID, registry.getPeer(null).getId());
+		assertEquals(3, registry.getPeerCount());
+	}
+	
+	@Test
+	public void testIdleEviction() throws Exception {
+		PeerRegistry registry = new PeerRegistry(1000, timer);
+		InetAddress localhost = InetAddress.getByName("127.0.0.1");
+		
+		Peer idle = registry.getPeer(localhost, 5683);
+		Peer active = registry.getPeer(localhost, 5684);
+		
+		clock.advance(600);
+		timer.expireTimeouts();
+		assertSame(active, registry.getPeer(localhost, 5684));
+		assertEquals(2, registry.getPeerCount());
+		
+		// the periodic sweep after the timeout evicts, lookups do not
+		clock.advance(600);
+		assertSame(active, registry.getPeer(localhost, 5684));
+		assertEquals(2, registry.getPeerCount());
+		timer.expireTimeouts();
+		assertEquals(1, registry.getPeerCount());
+		assertEquals(1, registry.getEvictedCount());
+		
+		// an evicted peer comes back with a new ID
+		Peer returned = registry.getPeer(localhost, 5683);
+		assertNotSame(idle, returned);
+		assertTrue(returned.getId() > active.getId());
+	}
+	
+	@Test
+	public void testRetainedPeer() throws Exception {
+		PeerRegistry registry = new PeerRegistry(1000, timer);
+		InetAddress localhost = InetAddress.getByName("127.0.0.1");
+		
+		Peer peer = registry.getPeer(localhost, 5683);
+		peer.retain();
+		
+		clock.advance(1200);
+		assertEquals(0, registry.evictIdlePeers());
+		assertSame(peer, registry.getPeer(localhost, 5683));
+		
+		peer.release();
+		clock.advance(1200);
+		assertEquals(1, registry.evictIdlePeers());
+		assertTrue(peer.isEvicted());
+		
+		// neither map returns the evicted peer
+		Peer returned = registry.getPeer(localhost, 5683);
+		assertNotSame(peer, returned);
+		assertSame(returned, registry.getPeer(new EndpointAddress(localhost, 5683)));
+		assertEquals(1, registry.getPeerCount());
+	}
+	
+	@Test
+	public void testNoEviction() throws Exception {
+		PeerRegistry registry = new PeerRegistry(0, timer);
+		
+		Peer peer = registry.getPeer(InetAddress.getByName("127.0.0.1"), 5683);
+		
+		clock.advance(3600000L);
+		assertEquals(0, registry.evictIdlePeers());
+		assertSame(peer, registry.getPeer(InetAddress.getByName("127.0.0.1"), 5683));
+	}
+}
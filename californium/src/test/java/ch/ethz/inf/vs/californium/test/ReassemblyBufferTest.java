@@ -0,0 +1,221 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.test;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+import ch.ethz.inf.vs.californium.coap.Message;
+import ch.ethz.inf.vs.californium.util.BufferBlockSource;
+import ch.ethz.inf.vs.californium.util.MemoryBudget;
+import ch.ethz.inf.vs.californium.util.ReassemblyBuffer;
+
+
+public class ReassemblyBufferTest {
+	
+	private static byte[] block(int num, int size) {
+		byte[] block = new byte[size];
+		for (int i = 0; i < size; ++i) {
+			block[i] = (byte) (num * size + i);
+		}
+		return block;
+	}
+	
+	private static void assertContent(byte[] payload, int blocks, int size) {
+		assertEquals(blocks * size, payload.length);
+		for (int i = 0; i < payload.length; ++i) {
+			assertEquals((byte) i, payload[i]);
+		}
+	}
+
+	@Test
+	public void testInMemory() throws IOException {
+		MemoryBudget budget = new MemoryBudget(1 << 20);
+		ReassemblyBuffer buffer = new ReassemblyBuffer(budget, 1 << 16);
+		
+		for (int i = 0; i < 40; ++i) {
+			buffer.append(block(i, 64));
+		}
+		
+		assertFalse(buffer.isSpilled());
+		assertEquals(2560, buffer.size());
+		assertTrue(budget.getUsed() >= 2560);
+		
+		Message msg = new Message();
+		buffer.moveTo(msg);
+		
+		assertNull(msg.getPayloadSource());
+		assertContent(msg.getPayload(), 40, 64);
+		assertEquals(0, budget.getUsed());
+	}
+	
+	@Test
+	public void testSpillAboveThreshold() throws IOException {
+		MemoryBudget budget = new MemoryBudget(1 << 20);
+		ReassemblyBuffer buffer = new ReassemblyBuffer(budget, 1024);
+		
+		for (int i = 0; i < 40; ++i) {
+			buffer.append(block(i, 64));
+		}
+		
+		assertTrue(buffer.isSpilled());
+		assertEquals(0, budget.getUsed());
+		
+		Message msg = new Message();
+		buffer.moveTo(msg);
+		
+		assertNotNull(msg.getPayloadSource());
+		assertContent(msg.getPayload(), 40, 64);
+	}
+	
+	@Test
+	public void testSpillWhenBudgetExhausted() throws IOException {
+		MemoryBudget budget = new MemoryBudget(1536);
+		ReassemblyBuffer first = new ReassemblyBuffer(budget, 1 << 16);
+		ReassemblyBuffer second = new ReassemblyBuffer(budget, 1 << 16);
+		
+		for (int i = 0; i < 16; ++i) {
+			first.append(block(i, 64));
+		}
+		second.append(block(0, 64));
+		
+		assertFalse(first.isSpilled());
+		assertTrue(second.isSpilled());
+		
+		first.discard();
+		second.discard();
+		assertEquals(0, budget.getUsed());
+		
+		try {
+			first.append(block(16, 64));
+			fail("Discarded buffer accepted a block");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+	
+	@Test
+	public void testMaxSize() throws IOException {
+		MemoryBudget budget = new MemoryBudget(1 << 20);
+		ReassemblyBuffer buffer = new ReassemblyBuffer(budget, 1 << 16, 1024, new MemoryBudget(1 << 20));
+		
+		for (int i = 0; i < 16; ++i) {
+			buffer.append(block(i, 64));
+		}
+		
+		try {
+			buffer.append(block(16, 64));
+			fail("Buffer exceeded its maximum size");
+		} catch (IOException e) {
+			// expected
+		}
+		assertEquals(1024, buffer.size());
+		
+		buffer.discard();
+		assertEquals(0, budget.getUsed());
+	}
+	
+	@Test
+	public void testSpillBudget() throws IOException {
+		MemoryBudget budget = new MemoryBudget(1 << 20);
+		MemoryBudget spillBudget = new MemoryBudget(1200);
+		ReassemblyBuffer first = new ReassemblyBuffer(budget, 256, 1 << 20, spillBudget);
+		ReassemblyBuffer second = new ReassemblyBuffer(budget, 256, 1 << 20, spillBudget);
+		
+		for (int i = 0; i < 16; ++i) {
+			first.append(block(i, 64));
+		}
+		assertTrue(first.isSpilled());
+		assertEquals(1024, spillBudget.getUsed());
+		
+		// the second transfer cannot spill into the remaining 176 bytes
+		for (int i = 0; i < 4; ++i) {
+			second.append(block(i, 64));
+		}
+		try {
+			second.append(block(4, 64));
+			fail("Buffer exceeded the spill budget");
+		} catch (IOException e) {
+			// expected
+		}
+		assertFalse(second.isSpilled());
+		
+		first.discard();
+		second.discard();
+		assertEquals(0, spillBudget.getUsed());
+		assertEquals(0, budget.getUsed());
+	}
+	
+	@Test
+	public void testSpillBudgetHeldBySource() throws IOException {
+		MemoryBudget budget = new MemoryBudget(1 << 20);
+		MemoryBudget spillBudget = new MemoryBudget(1200);
+		ReassemblyBuffer first = new ReassemblyBuffer(budget, 256, 1 << 20, spillBudget);
+		ReassemblyBuffer second = new ReassemblyBuffer(budget, 256, 1 << 20, spillBudget);
+		
+		for (int i = 0; i < 16; ++i) {
+			first.append(block(i, 64));
+		}
+		Message msg = new Message();
+		first.moveTo(msg);
+		
+		// the delivered mapping still holds the blocks of the file
+		assertEquals(1024, spillBudget.getUsed());
+		for (int i = 0; i < 4; ++i) {
+			second.append(block(i, 64));
+		}
+		try {
+			second.append(block(4, 64));
+			fail("Buffer spilled into the budget of a live source");
+		} catch (IOException e) {
+			// expected
+		}
+		
+		BufferBlockSource source = (BufferBlockSource) msg.getPayloadSource();
+		source.release();
+		assertEquals(0, spillBudget.getUsed());
+		assertContent(msg.getPayload(), 16, 64);
+		
+		second.append(block(4, 64));
+		assertTrue(second.isSpilled());
+		assertEquals(320, spillBudget.getUsed());
+		
+		// released only once
+		source.release();
+		assertEquals(320, spillBudget.getUsed());
+		
+		second.discard();
+		assertEquals(0, spillBudget.getUsed());
+	}
+}
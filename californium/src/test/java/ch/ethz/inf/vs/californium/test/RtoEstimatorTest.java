@@ -0,0 +1,97 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.test;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import ch.ethz.inf.vs.californium.coap.RtoEstimator;
+import ch.ethz.inf.vs.californium.test.StackFixture.ManualClock;
+
+
+public class RtoEstimatorTest {
+	
+	private ManualClock clock = new ManualClock();
+
+	@Test
+	public void testConvergesToShortRtt() {
+		RtoEstimator estimator = new RtoEstimator(2000d, clock);
+		
+		for (int i = 0; i < 20; ++i) {
+			estimator.update(3d, 0);
+		}
+		
+		assertTrue(estimator.getRto() < 20d);
+		assertEquals(3d, RtoEstimator.backoffFactor(estimator.getRto()), 0d);
+	}
+	
+	@Test
+	public void testWeakSamplesWeighLess() {
+		RtoEstimator strong = new RtoEstimator(2000d, clock);
+		RtoEstimator weak = new RtoEstimator(2000d, clock);
+		
+		strong.update(100d, 0);
+		weak.update(100d, 1);
+		
+		assertTrue(strong.getRto() < weak.getRto());
+		assertTrue(weak.getRto() < 2000d);
+		
+		// ambiguous samples are ignored
+		double rto = weak.getRto();
+		weak.update(100d, RtoEstimator.MAX_WEAK_RETRANSMISSIONS + 1);
+		assertEquals(rto, weak.getRto(), 0d);
+	}
+	
+	@Test
+	public void testAging() {
+		RtoEstimator estimator = new RtoEstimator(2000d, clock);
+		for (int i = 0; i < 20; ++i) {
+			estimator.update(10d, 0);
+		}
+		double rto = estimator.getRto();
+		
+		// doubled after 16 RTOs without update
+		clock.advanceNanos((long) (17d * rto * 1000000d));
+		assertEquals(2d * rto, estimator.getRto(), 0.001d);
+		
+		// long idle periods bring it back above a second
+		clock.advance(3600000L);
+		assertTrue(estimator.getRto() >= 1000d);
+	}
+	
+	@Test
+	public void testBackoffFactor() {
+		assertEquals(3d, RtoEstimator.backoffFactor(500d), 0d);
+		assertEquals(2d, RtoEstimator.backoffFactor(2000d), 0d);
+		assertEquals(1.5d, RtoEstimator.backoffFactor(4000d), 0d);
+	}
+}
@@ -0,0 +1,128 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import ch.ethz.inf.vs.californium.coap.Message;
+import ch.ethz.inf.vs.californium.coap.MessageReceiver;
+import ch.ethz.inf.vs.californium.layers.Layer;
+import ch.ethz.inf.vs.californium.util.HashedWheelTimer;
+
+/**
+ * Building blocks shared by the tests of layers and timed components: a
+ * clock that only moves when told to, a bottom layer that records what is
+ * sent, and a receiver that collects what is delivered.
+ * 
+ * @author Matthias Kovatsch
+ */
+public class StackFixture {
+	
+	public static final long MS = 1000000L;
+	
+	public static class ManualClock implements HashedWheelTimer.Clock {
+		
+		private volatile long now;
+		
+		public ManualClock() {
+			this(0L);
+		}
+		
+		public ManualClock(long start) {
+			this.now = start;
+		}
+		
+		@Override
+		public long nanoTime() {
+			return now;
+		}
+		
+		public void advance(long millis) {
+			now += millis * MS;
+		}
+		
+		public void advanceNanos(long nanos) {
+			now += nanos;
+		}
+	}
+	
+	public static class RecordingLayer extends Layer {
+		
+		public final List<Message> sent = Collections.synchronizedList(new ArrayList<Message>());
+		
+		@Override
+		protected void doSendMessage(Message msg) throws IOException {
+			sent.add(msg);
+		}
+		
+		@Override
+		protected void doReceiveMessage(Message msg) {
+			deliverMessage(msg);
+		}
+	}
+	
+	public static class Collector implements MessageReceiver {
+		
+		public final List<Message> received = new ArrayList<Message>();
+		
+		@Override
+		public synchronized void receiveMessage(Message msg) {
+			received.add(msg);
+			notifyAll();
+		}
+		
+		/**
+		 * Waits until the given number of messages was received.
+		 * 
+		 * @param count the number of messages
+		 * @param timeout the maximum time to wait in milliseconds
+		 * @return true if the messages arrived in time
+		 */
+		public synchronized boolean await(int count, long timeout) throws InterruptedException {
+			long deadline = System.currentTimeMillis() + timeout;
+			while (received.size() < count) {
+				long left = deadline - System.currentTimeMillis();
+				if (left <= 0) {
+					return false;
+				}
+				wait(left);
+			}
+			return true;
+		}
+		
+		public synchronized int size() {
+			return received.size();
+		}
+	}
+}
@@ -31,8 +31,15 @@
 package ch.ethz.inf.vs.californium.test;
 
 import static org.junit.Assert.*;
+
+import java.net.InetAddress;
+
 import org.junit.Test;
 
+import ch.ethz.inf.vs.californium.coap.EndpointAddress;
+import ch.ethz.inf.vs.californium.coap.GETRequest;
+import ch.ethz.inf.vs.californium.coap.KeyId;
+import ch.ethz.inf.vs.californium.coap.Message;
 import ch.ethz.inf.vs.californium.coap.Option;
 import ch.ethz.inf.vs.californium.coap.OptionNumberRegistry;
 
@@ -86,6 +93,34 @@ public class TokenEqualityTest {
 		Option t3 = new Option(0xABCDEF02, OptionNumberRegistry.TOKEN);
 		assertFalse(t1.equals(t3)); // Why no assertNotEquals in JUnit?!
 	}
-
 	
+	@Test
+	public void testSequenceId() throws Exception {
+		EndpointAddress peer = new EndpointAddress(InetAddress.getByName("127.0.0.1"), 61620);
+		
+		Message m1 = new GETRequest();
+		m1.setPeerAddress(peer);
+		m1.setToken(new byte[] {0x12, 0x34});
+		
+		// equal address instance and equal token value
+		Message m2 = new GETRequest();
+		m2.setPeerAddress(new EndpointAddress(InetAddress.getByName("127.0.0.1"), 61620));
+		m2.setToken(new byte[] {0x12, 0x34});
+		
+		KeyId k1 = m1.sequenceId();
+		KeyId k2 = m2.sequenceId();
+		assertEquals(k1, k2);
+		assertEquals(k1.hashCode(), k2.hashCode());
+		assertEquals(m1.sequenceKey(), k1.toString());
+		
+		m2.setToken(new byte[] {0x12, 0x35});
+		assertFalse(k1.equals(m2.sequenceId()));
+		
+		m2.setToken(new byte[] {0x12, 0x34});
+		m2.setPeerAddress(new EndpointAddress(InetAddress.getByName("127.0.0.1"), 61621));
+		assertFalse(k1.equals(m2.sequenceId()));
+		
+		// local messages without token
+		assertEquals(new GETRequest().sequenceId(), new GETRequest().sequenceId());
+	}
 }
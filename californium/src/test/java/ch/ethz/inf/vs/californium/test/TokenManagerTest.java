@@ -0,0 +1,153 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.test;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import ch.ethz.inf.vs.californium.coap.Option;
+import ch.ethz.inf.vs.californium.coap.TokenManager;
+
+
+public class TokenManagerTest {
+
+	@Test
+	public void testReleaseByValue() {
+		TokenManager manager = new TokenManager(64, false);
+		
+		byte[] token = manager.acquireToken();
+		assertTrue(token.length > 0);
+		assertTrue(manager.isAcquired(token));
+		
+		// a received copy of the token releases it
+		byte[] copy = token.clone();
+		manager.releaseToken(copy);
+		assertFalse(manager.isAcquired(token));
+	}
+	
+	@Test
+	public void testEmptyToken() {
+		TokenManager manager = new TokenManager(64, false);
+		
+		assertSame(TokenManager.emptyToken, manager.acquireToken(true));
+		assertTrue(manager.isAcquired(new byte[0]));
+		
+		// only once at a time
+		assertTrue(manager.acquireToken(true).length > 0);
+		
+		manager.releaseToken(new byte[0]);
+		assertSame(TokenManager.emptyToken, manager.acquireToken(true));
+	}
+	
+	@Test
+	public void testCapacity() {
+		TokenManager manager = new TokenManager(64, true);
+		
+		long[] tokens = new long[manager.getCapacity()];
+		for (int i = 0; i < tokens.length; ++i) {
+			tokens[i] = manager.acquireTokenValue();
+			assertTrue(tokens[i] > 0);
+		}
+		assertEquals(0, manager.acquireTokenValue());
+		
+		assertTrue(manager.releaseTokenValue(tokens[7]));
+		assertFalse(manager.releaseTokenValue(tokens[7]));
+		
+		long token = manager.acquireTokenValue();
+		assertTrue(token > 0);
+		assertFalse(token == tokens[7]);
+	}
+	
+	@Test
+	public void testEncoding() {
+		long[] values = {1, 0xFF, 0x100, 0x123456789AL, Long.MAX_VALUE};
+		int[] lengths = {1, 1, 2, 5, 8};
+		
+		for (int i = 0; i < values.length; ++i) {
+			byte[] bytes = TokenManager.toBytes(values[i]);
+			assertEquals(lengths[i], bytes.length);
+			assertEquals(values[i], TokenManager.toValue(bytes));
+		}
+		
+		// not created by a manager
+		assertEquals(-1, TokenManager.toValue(new byte[] {0x00, 0x01}));
+		assertEquals(-1, TokenManager.toValue(new byte[] {(byte) 0x80, 0, 0, 0, 0, 0, 0, 0}));
+		assertEquals(-1, TokenManager.toValue(new byte[9]));
+	}
+	
+	@Test
+	public void testConcurrentUniqueness() throws Exception {
+		final TokenManager manager = new TokenManager(1024, false);
+		final ConcurrentHashMap<String, Boolean> inUse = new ConcurrentHashMap<String, Boolean>();
+		final AtomicInteger duplicates = new AtomicInteger();
+		
+		Thread[] threads = new Thread[8];
+		for (int t = 0; t < threads.length; ++t) {
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					byte[][] held = new byte[16][];
+					for (int i = 0; i < 20000; ++i) {
+						int k = i % held.length;
+						if (held[k] != null) {
+							inUse.remove(Option.hex(held[k]));
+							manager.releaseToken(held[k]);
+						}
+						held[k] = manager.acquireToken();
+						if (inUse.putIfAbsent(Option.hex(held[k]), Boolean.TRUE) != null) {
+							duplicates.incrementAndGet();
+						}
+					}
+					for (byte[] token : held) {
+						inUse.remove(Option.hex(token));
+						manager.releaseToken(token);
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		
+		assertEquals(0, duplicates.get());
+		
+		// everything released
+		for (int i = 0; i < manager.getCapacity(); ++i) {
+			assertTrue(manager.acquireTokenValue() > 0);
+		}
+		assertEquals(0, manager.acquireTokenValue());
+	}
+}
@@ -0,0 +1,183 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.test;
+
+import static org.junit.Assert.*;
+
+import java.net.InetAddress;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ch.ethz.inf.vs.californium.coap.EndpointAddress;
+import ch.ethz.inf.vs.californium.coap.GETRequest;
+import ch.ethz.inf.vs.californium.coap.Message;
+import ch.ethz.inf.vs.californium.layers.TransactionLayer;
+import ch.ethz.inf.vs.californium.test.StackFixture.Collector;
+import ch.ethz.inf.vs.californium.test.StackFixture.ManualClock;
+import ch.ethz.inf.vs.californium.test.StackFixture.RecordingLayer;
+import ch.ethz.inf.vs.californium.util.HashedWheelTimer;
+import ch.ethz.inf.vs.californium.util.Properties;
+
+
+public class TransactionLayerTest {
+	
+	private ManualClock clock = new ManualClock();
+	
+	private String savedLifetime;
+	private String savedCapacity;
+	
+	private TransactionLayer layer;
+	private List<Message> sent;
+	private Collector collector;
+	
+	private EndpointAddress peer;
+	
+	private Message request(int mid) {
+		Message request = new GETRequest();
+		request.setType(Message.messageType.CON);
+		request.setMID(mid);
+		request.setPeerAddress(peer);
+		return request;
+	}
+	
+	@Before
+	public void setUp() throws Exception {
+		savedLifetime = Properties.std.getProperty("EXCHANGE_LIFETIME");
+		savedCapacity = Properties.std.getProperty("DEDUPLICATION_CAPACITY");
+		Properties.std.set("EXCHANGE_LIFETIME", 1000);
+		Properties.std.set("DEDUPLICATION_CAPACITY", 4);
+		
+		layer = new TransactionLayer(new HashedWheelTimer(10, 8, clock));
+		RecordingLayer lower = new RecordingLayer();
+		layer.setLowerLayer(lower);
+		sent = lower.sent;
+		
+		collector = new Collector();
+		layer.registerReceiver(collector);
+		
+		peer = new EndpointAddress(InetAddress.getByName("127.0.0.1"), 61650);
+	}
+	
+	@After
+	public void tearDown() {
+		Properties.std.set("EXCHANGE_LIFETIME", savedLifetime);
+		Properties.std.set("DEDUPLICATION_CAPACITY", savedCapacity);
+	}
+
+	@Test
+	public void testDuplicateDetection() throws Exception {
+		layer.receiveMessage(request(1));
+		assertEquals(1, collector.size());
+		
+		// no reply yet, the duplicate is dropped
+		layer.receiveMessage(request(1));
+		assertEquals(1, collector.size());
+		assertEquals(0, sent.size());
+		
+		Message reply = collector.received.get(0).newReply(true);
+		layer.sendMessage(reply);
+		assertEquals(1, sent.size());
+		
+		// the cached reply answers further duplicates
+		layer.receiveMessage(request(1));
+		assertEquals(1, collector.size());
+		assertEquals(2, sent.size());
+		assertArrayEquals(reply.toByteArray(), sent.get(1).toByteArray());
+	}
+	
+	@Test
+	public void testExpiry() throws Exception {
+		layer.receiveMessage(request(2));
+		
+		clock.advance(900);
+		layer.receiveMessage(request(2));
+		assertEquals(1, collector.size());
+		
+		// reused MID after the lifetime is a new message
+		clock.advance(200);
+		layer.receiveMessage(request(2));
+		assertEquals(2, collector.size());
+	}
+	
+	@Test
+	public void testCapacity() throws Exception {
+		for (int mid = 10; mid < 15; ++mid) {
+			layer.receiveMessage(request(mid));
+		}
+		assertEquals(5, collector.size());
+		
+		// the eldest was displaced, the others are still known
+		layer.receiveMessage(request(10));
+		assertEquals(6, collector.size());
+		layer.receiveMessage(request(14));
+		assertEquals(6, collector.size());
+	}
+	
+	@Test
+	public void testConcurrentDuplicateAfterExpiry() throws Exception {
+		
+		final CyclicBarrier barrier = new CyclicBarrier(2);
+		
+		for (int mid = 100; mid < 300; ++mid) {
+			
+			layer.receiveMessage(request(mid));
+			clock.advance(1100);
+			
+			// two dispatch threads receive the same retransmission
+			final int current = mid;
+			Thread[] threads = new Thread[2];
+			for (int i = 0; i < threads.length; ++i) {
+				threads[i] = new Thread() {
+					@Override
+					public void run() {
+						try {
+							barrier.await();
+						} catch (Exception e) {
+							return;
+						}
+						layer.receiveMessage(request(current));
+					}
+				};
+				threads[i].start();
+			}
+			for (Thread thread : threads) {
+				thread.join();
+			}
+		}
+		
+		// one original and one reuse per MID
+		assertEquals(400, collector.size());
+	}
+}
@@ -0,0 +1,278 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.test;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import ch.ethz.inf.vs.californium.coap.BlockOption;
+import ch.ethz.inf.vs.californium.coap.CodeRegistry;
+import ch.ethz.inf.vs.californium.coap.EndpointAddress;
+import ch.ethz.inf.vs.californium.coap.GETRequest;
+import ch.ethz.inf.vs.californium.coap.Message;
+import ch.ethz.inf.vs.californium.coap.OptionNumberRegistry;
+import ch.ethz.inf.vs.californium.coap.PUTRequest;
+import ch.ethz.inf.vs.californium.coap.ReliabilityHandler;
+import ch.ethz.inf.vs.californium.coap.Request;
+import ch.ethz.inf.vs.californium.coap.Response;
+import ch.ethz.inf.vs.californium.layers.TransferLayer;
+import ch.ethz.inf.vs.californium.test.StackFixture.Collector;
+import ch.ethz.inf.vs.californium.test.StackFixture.ManualClock;
+import ch.ethz.inf.vs.californium.test.StackFixture.RecordingLayer;
+import ch.ethz.inf.vs.californium.util.HashedWheelTimer;
+
+
+public class TransferLayerTest {
+	
+	private ManualClock clock = new ManualClock();
+	
+	private HashedWheelTimer timer;
+	private TransferLayer transferLayer;
+	private List<Message> sent;
+	private List<Message> delivered;
+	
+	private EndpointAddress peer;
+	private byte[] token = {0x0b, 0x1c};
+	
+	private Request block(int num, boolean m) {
+		byte[] payload = new byte[64];
+		for (int i = 0; i < payload.length; ++i) {
+			payload[i] = (byte) (num * payload.length + i);
+		}
+		Request request = new PUTRequest();
+		request.setPeerAddress(peer);
+		request.setMID(num);
+		request.setToken(token);
+		request.setOption(new BlockOption(OptionNumberRegistry.BLOCK1, num, BlockOption.encodeSZX(64), m));
+		request.setPayload(payload);
+		return request;
+	}
+	
+	private Response download(byte[] token) {
+		Request request = new GETRequest();
+		request.setPeerAddress(peer);
+		request.setToken(token);
+		
+		Response response = new Response(CodeRegistry.RESP_CONTENT);
+		response.setType(Message.messageType.ACK);
+		response.setPeerAddress(peer);
+		response.setToken(token);
+		response.setRequest(request);
+		response.setPayload(new byte[300]);
+		return response;
+	}
+	
+	@Before
+	public void setUp() throws Exception {
+		timer = new HashedWheelTimer(10, 8, clock);
+		transferLayer = new TransferLayer(64, 256, 4096, 2048, 4096, 512, 1000, timer);
+		RecordingLayer lower = new RecordingLayer();
+		transferLayer.setLowerLayer(lower);
+		sent = lower.sent;
+		
+		Collector collector = new Collector();
+		transferLayer.registerReceiver(collector);
+		delivered = collector.received;
+		
+		peer = new EndpointAddress(InetAddress.getByName("127.0.0.1"), 61631);
+	}
+
+	@Test
+	public void testSpilledUpload() throws Exception {
+		for (int i = 0; i < 15; ++i) {
+			transferLayer.receiveMessage(block(i, true));
+		}
+		transferLayer.receiveMessage(block(15, false));
+		
+		assertEquals(15, sent.size());
+		assertEquals(1, delivered.size());
+		
+		Message upload = delivered.get(0);
+		assertNotNull(upload.getPayloadSource());
+		
+		byte[] payload = upload.getPayload();
+		assertEquals(16 * 64, payload.length);
+		for (int i = 0; i < payload.length; ++i) {
+			assertEquals((byte) i, payload[i]);
+		}
+		
+		// the spilled file is reserved until the upload is answered
+		assertEquals(1024, transferLayer.getSpilledBytes());
+		Response changed = new Response(CodeRegistry.RESP_CHANGED);
+		changed.setType(Message.messageType.ACK);
+		changed.setPeerAddress(peer);
+		changed.setRequest((Request) upload);
+		transferLayer.sendMessage(changed);
+		assertEquals(0, transferLayer.getSpilledBytes());
+	}
+	
+	@Test
+	public void testUploadTooLarge() {
+		for (int i = 0; i < 32; ++i) {
+			transferLayer.receiveMessage(block(i, true));
+		}
+		assertEquals(2048, transferLayer.getSpilledBytes());
+		
+		// exceeds the maximum transfer size of 2048 bytes
+		transferLayer.receiveMessage(block(32, true));
+		
+		assertEquals(33, sent.size());
+		assertEquals(CodeRegistry.RESP_REQUEST_ENTITY_TOO_LARGE, sent.get(32).getCode());
+		assertEquals(0, transferLayer.getIncomingCount());
+		assertEquals(0, transferLayer.getSpilledBytes());
+		assertEquals(0, delivered.size());
+	}
+	
+	@Test
+	public void testEvictAbandonedUpload() {
+		transferLayer.receiveMessage(block(0, true));
+		transferLayer.receiveMessage(block(1, true));
+		
+		// still active
+		clock.advance(600);
+		timer.expireTimeouts();
+		transferLayer.receiveMessage(block(2, true));
+		assertEquals(3, sent.size());
+		
+		clock.advance(1100);
+		timer.expireTimeouts();
+		
+		// the next block finds no transfer anymore
+		transferLayer.receiveMessage(block(3, true));
+		assertEquals(CodeRegistry.RESP_REQUEST_ENTITY_INCOMPLETE, sent.get(sent.size() - 1).getCode());
+		assertEquals(0, delivered.size());
+	}
+	
+	@Test
+	public void testOutgoingCacheCapacity() throws IOException {
+		transferLayer.sendMessage(download(new byte[] {1}));
+		
+		assertEquals(1, transferLayer.getOutgoingCount());
+		assertEquals(300, transferLayer.getOutgoingBytes());
+		
+		// exceeds the capacity of 512 bytes, displacing the older download
+		clock.advance(10);
+		transferLayer.sendMessage(download(new byte[] {2}));
+		
+		assertEquals(1, transferLayer.getOutgoingCount());
+		assertEquals(300, transferLayer.getOutgoingBytes());
+		
+		// the remaining download is freed when abandoned
+		clock.advance(1100);
+		timer.expireTimeouts();
+		
+		assertEquals(0, transferLayer.getOutgoingCount());
+		assertEquals(0, transferLayer.getOutgoingBytes());
+	}
+	
+	@Test
+	public void testLeastRecentlyUsedDisplaced() throws IOException {
+		Response[] downloads = {download(new byte[] {4}), download(new byte[] {5}), download(new byte[] {6})};
+		for (Response response : downloads) {
+			response.setPayload(new byte[200]);
+		}
+		
+		transferLayer.sendMessage(downloads[0]);
+		transferLayer.sendMessage(downloads[1]);
+		assertEquals(2, transferLayer.getOutgoingCount());
+		
+		// the client of the first download demands the next block
+		Request next = new GETRequest();
+		next.setPeerAddress(peer);
+		next.setMID(7);
+		next.setToken(new byte[] {4});
+		next.setOption(new BlockOption(OptionNumberRegistry.BLOCK2, 1, BlockOption.encodeSZX(64), false));
+		transferLayer.receiveMessage(next);
+		assertEquals(3, sent.size());
+		
+		// displaces the second download, which was used less recently
+		transferLayer.sendMessage(downloads[2]);
+		assertEquals(2, transferLayer.getOutgoingCount());
+		assertEquals(1, transferLayer.getDisplacedCount());
+		
+		next.setMID(8);
+		next.setToken(new byte[] {5});
+		transferLayer.receiveMessage(next);
+		assertEquals(1, delivered.size());
+	}
+	
+	@Test
+	public void testUploadNotDisplaced() throws IOException {
+		Request upload = new PUTRequest();
+		upload.setPeerAddress(peer);
+		upload.setToken(new byte[] {7});
+		upload.setPayload(new byte[600]);
+		transferLayer.sendMessage(upload);
+		
+		// uploads of this endpoint are not counted against the capacity
+		assertEquals(1, transferLayer.getOutgoingCount());
+		assertEquals(0, transferLayer.getOutgoingBytes());
+		
+		transferLayer.sendMessage(download(new byte[] {8}));
+		transferLayer.sendMessage(download(new byte[] {9}));
+		
+		assertEquals(2, transferLayer.getOutgoingCount());
+		assertEquals(300, transferLayer.getOutgoingBytes());
+		assertEquals(1, transferLayer.getDisplacedCount());
+	}
+	
+	@Test
+	public void testConfirmableNotificationBlock() throws IOException {
+		ReliabilityHandler handler = new ReliabilityHandler() {
+			@Override
+			public void handleAcknowledgement(Message msg) { }
+			@Override
+			public void handleReset(Message msg) { }
+			@Override
+			public void handleTimeout(Message msg) { }
+		};
+		
+		// larger than the block size of 64 bytes
+		Response notification = download(new byte[] {3});
+		notification.setType(Message.messageType.CON);
+		notification.setReliabilityHandler(handler);
+		notification.setMaxRetransmit(2);
+		transferLayer.sendMessage(notification);
+		
+		// the first block carries the outcome of the notification
+		assertEquals(1, sent.size());
+		Message first = sent.get(0);
+		assertTrue(first.isConfirmable());
+		assertSame(handler, first.getReliabilityHandler());
+		assertEquals(2, first.getMaxRetransmit());
+	}
+}
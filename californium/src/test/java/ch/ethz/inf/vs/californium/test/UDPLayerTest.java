@@ -0,0 +1,336 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.test;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import ch.ethz.inf.vs.californium.coap.EndpointAddress;
+import ch.ethz.inf.vs.californium.coap.GETRequest;
+import ch.ethz.inf.vs.californium.coap.Message;
+import ch.ethz.inf.vs.californium.coap.MessageReceiver;
+import ch.ethz.inf.vs.californium.coap.SendHandler;
+import ch.ethz.inf.vs.californium.layers.UDPLayer;
+import ch.ethz.inf.vs.californium.test.StackFixture.Collector;
+import ch.ethz.inf.vs.californium.util.Properties;
+
+
+public class UDPLayerTest {
+	
+	private static final long TIMEOUT = 5000;
+	
+	private Map<String, String> saved;
+	private DatagramSocket client;
+	
+	private void configure(String key, Object value) {
+		if (!saved.containsKey(key)) {
+			saved.put(key, Properties.std.getProperty(key));
+		}
+		Properties.std.set(key, String.valueOf(value));
+	}
+	
+	private void send(DatagramSocket from, UDPLayer layer, int mid) throws Exception {
+		Message msg = new GETRequest();
+		msg.setMID(mid);
+		byte[] data = msg.toByteArray();
+		from.send(new DatagramPacket(data, data.length, InetAddress.getByName("127.0.0.1"), layer.getPort()));
+	}
+	
+	@Before
+	public void setUp() throws Exception {
+		saved = new HashMap<String, String>();
+		client = new DatagramSocket();
+	}
+	
+	@After
+	public void tearDown() {
+		client.close();
+		for (Map.Entry<String, String> entry : saved.entrySet()) {
+			Properties.std.set(entry.getKey(), entry.getValue());
+		}
+	}
+
+	@Test
+	public void testDispatchPool() throws Exception {
+		configure("DISPATCH_POOL_SIZE", 2);
+		
+		UDPLayer layer = new UDPLayer(0, true);
+		final Collector collector = new Collector();
+		final Map<Integer, String> threads = new HashMap<Integer, String>();
+		layer.registerReceiver(new MessageReceiver() {
+			@Override
+			public void receiveMessage(Message msg) {
+				synchronized (threads) {
+					threads.put(msg.getMID(), Thread.currentThread().getName());
+				}
+				collector.receiveMessage(msg);
+			}
+		});
+		
+		for (int mid = 1; mid <= 10; ++mid) {
+			send(client, layer, mid);
+		}
+		
+		assertTrue(collector.await(10, TIMEOUT));
+		
+		// the stack runs on the worker threads, not on the receiver thread
+		synchronized (threads) {
+			for (String name : threads.values()) {
+				assertTrue(name, name.startsWith("DispatchThread-"));
+			}
+		}
+		assertEquals(0, layer.getNumMessagesDropped());
+	}
+	
+	@Test
+	public void testDispatchQueueFull() throws Exception {
+		configure("DISPATCH_POOL_SIZE", 1);
+		configure("DISPATCH_QUEUE_CAPACITY", 1);
+		
+		UDPLayer layer = new UDPLayer(0, true);
+		final CountDownLatch release = new CountDownLatch(1);
+		final Collector collector = new Collector();
+		layer.registerReceiver(new MessageReceiver() {
+			@Override
+			public void receiveMessage(Message msg) {
+				collector.receiveMessage(msg);
+				try {
+					// keep the only worker busy
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+		
+		// one message occupies the worker
+		send(client, layer, 1);
+		assertTrue(collector.await(1, TIMEOUT));
+		
+		// one waits in the queue, the others are dropped
+		for (int mid = 2; mid <= 5; ++mid) {
+			send(client, layer, mid);
+		}
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		while (layer.getNumMessagesDropped() < 3 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(3, layer.getNumMessagesDropped());
+		
+		release.countDown();
+		assertTrue(collector.await(2, TIMEOUT));
+		assertEquals(2, collector.received.get(1).getMID());
+	}
+	
+	private Message outgoing(int mid, SendHandler handler) throws Exception {
+		Message msg = new GETRequest();
+		msg.setMID(mid);
+		msg.setPeerAddress(new EndpointAddress(InetAddress.getByName("127.0.0.1"), client.getLocalPort()));
+		msg.setSendHandler(handler);
+		return msg;
+	}
+	
+	private class BlockingHandler implements SendHandler {
+		
+		public final CountDownLatch entered = new CountDownLatch(1);
+		public final CountDownLatch release = new CountDownLatch(1);
+		public final List<Integer> sent = Collections.synchronizedList(new ArrayList<Integer>());
+		public final List<Integer> failed = Collections.synchronizedList(new ArrayList<Integer>());
+		
+		@Override
+		public void handleSent(Message msg) {
+			sent.add(msg.getMID());
+			entered.countDown();
+			try {
+				// hold the writer thread
+				release.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		
+		@Override
+		public void handleSendFailure(Message msg, IOException cause) {
+			failed.add(msg.getMID());
+		}
+	}
+	
+	@Test
+	public void testSendQueue() throws Exception {
+		configure("TX_QUEUE_CAPACITY", 16);
+		
+		UDPLayer layer = new UDPLayer(0, true);
+		final List<String> threads = Collections.synchronizedList(new ArrayList<String>());
+		SendHandler handler = new SendHandler() {
+			@Override
+			public void handleSent(Message msg) {
+				threads.add(Thread.currentThread().getName());
+			}
+			@Override
+			public void handleSendFailure(Message msg, IOException cause) {
+				fail(cause.getMessage());
+			}
+		};
+		
+		for (int mid = 0; mid < 5; ++mid) {
+			layer.sendMessage(outgoing(mid, handler));
+		}
+		
+		client.setSoTimeout((int) TIMEOUT);
+		for (int mid = 0; mid < 5; ++mid) {
+			DatagramPacket datagram = new DatagramPacket(new byte[64], 64);
+			client.receive(datagram);
+			assertEquals(mid, Message.fromByteArray(Arrays.copyOf(datagram.getData(), datagram.getLength())).getMID());
+		}
+		
+		// the handlers are called by the writer thread after sending
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		while (threads.size() < 5 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(5, threads.size());
+		for (String name : threads) {
+			assertEquals("WriterThread", name);
+		}
+	}
+	
+	@Test
+	public void testSendQueueFull() throws Exception {
+		configure("TX_QUEUE_CAPACITY", 1);
+		
+		UDPLayer layer = new UDPLayer(0, true);
+		BlockingHandler handler = new BlockingHandler();
+		
+		// the writer thread takes the first message and blocks in its handler
+		layer.sendMessage(outgoing(1, handler));
+		assertTrue(handler.entered.await(TIMEOUT, TimeUnit.MILLISECONDS));
+		
+		// the second waits in the queue, the third does not fit
+		layer.sendMessage(outgoing(2, handler));
+		try {
+			layer.sendMessage(outgoing(3, handler));
+			fail("Expected IOException");
+		} catch (IOException e) {
+			// expected
+		}
+		assertEquals(Arrays.asList(3), handler.failed);
+		
+		handler.release.countDown();
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		while (handler.sent.size() < 2 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(Arrays.asList(1, 2), handler.sent);
+	}
+	
+	@Test
+	public void testWriterDrainsInOrder() throws Exception {
+		configure("TX_QUEUE_CAPACITY", 8);
+		configure("TX_BATCH_SIZE", 4);
+		
+		UDPLayer layer = new UDPLayer(0, true);
+		BlockingHandler handler = new BlockingHandler();
+		
+		layer.sendMessage(outgoing(0, handler));
+		assertTrue(handler.entered.await(TIMEOUT, TimeUnit.MILLISECONDS));
+		
+		// queued while the writer is busy, taken in two batches
+		for (int mid = 1; mid <= 6; ++mid) {
+			layer.sendMessage(outgoing(mid, handler));
+		}
+		handler.release.countDown();
+		
+		client.setSoTimeout((int) TIMEOUT);
+		for (int mid = 0; mid <= 6; ++mid) {
+			DatagramPacket datagram = new DatagramPacket(new byte[64], 64);
+			client.receive(datagram);
+			assertEquals(mid, Message.fromByteArray(Arrays.copyOf(datagram.getData(), datagram.getLength())).getMID());
+		}
+		assertTrue(handler.failed.isEmpty());
+	}
+	
+	@Test
+	public void testReceiverShards() throws Exception {
+		configure("UDP_NIO_RECEIVER", true);
+		configure("UDP_RECEIVER_SHARDS", 2);
+		
+		UDPLayer layer = new UDPLayer(0, true);
+		
+		// falls back to one channel where SO_REUSEPORT is not supported
+		Assume.assumeTrue(layer.getReceiverCount() == 2);
+		
+		Collector collector = new Collector();
+		layer.registerReceiver(collector);
+		
+		// different source ports are spread across the channels
+		DatagramSocket[] peers = new DatagramSocket[8];
+		for (int i = 0; i < peers.length; ++i) {
+			peers[i] = new DatagramSocket();
+			send(peers[i], layer, i);
+		}
+		
+		try {
+			assertTrue(collector.await(peers.length, TIMEOUT));
+			
+			// replies leave from the shared port
+			Message reply = collector.received.get(0).newReply(true);
+			layer.sendMessage(reply);
+			
+			DatagramSocket target = peers[collector.received.get(0).getMID()];
+			target.setSoTimeout((int) TIMEOUT);
+			DatagramPacket datagram = new DatagramPacket(new byte[64], 64);
+			target.receive(datagram);
+			assertEquals(layer.getPort(), datagram.getPort());
+			
+		} finally {
+			for (DatagramSocket peer : peers) {
+				peer.close();
+			}
+		}
+	}
+}
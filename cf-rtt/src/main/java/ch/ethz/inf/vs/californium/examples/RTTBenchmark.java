@@ -0,0 +1,154 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.examples;
+
+import java.io.IOException;
+import java.net.SocketException;
+import java.util.Arrays;
+import java.util.logging.Level;
+
+import ch.ethz.inf.vs.californium.coap.CodeRegistry;
+import ch.ethz.inf.vs.californium.coap.GETRequest;
+import ch.ethz.inf.vs.californium.coap.Request;
+import ch.ethz.inf.vs.californium.coap.Response;
+import ch.ethz.inf.vs.californium.endpoint.LocalEndpoint;
+import ch.ethz.inf.vs.californium.endpoint.LocalResource;
+import ch.ethz.inf.vs.californium.util.Log;
+import ch.ethz.inf.vs.californium.util.Properties;
+
+/**
+ * Measures the completion times of confirmable requests over a lossy link
+ * emulated by the AdverseLayer, either with the fixed RESPONSE_TIMEOUT or
+ * with congestion control. Client and server run in the same endpoint, so
+ * requests and responses are both subject to the loss.
+ */
+public class RTTBenchmark {
+
+	static int port = 5690;
+	static int n = 500;
+	static double loss = 0.1;
+
+	/*
+	 * Main method of this benchmark.
+	 */
+	public static void main(String[] args) {
+		
+		Log.setLevel(Level.SEVERE);
+		Log.init();
+		
+		if (args.length > 0 && args[0].matches("fixed|adaptive")) {
+			
+			boolean adaptive = args[0].equals("adaptive");
+			
+			try {
+				if (args.length > 1) {
+					loss = Double.parseDouble(args[1]);
+				}
+				if (args.length > 2) {
+					n = Integer.parseInt(args[2]);
+				}
+			} catch (NumberFormatException e) {
+				System.err.println("Invalid number: " + e.getMessage());
+				System.exit(-1);
+			}
+			
+			Properties.std.set("CONGESTION_CONTROL", adaptive);
+			Properties.std.set("ADVERSE_TX_LOSS", loss);
+			
+			try {
+				LocalEndpoint endpoint = new LocalEndpoint(port, 0, true);
+				endpoint.addResource(new LocalResource("bench") {
+					@Override
+					public void performGET(GETRequest request) {
+						request.respond(CodeRegistry.RESP_CONTENT, "ok");
+					}
+				});
+			} catch (SocketException e) {
+				System.err.println("Cannot start endpoint: " + e.getMessage());
+				System.exit(-1);
+			}
+			
+			double[] times = new double[n];
+			int completed = 0;
+			int retransmitted = 0;
+			
+			for (int i = 0; i < n; i++) {
+				
+				Request request = new GETRequest();
+				request.enableResponseQueue(true);
+				request.setURI("coap://localhost:" + port + "/bench");
+				
+				long start = System.nanoTime();
+				
+				try {
+					request.execute();
+					Response response = request.receiveResponse();
+					if (response != null) {
+						times[completed++] = (System.nanoTime() - start) / 1000000d;
+						if (request.getRetransmissioned() > 0) {
+							++retransmitted;
+						}
+					}
+				} catch (IOException e) {
+					System.err.println("Failed to execute request: " + e.getMessage());
+				} catch (InterruptedException e) {
+					break;
+				}
+			}
+			
+			Arrays.sort(times, 0, completed);
+			
+			System.out.printf("%s RTO, %.0f%% loss: %d of %d completed, %d retransmitted\n", adaptive ? "Adaptive" : "Fixed", loss * 100d, completed, n, retransmitted);
+			if (completed > 0) {
+				System.out.printf("    Median = %.2fms, 90th = %.2fms, 99th = %.2fms, Maximum = %.2fms\n",
+						percentile(times, completed, 0.5d),
+						percentile(times, completed, 0.9d),
+						percentile(times, completed, 0.99d),
+						times[completed - 1]);
+			}
+			
+			System.exit(0);
+
+		} else {
+			// display help
+			System.out.println("Californium (Cf) RTT Benchmark");
+			System.out.println("(c) 2012, Institute for Pervasive Computing, ETH Zurich");
+			System.out.println();
+			System.out.println("Usage: " + RTTBenchmark.class.getSimpleName() + " fixed|adaptive [LOSS] [N]");
+			System.out.println("  LOSS: The probability to drop an outgoing message (default 0.1)");
+			System.out.println("  N:    The number of requests (default 500)");
+		}
+	}
+	
+	private static double percentile(double[] sorted, int count, double p) {
+		return sorted[Math.min((int) Math.ceil(p * count) - 1, count - 1)];
+	}
+}
@@ -0,0 +1,127 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.examples;
+
+import ch.ethz.inf.vs.californium.coap.TokenManager;
+
+/**
+ * Measures the throughput of the TokenManager when many sender threads
+ * acquire and release tokens concurrently, as the TokenLayer does for every
+ * request. Each thread keeps a window of tokens in use and replaces the
+ * oldest one per operation. A run of {@code counting 16 200000} uses 16
+ * threads with 200,000 acquire/release pairs each, after a warm-up with a
+ * tenth of them.
+ */
+public class TokenBenchmark {
+
+	static int threads = 16;
+	static int ops = 1000000;
+	static int window = 32;
+
+	/*
+	 * Main method of this benchmark.
+	 */
+	public static void main(String[] args) {
+		
+		if (args.length > 0 && args[0].matches("counting|random")) {
+			
+			boolean random = args[0].equals("random");
+			
+			try {
+				if (args.length > 1) {
+					threads = Integer.parseInt(args[1]);
+				}
+				if (args.length > 2) {
+					ops = Integer.parseInt(args[2]);
+				}
+			} catch (NumberFormatException e) {
+				System.err.println("Invalid number: " + e.getMessage());
+				System.exit(-1);
+			}
+			
+			final TokenManager manager = new TokenManager(threads * window * 2, random);
+			
+			// warm up, then measure
+			run(manager, ops / 10);
+			long start = System.nanoTime();
+			run(manager, ops);
+			double seconds = (System.nanoTime() - start) / 1e9d;
+			
+			System.out.printf("%s tokens, %d threads: %d acquire/release pairs per thread in %.2fs, %.0f pairs/s\n",
+					random ? "Random" : "Counting", threads, ops, seconds, threads * (double) ops / seconds);
+			
+		} else {
+			// display help
+			System.out.println("Californium (Cf) Token Benchmark");
+			System.out.println("(c) 2012, Institute for Pervasive Computing, ETH Zurich");
+			System.out.println();
+			System.out.println("Usage: " + TokenBenchmark.class.getSimpleName() + " counting|random [THREADS] [OPS]");
+			System.out.println("  THREADS: The number of sender threads (default 16)");
+			System.out.println("  OPS:     The acquire/release pairs per thread (default 1000000)");
+		}
+	}
+	
+	private static void run(final TokenManager manager, final int count) {
+		
+		Thread[] senders = new Thread[threads];
+		
+		for (int t = 0; t < threads; ++t) {
+			senders[t] = new Thread("Sender-" + t) {
+				@Override
+				public void run() {
+					byte[][] held = new byte[window][];
+					for (int i = 0; i < count; ++i) {
+						int k = i % window;
+						if (held[k] != null) {
+							manager.releaseToken(held[k]);
+						}
+						held[k] = manager.acquireToken();
+					}
+					for (byte[] token : held) {
+						if (token != null) {
+							manager.releaseToken(token);
+						}
+					}
+				}
+			};
+			senders[t].start();
+		}
+		
+		for (Thread sender : senders) {
+			try {
+				sender.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+}
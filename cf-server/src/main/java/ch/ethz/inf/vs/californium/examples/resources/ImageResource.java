@@ -31,16 +31,20 @@
 package ch.ethz.inf.vs.californium.examples.resources;
 
 import java.io.File;
-import java.io.FileInputStream;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
+import ch.ethz.inf.vs.californium.coap.BlockSource;
 import ch.ethz.inf.vs.californium.coap.CodeRegistry;
 import ch.ethz.inf.vs.californium.coap.GETRequest;
 import ch.ethz.inf.vs.californium.coap.MediaTypeRegistry;
 import ch.ethz.inf.vs.californium.coap.OptionNumberRegistry;
 import ch.ethz.inf.vs.californium.coap.Response;
 import ch.ethz.inf.vs.californium.endpoint.LocalResource;
+import ch.ethz.inf.vs.californium.util.BufferBlockSource;
 
 /**
  * This class implements an "/image" resource for demonstration purposes.
@@ -54,7 +58,25 @@ import ch.ethz.inf.vs.californium.endpoint.LocalResource;
  */
 public class ImageResource extends LocalResource {
 	
+	/*
+	 * A mapped representation and the file state it was mapped from.
+	 */
+	private static class MappedImage {
+		final BlockSource source;
+		final long length;
+		final long lastModified;
+		
+		MappedImage(BlockSource source, long length, long lastModified) {
+			this.source = source;
+			this.length = length;
+			this.lastModified = lastModified;
+		}
+	}
+	
 	private List<Integer> supported = new ArrayList<Integer>();
+	
+	// one mapping per content type, shared by all requests
+	private ConcurrentMap<Integer, MappedImage> mapped = new ConcurrentHashMap<Integer, MappedImage>();
 
 	// Constructors ////////////////////////////////////////////////////////////
 	
@@ -110,28 +132,24 @@ public class ImageResource extends LocalResource {
 			return;
 		}
 		
-		//get length of file
-		int fileLength = (int)file.length();
-		
-		FileInputStream fileIn = null;
-		byte[] fileData = new byte[fileLength];
-		
-		try
-		{
-		  //open input stream from file
-		  fileIn = new FileInputStream(file);
-		  //read file into byte array
-		  fileIn.read(fileData);
-		  fileIn.close();
-		} catch (Exception e) {
-			request.respond(CodeRegistry.RESP_INTERNAL_SERVER_ERROR, "IO error");
-			System.err.println("/image IO error: " +e.getMessage());
-			return;
+		// map the file once instead of reading it, the TransferLayer only reads the requested blocks
+		MappedImage image = mapped.get(ct);
+		if (image==null || image.length!=file.length() || image.lastModified!=file.lastModified()) {
+			try {
+				// concurrent requests may map twice, the last mapping is kept
+				image = new MappedImage(BufferBlockSource.map(file), file.length(), file.lastModified());
+				mapped.put(ct, image);
+			} catch (IOException e) {
+				request.respond(CodeRegistry.RESP_INTERNAL_SERVER_ERROR, "IO error");
+				System.err.println("/image IO error: " +e.getMessage());
+				return;
+			}
 		}
+		BlockSource source = image.source;
 		
 		// create response
 		Response response = new Response(CodeRegistry.RESP_CONTENT);
-		response.setPayload(fileData);
+		response.setPayloadSource(source);
 
 		// set content type
 		response.setContentType(ct);
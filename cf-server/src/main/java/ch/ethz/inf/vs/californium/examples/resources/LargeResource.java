@@ -30,8 +30,10 @@
  ******************************************************************************/
 package ch.ethz.inf.vs.californium.examples.resources;
 
+import ch.ethz.inf.vs.californium.coap.BlockSource;
 import ch.ethz.inf.vs.californium.coap.CodeRegistry;
 import ch.ethz.inf.vs.californium.coap.GETRequest;
+import ch.ethz.inf.vs.californium.coap.Response;
 import ch.ethz.inf.vs.californium.endpoint.LocalResource;
 
 /*
@@ -53,41 +55,55 @@ public class LargeResource extends LocalResource {
 
 	@Override
 	public void performGET(GETRequest request) {
-		StringBuilder builder = new StringBuilder();
-		builder.append("/-------------------------------------------------------------\\\n");
-		builder.append("|                 RESOURCE BLOCK NO. 1 OF 8                   |\n");
-		builder.append("|               [each line contains 64 bytes]                 |\n");
-		builder.append("\\-------------------------------------------------------------/\n");
-		builder.append("/-------------------------------------------------------------\\\n");
-		builder.append("|                 RESOURCE BLOCK NO. 2 OF 8                   |\n");
-		builder.append("|               [each line contains 64 bytes]                 |\n");
-		builder.append("\\-------------------------------------------------------------/\n");
-		builder.append("/-------------------------------------------------------------\\\n");
-		builder.append("|                 RESOURCE BLOCK NO. 3 OF 8                   |\n");
-		builder.append("|               [each line contains 64 bytes]                 |\n");
-		builder.append("\\-------------------------------------------------------------/\n");
-		builder.append("/-------------------------------------------------------------\\\n");
-		builder.append("|                 RESOURCE BLOCK NO. 4 OF 8                   |\n");
-		builder.append("|               [each line contains 64 bytes]                 |\n");
-		builder.append("\\-------------------------------------------------------------/\n");
-		builder.append("/-------------------------------------------------------------\\\n");
-		builder.append("|                 RESOURCE BLOCK NO. 5 OF 8                   |\n");
-		builder.append("|               [each line contains 64 bytes]                 |\n");
-		builder.append("\\-------------------------------------------------------------/\n");
-		builder.append("/-------------------------------------------------------------\\\n");
-		builder.append("|                 RESOURCE BLOCK NO. 6 OF 8                   |\n");
-		builder.append("|               [each line contains 64 bytes]                 |\n");
-		builder.append("\\-------------------------------------------------------------/\n");
-		builder.append("/-------------------------------------------------------------\\\n");
-		builder.append("|                 RESOURCE BLOCK NO. 7 OF 8                   |\n");
-		builder.append("|               [each line contains 64 bytes]                 |\n");
-		builder.append("\\-------------------------------------------------------------/\n");
-		builder.append("/-------------------------------------------------------------\\\n");
-		builder.append("|                 RESOURCE BLOCK NO. 8 OF 8                   |\n");
-		builder.append("|               [each line contains 64 bytes]                 |\n");
-		builder.append("\\-------------------------------------------------------------/\n");
+		Response response = new Response(CodeRegistry.RESP_CONTENT);
+		response.setPayloadSource(new BlockLines(8));
+		request.respond(response);
+	}
+	
+	/*
+	 * Generates the representation line by line when a block is read, so
+	 * the payload is never held in memory as a whole.
+	 */
+	private static class BlockLines implements BlockSource {
+		
+		private static final int LINE_LENGTH = 64;
+		private static final int LINES_PER_BLOCK = 4;
+		
+		private final int blocks;
+		
+		public BlockLines(int blocks) {
+			this.blocks = blocks;
+		}
 		
-		request.respond(CodeRegistry.RESP_CONTENT, builder.toString());
+		@Override
+		public int size() {
+			return blocks * LINES_PER_BLOCK * LINE_LENGTH;
+		}
+		
+		@Override
+		public void read(int offset, byte[] dst, int dstOffset, int length) {
+			while (length > 0) {
+				int line = offset / LINE_LENGTH;
+				int column = offset % LINE_LENGTH;
+				int n = Math.min(length, LINE_LENGTH - column);
+				
+				System.arraycopy(getLine(line), column, dst, dstOffset, n);
+				
+				offset += n;
+				dstOffset += n;
+				length -= n;
+			}
+		}
+		
+		private byte[] getLine(int line) {
+			String text;
+			switch (line % LINES_PER_BLOCK) {
+				case 0: text = "/-------------------------------------------------------------\\\n"; break;
+				case 1: text = String.format("|                 RESOURCE BLOCK NO. %d OF %d                   |\n", line / LINES_PER_BLOCK + 1, blocks); break;
+				case 2: text = "|               [each line contains 64 bytes]                 |\n"; break;
+				default: text = "\\-------------------------------------------------------------/\n"; break;
+			}
+			return text.getBytes();
+		}
 	}
-
 }